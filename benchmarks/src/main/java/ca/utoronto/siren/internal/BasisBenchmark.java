@@ -0,0 +1,82 @@
+package ca.utoronto.siren.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-gene preprocessing: quantiles, knots and B-spline bases.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BasisBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int conditions;
+
+	@Param({ "10" })
+	public int degreesOfFreedom;
+
+	@Param({ "2", "3" })
+	public int degree;
+
+	private double[] x;
+	private double[] knots;
+	private double[] scratch;
+	private BasisTensor bMatrix;
+
+	@Setup
+	public void setUp() {
+		x = Siren.scaleAndCentre(SyntheticData.createExpressionMatrix(1, 1, conditions)[0]);
+		double minX = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		for (double value : x) {
+			minX = Math.min(minX, value);
+			maxX = Math.max(maxX, value);
+		}
+		knots = Siren.computeKnots(x, degreesOfFreedom, degree, minX, maxX);
+		scratch = new double[degreesOfFreedom + degree + 1];
+		bMatrix = new BasisTensor(1, degreesOfFreedom, conditions);
+	}
+
+	@Benchmark
+	public double[] computeQuantiles() {
+		return Siren.computeQuantiles(x, degreesOfFreedom - degree + 1);
+	}
+
+	/**
+	 * Bases of every condition of one gene, for its precomputed knots.
+	 */
+	@Benchmark
+	public void computeBasis(Blackhole blackhole) {
+		for (double value : x) {
+			Siren.computeBasis(value, degreesOfFreedom, degree, knots, scratch);
+			blackhole.consume(scratch);
+		}
+	}
+
+	@Benchmark
+	public BasisTensor computeBSplineBasis() {
+		Siren.computeBSplineBasis(x, degreesOfFreedom, degree, bMatrix, 0, scratch);
+		return bMatrix;
+	}
+
+	@Benchmark
+	public double[] scaleAndCentre() {
+		return Siren.scaleAndCentre(x);
+	}
+}
@@ -0,0 +1,474 @@
+package ca.utoronto.siren.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the whole SIREN pipeline on synthetic data and checks it against
+ * stored baselines.  The pipeline has these phases: loading the expression
+ * and network files, computing bases and marginals, scoring, and writing
+ * the scores.  Unlike the JMH benchmarks, each phase runs once per
+ * repetition and is measured with {@link RunMetrics}, so genome-scale inputs
+ * stay affordable:
+ *
+ *   java -Xmx8g -cp target/benchmarks.jar ca.utoronto.siren.internal.EndToEndBenchmark [options] [scenario...]
+ *
+ * Scenarios are presets (see {@link #PRESETS}) or name=genes:conditions:edges.
+ * Their inputs are generated once, with fixed seeds, in the layout of
+ * Expression_Format.txt and Network_Format.txt.
+ * <p>
+ * The report (JSON) gives the wall time, allocation, peak heap and
+ * throughput of each phase of the fastest repetition, and the end-to-end
+ * interactions per second.  A scenario fails if either of these drifts by
+ * more than the threshold from its baseline:
+ * <ul>
+ * <li>a phase's wall time, for phases of at least
+ *     {@link #MINIMUM_COMPARED_MS} ms, or</li>
+ * <li>a phase's peak heap.</li>
+ * </ul>
+ * It also fails if a sample of its scores differs from a reference run by
+ * more than Siren.main allows against Result.txt.  The reference run is the
+ * dense per-interaction computation plus the scores stored with the
+ * baseline.  Missing baselines are recorded.  The process exits with
+ * status 1 if any scenario fails.
+ */
+public class EndToEndBenchmark {
+	static final String LOAD_NETWORK_FILE = "Load network file";
+	static final String WRITE_SCORES = "Write scores";
+
+	static final double DEFAULT_THRESHOLD = 0.25;
+
+	/**
+	 * Shortest baseline phase whose wall time is compared.  Shorter phases
+	 * are too noisy.
+	 */
+	static final double MINIMUM_COMPARED_MS = 100;
+
+	/**
+	 * Smallest baseline peak heap that's compared.
+	 */
+	static final long MINIMUM_COMPARED_HEAP = 64L << 20;
+
+	/**
+	 * Largest difference from the reference scores, as in Siren.main.
+	 */
+	static final double MAX_ERROR = 0.0000001;
+
+	/**
+	 * Number of interactions checked against the reference run.
+	 */
+	static final int REFERENCE_SAMPLE = 2000;
+
+	/**
+	 * Sizes of the synthetic inputs.
+	 */
+	static class Scenario {
+		final String name;
+		final int genes;
+		final int conditions;
+		final int edges;
+
+		Scenario(String name, int genes, int conditions, int edges) {
+			this.name = name;
+			this.genes = genes;
+			this.conditions = conditions;
+			this.edges = edges;
+		}
+
+		/**
+		 * Returns the preset with the given name, or parses
+		 * name=genes:conditions:edges.
+		 */
+		static Scenario parse(String value) {
+			for (Scenario preset : PRESETS) {
+				if (preset.name.equals(value)) {
+					return preset;
+				}
+			}
+			String[] parts = value.split("[=:]");
+			if (parts.length != 4) {
+				throw new IllegalArgumentException("Unknown scenario: " + value);
+			}
+			return new Scenario(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%s (%d genes, %d conditions, %d interactions)", name, genes, conditions, edges);
+		}
+	}
+
+	/**
+	 * Presets from a small pathway up to a genome-scale network.  The
+	 * bases of "genome" take about 1GB and those of "wide" about 800MB.
+	 */
+	static final Scenario[] PRESETS = {
+		new Scenario("small", 1000, 50, 10000),
+		new Scenario("medium", 5000, 500, 500000),
+		new Scenario("wide", 2000, 5000, 100000),
+		new Scenario("genome", 25000, 500, 5000000),
+	};
+
+	static final String[] DEFAULT_SCENARIOS = { "small", "medium" };
+
+	/**
+	 * Measurements and checks of one scenario.
+	 */
+	static class Result {
+		final Scenario scenario;
+		RunMetrics metrics;
+		double maxReferenceError;
+		final List<String> failures = new ArrayList<String>();
+
+		Result(Scenario scenario) {
+			this.scenario = scenario;
+		}
+
+		double getInteractionsPerSecond() {
+			long wallNanos = metrics.getTotalWallNanos();
+			return wallNanos == 0 ? 0 : scenario.edges * 1e9 / wallNanos;
+		}
+	}
+
+	private File dataDirectory = new File("siren-e2e");
+	private File baselineDirectory = new File("baselines");
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int repetitions = 1;
+	private double threshold = DEFAULT_THRESHOLD;
+	private boolean updateBaselines;
+
+	/**
+	 * Generates the inputs of the scenario unless they exist, runs it and
+	 * checks it against its baseline.
+	 */
+	Result run(Scenario scenario) throws IOException {
+		dataDirectory.mkdirs();
+		File expressionFile = new File(dataDirectory, String.format(Locale.ROOT, "Expression_Format-%d-%d.txt", scenario.genes, scenario.conditions));
+		File networkFile = new File(dataDirectory, String.format(Locale.ROOT, "Network_Format-%d-%d.txt", scenario.genes, scenario.edges));
+		File outputFile = new File(dataDirectory, scenario.name + "-scores.txt");
+		if (!expressionFile.exists()) {
+			generate(expressionFile, SyntheticData.createExpressionMatrix(1, scenario.genes, scenario.conditions));
+		}
+		if (!networkFile.exists()) {
+			generate(networkFile, SyntheticData.createNetworkMatrix(2, scenario.genes, scenario.edges));
+		}
+
+		Result result = new Result(scenario);
+		double[][] expressionMatrix = null;
+		int[][] networkMatrix = null;
+		double[] scores = null;
+		for (int repetition = 0; repetition < repetitions; repetition++) {
+			// Inputs of the last repetition mustn't count against this one
+			expressionMatrix = null;
+			networkMatrix = null;
+			scores = null;
+			System.gc();
+
+			RunMetrics metrics = new RunMetrics();
+			metrics.begin(RunMetrics.LOAD_EXPRESSION_FILE);
+			expressionMatrix = Siren.loadMatrix(expressionFile.getPath(), threads);
+			metrics.end(expressionMatrix.length, RunMetrics.GENES);
+			metrics.begin(LOAD_NETWORK_FILE);
+			networkMatrix = Siren.loadNetworkMatrix(networkFile.getPath(), threads);
+			metrics.end(networkMatrix.length, RunMetrics.INTERACTIONS);
+			scores = SirenEngine.DEFAULT.computeScores(expressionMatrix, networkMatrix, threads, false, metrics);
+			metrics.begin(WRITE_SCORES);
+			writeScores(networkMatrix, scores, null, outputFile);
+			metrics.end(scores.length, RunMetrics.INTERACTIONS);
+			if (result.metrics == null || metrics.getTotalWallNanos() < result.metrics.getTotalWallNanos()) {
+				result.metrics = metrics;
+			}
+		}
+
+		int[] sample = getSample(scores.length);
+		checkReference(result, expressionMatrix, networkMatrix, scores, sample);
+		checkBaseline(result, networkMatrix, scores, sample);
+		return result;
+	}
+
+	private static void generate(File file, double[][] expressionMatrix) throws IOException {
+		File partial = new File(file.getPath() + ".part");
+		SyntheticData.writeMatrix(expressionMatrix, partial);
+		rename(partial, file);
+	}
+
+	private static void generate(File file, int[][] networkMatrix) throws IOException {
+		File partial = new File(file.getPath() + ".part");
+		SyntheticData.writeNetworkMatrix(networkMatrix, partial);
+		rename(partial, file);
+	}
+
+	private static void rename(File source, File destination) throws IOException {
+		if (!source.renameTo(destination)) {
+			throw new IOException("Couldn't create " + destination);
+		}
+	}
+
+	/**
+	 * Returns evenly spaced interactions to check.
+	 */
+	static int[] getSample(int totalInteractions) {
+		int step = Math.max(1, totalInteractions / REFERENCE_SAMPLE);
+		int[] result = new int[(totalInteractions + step - 1) / step];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = i * step;
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the sampled scores with the dense per-interaction computation
+	 * of {@link Siren#computePabMatrix(BasisTensor, int, int, double[][])}.
+	 */
+	private static void checkReference(Result result, double[][] expressionMatrix, int[][] networkMatrix, double[] scores, int[] sample) {
+		// Only the sampled genes' bases are computed
+		Map<Integer, Integer> localGenes = new HashMap<Integer, Integer>();
+		List<double[]> localExpression = new ArrayList<double[]>();
+		int[][] localNetwork = new int[sample.length][2];
+		for (int k = 0; k < sample.length; k++) {
+			for (int side = 0; side < 2; side++) {
+				int gene = networkMatrix[sample[k]][side];
+				Integer local = localGenes.get(gene);
+				if (local == null) {
+					local = localExpression.size();
+					localExpression.add(expressionMatrix[gene]);
+					localGenes.put(gene, local);
+				}
+				localNetwork[k][side] = local;
+			}
+		}
+		if (localExpression.isEmpty()) {
+			return;
+		}
+
+		BasisTensor bMatrix = Siren.computeBMatrix(localExpression.toArray(new double[localExpression.size()][]), Siren.DEFAULT_DEGREES_OF_FREEDOM, Siren.DEFAULT_DEGREE);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		double[][] pABMatrix = new double[Siren.DEFAULT_DEGREES_OF_FREEDOM][Siren.DEFAULT_DEGREES_OF_FREEDOM];
+		for (int k = 0; k < sample.length; k++) {
+			int geneA = localNetwork[k][0];
+			int geneB = localNetwork[k][1];
+			Siren.computePabMatrix(bMatrix, geneA, geneB, pABMatrix);
+			double expected = Siren.computeScore(pABMatrix, paMatrix[geneA], paMatrix[geneB], Siren.DEFAULT_WEIGHT_MATRIX);
+			result.maxReferenceError = Math.max(result.maxReferenceError, Math.abs(scores[sample[k]] - expected));
+		}
+		if (!(result.maxReferenceError <= MAX_ERROR)) {
+			result.failures.add(String.format(Locale.ROOT, "Scores differ from the reference computation by up to %g", result.maxReferenceError));
+		}
+	}
+
+	/**
+	 * Compares the run with the stored baseline, or stores it if there's
+	 * none or baselines are being updated.
+	 */
+	private void checkBaseline(Result result, int[][] networkMatrix, double[] scores, int[] sample) throws IOException {
+		File metricsFile = new File(baselineDirectory, String.format(Locale.ROOT, "%s-%dt.tsv", result.scenario.name, threads));
+		File scoresFile = new File(baselineDirectory, result.scenario.name + "-Result.txt");
+		if (updateBaselines || !metricsFile.exists()) {
+			baselineDirectory.mkdirs();
+			Writer writer = new BufferedWriter(new FileWriter(metricsFile));
+			try {
+				result.metrics.writeTsv(writer);
+			} finally {
+				writer.close();
+			}
+		} else {
+			compareMetrics(result, readBaseline(metricsFile));
+		}
+		if (updateBaselines || !scoresFile.exists()) {
+			baselineDirectory.mkdirs();
+			writeScores(networkMatrix, scores, sample, scoresFile);
+		} else {
+			List<Double> expected = Siren.parseResults(scoresFile.getPath());
+			if (expected.size() != sample.length) {
+				result.failures.add(String.format(Locale.ROOT, "%s has %d scores but %d were sampled", scoresFile, expected.size(), sample.length));
+				return;
+			}
+			for (int k = 0; k < sample.length; k++) {
+				if (Math.abs(scores[sample[k]] - expected.get(k)) > MAX_ERROR) {
+					result.failures.add(String.format(Locale.ROOT, "Interaction %d scores %g but %g in %s", sample[k] + 1, scores[sample[k]], expected.get(k), scoresFile));
+				}
+			}
+		}
+	}
+
+	private void compareMetrics(Result result, Map<String, double[]> baseline) {
+		for (RunMetrics.Phase phase : result.metrics.getPhases()) {
+			double[] expected = baseline.get(phase.getName());
+			if (expected == null) {
+				continue;
+			}
+			double wallMs = phase.getWallNanos() / 1e6;
+			if (expected[0] >= MINIMUM_COMPARED_MS && wallMs > expected[0] * (1 + threshold)) {
+				result.failures.add(String.format(Locale.ROOT, "%s took %.1f ms, %.0f%% over the baseline's %.1f ms", phase.getName(), wallMs, (wallMs / expected[0] - 1) * 100, expected[0]));
+			}
+			if (expected[1] >= MINIMUM_COMPARED_HEAP && phase.getPeakHeapBytes() > expected[1] * (1 + threshold)) {
+				result.failures.add(String.format(Locale.ROOT, "%s peaked at %.1f MB of heap, %.0f%% over the baseline's %.1f MB", phase.getName(), phase.getPeakHeapBytes() / 1e6, (phase.getPeakHeapBytes() / expected[1] - 1) * 100, expected[1] / 1e6));
+			}
+		}
+	}
+
+	/**
+	 * Returns the wall time (ms) and peak heap (bytes) of each phase in a
+	 * file written by {@link RunMetrics#writeTsv(Writer)}.
+	 */
+	static Map<String, double[]> readBaseline(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			Map<String, double[]> result = new LinkedHashMap<String, double[]>();
+			// Skip the header
+			String line = reader.readLine();
+			for (line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] parts = line.split("\t");
+				if (parts.length >= 4) {
+					result.put(parts[0], new double[] { Double.parseDouble(parts[1]), Double.parseDouble(parts[3]) });
+				}
+			}
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the given interactions' scores (all of them if
+	 * <code>interactions</code> is null) in the layout of Result.txt:
+	 * interaction, gene A, gene B (all 1-based) and score.
+	 */
+	static void writeScores(int[][] networkMatrix, double[] scores, int[] interactions, File file) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			int total = interactions == null ? scores.length : interactions.length;
+			for (int k = 0; k < total; k++) {
+				int i = interactions == null ? k : interactions[k];
+				writer.write(Integer.toString(i + 1));
+				writer.write('\t');
+				writer.write(Integer.toString(networkMatrix[i][0] + 1));
+				writer.write('\t');
+				writer.write(Integer.toString(networkMatrix[i][1] + 1));
+				writer.write('\t');
+				writer.write(Double.toString(scores[i]));
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the results as a JSON object.
+	 */
+	void writeReport(List<Result> results, Writer writer) throws IOException {
+		boolean passed = true;
+		writer.write(String.format(Locale.ROOT, "{\n  \"threads\": %d,\n  \"repetitions\": %d,\n  \"threshold\": %.3f,\n  \"scenarios\": [", threads, repetitions, threshold));
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			Scenario scenario = result.scenario;
+			passed &= result.failures.isEmpty();
+			writer.write(i == 0 ? "\n" : ",\n");
+			writer.write(String.format(Locale.ROOT, "    {\n      \"name\": \"%s\",\n      \"genes\": %d,\n      \"conditions\": %d,\n      \"interactions\": %d,\n      \"interactions_per_s\": %.3f,\n      \"max_reference_error\": %g,\n      \"failures\": [",
+					escape(scenario.name), scenario.genes, scenario.conditions, scenario.edges, result.getInteractionsPerSecond(), result.maxReferenceError));
+			for (int f = 0; f < result.failures.size(); f++) {
+				writer.write(String.format("%s\"%s\"", f == 0 ? "" : ", ", escape(result.failures.get(f))));
+			}
+			StringWriter metrics = new StringWriter();
+			result.metrics.writeJson(metrics);
+			writer.write("],\n      \"metrics\": ");
+			writer.write(metrics.toString().trim().replace("\n", "\n      "));
+			writer.write("\n    }");
+		}
+		writer.write(String.format("\n  ],\n  \"passed\": %b\n}\n", passed));
+		writer.flush();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	static void printUsage() {
+		System.err.println("Usage: EndToEndBenchmark [options] [scenario...]");
+		System.err.println("  scenario               small, medium, wide, genome or name=genes:conditions:edges");
+		System.err.println("                         (default: small medium)");
+		System.err.println("  --data <dir>           where inputs are generated (default: siren-e2e)");
+		System.err.println("  --baselines <dir>      where baselines are kept (default: baselines)");
+		System.err.println("  --report <file>        JSON report (default: e2e-report.json)");
+		System.err.println("  --threads <n>          worker threads (default: all processors)");
+		System.err.println("  --repeat <n>           runs per scenario; the fastest is kept (default: 1)");
+		System.err.println("  --threshold <x>        largest allowed drift from a baseline (default: 0.25)");
+		System.err.println("  --update-baselines     replace the baselines with this run's results");
+	}
+
+	public static void main(String[] args) throws IOException {
+		EndToEndBenchmark benchmark = new EndToEndBenchmark();
+		File reportFile = new File("e2e-report.json");
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("--data".equals(args[i])) {
+					benchmark.dataDirectory = new File(args[++i]);
+				} else if ("--baselines".equals(args[i])) {
+					benchmark.baselineDirectory = new File(args[++i]);
+				} else if ("--report".equals(args[i])) {
+					reportFile = new File(args[++i]);
+				} else if ("--threads".equals(args[i])) {
+					benchmark.threads = Math.max(1, Integer.parseInt(args[++i]));
+				} else if ("--repeat".equals(args[i])) {
+					benchmark.repetitions = Math.max(1, Integer.parseInt(args[++i]));
+				} else if ("--threshold".equals(args[i])) {
+					benchmark.threshold = Double.parseDouble(args[++i]);
+				} else if ("--update-baselines".equals(args[i])) {
+					benchmark.updateBaselines = true;
+				} else if (args[i].startsWith("--")) {
+					throw new IllegalArgumentException("Unknown option: " + args[i]);
+				} else {
+					scenarios.add(Scenario.parse(args[i]));
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(2);
+			return;
+		}
+		if (scenarios.isEmpty()) {
+			for (String name : DEFAULT_SCENARIOS) {
+				scenarios.add(Scenario.parse(name));
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		boolean passed = true;
+		for (Scenario scenario : scenarios) {
+			System.out.println(scenario);
+			Result result = benchmark.run(scenario);
+			results.add(result);
+			System.out.println(result.metrics);
+			System.out.println(String.format(Locale.ROOT, "%.0f interactions/s end to end", result.getInteractionsPerSecond()));
+			for (String failure : result.failures) {
+				System.out.println("FAILED: " + failure);
+			}
+			passed &= result.failures.isEmpty();
+		}
+
+		Writer writer = new BufferedWriter(new FileWriter(reportFile));
+		try {
+			benchmark.writeReport(results, writer);
+		} finally {
+			writer.close();
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+}
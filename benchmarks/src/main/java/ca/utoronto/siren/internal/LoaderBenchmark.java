@@ -0,0 +1,68 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of expression and network files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+	@Param({ "2000" })
+	public int genes;
+
+	@Param({ "500" })
+	public int conditions;
+
+	@Param({ "100000" })
+	public int edges;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File expressionFile;
+	private File networkFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		expressionFile = File.createTempFile("siren-expression", ".txt");
+		networkFile = File.createTempFile("siren-network", ".txt");
+		SyntheticData.writeMatrix(SyntheticData.createExpressionMatrix(1, genes, conditions), expressionFile);
+		SyntheticData.writeNetworkMatrix(SyntheticData.createNetworkMatrix(2, genes, edges), networkFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		expressionFile.delete();
+		networkFile.delete();
+	}
+
+	@Benchmark
+	public double[][] loadMatrix() throws IOException {
+		return Siren.loadMatrix(expressionFile.getPath(), threads);
+	}
+
+	@Benchmark
+	public int[][] loadNetworkMatrix() throws IOException {
+		return Siren.loadNetworkMatrix(networkFile.getPath(), threads);
+	}
+}
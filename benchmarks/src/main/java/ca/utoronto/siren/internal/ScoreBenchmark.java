@@ -0,0 +1,142 @@
+package ca.utoronto.siren.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Joint probability matrices and scoring, from precomputed bases.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoreBenchmark {
+	/**
+	 * Number of interactions whose joint probability matrices are
+	 * precomputed for {@link #computeScore()}; small enough to stay in cache.
+	 */
+	static final int SAMPLE_SIZE = 256;
+
+	@Param({ "1000" })
+	public int genes;
+
+	@Param({ "100", "500", "2000" })
+	public int conditions;
+
+	@Param({ "10" })
+	public int degreesOfFreedom;
+
+	@Param({ "2", "3" })
+	public int degree;
+
+	@Param({ "10000" })
+	public int edges;
+
+	@Param({ "1" })
+	public int threads;
+
+	private double[][] expressionMatrix;
+	private int[][] networkMatrix;
+	private BasisTensor bMatrix;
+	private BandedBasis bandedMatrix;
+	private double[][] paMatrix;
+	private ScoreKernel kernel;
+	private double[][] pABMatrix;
+	private int[][] sampleMatrix;
+	private double[][][] samplePabMatrices;
+
+	@Setup
+	public void setUp() {
+		expressionMatrix = SyntheticData.createExpressionMatrix(1, genes, conditions);
+		networkMatrix = SyntheticData.createNetworkMatrix(2, genes, edges);
+		bMatrix = Siren.computeBMatrix(expressionMatrix, degreesOfFreedom, degree);
+		bandedMatrix = new BandedBasis(bMatrix, degree + 1);
+		paMatrix = Siren.computePaMatrix(bMatrix);
+		kernel = new ScoreKernel(Siren.DEFAULT_WEIGHT_MATRIX, paMatrix);
+		pABMatrix = new double[degreesOfFreedom][degreesOfFreedom];
+
+		// Real joint probability matrices, so the kernel takes the same
+		// branches and logs as it does when scoring
+		int sampleSize = Math.min(SAMPLE_SIZE, networkMatrix.length);
+		sampleMatrix = new int[sampleSize][];
+		samplePabMatrices = new double[sampleSize][degreesOfFreedom][degreesOfFreedom];
+		for (int k = 0; k < sampleSize; k++) {
+			sampleMatrix[k] = networkMatrix[k];
+			Siren.computePabMatrix(bMatrix, sampleMatrix[k][0], sampleMatrix[k][1], samplePabMatrices[k]);
+		}
+	}
+
+	@Benchmark
+	public BasisTensor computeBMatrix() {
+		return Siren.computeBMatrix(expressionMatrix, degreesOfFreedom, degree, threads);
+	}
+
+	/**
+	 * Dense joint probability matrices of every interaction.
+	 */
+	@Benchmark
+	public double[][] computePabMatrix() {
+		for (int[] interaction : networkMatrix) {
+			Siren.computePabMatrix(bMatrix, interaction[0], interaction[1], pABMatrix);
+		}
+		return pABMatrix;
+	}
+
+	/**
+	 * Banded joint probability matrices of every interaction between banded
+	 * genes.
+	 */
+	@Benchmark
+	public double[][] computeBandedPabMatrix() {
+		for (int[] interaction : networkMatrix) {
+			if (bandedMatrix.isBanded(interaction[0]) && bandedMatrix.isBanded(interaction[1])) {
+				bandedMatrix.computePabMatrix(interaction[0], interaction[1], pABMatrix);
+			}
+		}
+		return pABMatrix;
+	}
+
+	/**
+	 * The score kernel alone, as many times as there are interactions,
+	 * cycling through the precomputed joint probability matrices of a sample
+	 * of them.
+	 */
+	@Benchmark
+	public double computeScore() {
+		double result = 0;
+		for (int i = 0; i < networkMatrix.length; i++) {
+			int k = i % sampleMatrix.length;
+			result += kernel.computeScore(samplePabMatrices[k], sampleMatrix[k][0], sampleMatrix[k][1]);
+		}
+		return result;
+	}
+
+	/**
+	 * Every interaction, from precomputed bases.
+	 */
+	@Benchmark
+	public double[] computeScores() {
+		return Siren.computeScores(bMatrix, paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, degree, threads);
+	}
+
+	/**
+	 * The whole pipeline, from expression data.
+	 */
+	@Benchmark
+	public double[] computeScoresFromExpression() {
+		return Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, threads);
+	}
+}
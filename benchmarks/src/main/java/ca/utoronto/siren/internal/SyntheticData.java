@@ -0,0 +1,83 @@
+package ca.utoronto.siren.internal;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generators of reproducible synthetic inputs for the benchmarks.
+ */
+class SyntheticData {
+	/**
+	 * Returns a genes x conditions expression matrix.  Every other gene is
+	 * a noisy copy of the one before it, so some interactions have strong
+	 * scores, like in real data.
+	 */
+	static double[][] createExpressionMatrix(long seed, int genes, int conditions) {
+		Random random = new Random(seed);
+		double[][] result = new double[genes][conditions];
+		for (int g = 0; g < genes; g++) {
+			for (int c = 0; c < conditions; c++) {
+				if (g % 2 == 1) {
+					result[g][c] = result[g - 1][c] + random.nextGaussian() * 0.5;
+				} else {
+					result[g][c] = random.nextGaussian() * 2 + 8;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns random interactions between distinct genes, as 0-based pairs.
+	 */
+	static int[][] createNetworkMatrix(long seed, int genes, int interactions) {
+		Random random = new Random(seed);
+		int[][] result = new int[interactions][];
+		for (int i = 0; i < interactions; i++) {
+			int geneA = random.nextInt(genes);
+			int geneB = random.nextInt(genes - 1);
+			result[i] = new int[] { geneA, geneB >= geneA ? geneB + 1 : geneB };
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a matrix in the tab-delimited format read by
+	 * {@link Siren#loadMatrix(String)}.
+	 */
+	static void writeMatrix(double[][] matrix, File file) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (double[] row : matrix) {
+				for (int c = 0; c < row.length; c++) {
+					if (c > 0) {
+						writer.write('\t');
+					}
+					writer.write(Double.toString(row[c]));
+				}
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes interactions in the 1-based format read by
+	 * {@link Siren#loadNetworkMatrix(String)}.
+	 */
+	static void writeNetworkMatrix(int[][] networkMatrix, File file) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int[] interaction : networkMatrix) {
+				writer.write(String.format("%d\t%d\n", interaction[0] + 1, interaction[1] + 1));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
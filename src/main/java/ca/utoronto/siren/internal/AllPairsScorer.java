@@ -0,0 +1,201 @@
+package ca.utoronto.siren.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Scores every pair among a set of genes, for inferring interactions rather
+ * than signing known ones.  The gene x gene space is split into blocks of
+ * genes whose bases fit in cache together; each work unit takes a row of
+ * blocks and scores it against every later block, so the row's bases stay
+ * in cache.  Scores are never stored as a whole: each work unit either keeps
+ * its strongest pairs (see {@link TopPairs}) or streams them out.
+ * <p>
+ * Pairs are scored in one orientation, with the gene listed first in
+ * <code>genes</code> as gene A.
+ */
+class AllPairsScorer {
+	/**
+	 * Approximate size of the bases of one block of genes.  Two blocks should
+	 * fit in a core's L2 cache.
+	 */
+	static final int BLOCK_SIZE = 1 << 17;
+
+	/**
+	 * Size of the text buffered by each work unit before it's written out.
+	 */
+	static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private final BasisTensor bMatrix;
+	private final BandedBasis bandedMatrix;
+	private final ScoreKernel kernel;
+	private final int[] genes;
+	private final int genesPerBlock;
+
+	/**
+	 * Receives the scores of the pairs of one work unit.
+	 */
+	interface PairAction {
+		void run(int geneA, int geneB, double score) throws IOException;
+	}
+
+	/**
+	 * @param genes the genes whose pairs are scored, or null for all of them
+	 */
+	AllPairsScorer(BasisSource bMatrix, double[][] paMatrix, double[][] weightMatrix, int degree, int[] genes) {
+		if (genes == null) {
+			genes = new int[bMatrix.getGeneCount()];
+			for (int g = 0; g < genes.length; g++) {
+				genes[g] = g;
+			}
+		}
+		this.genes = genes;
+		bandedMatrix = new BandedBasis(bMatrix, degree + 1);
+		kernel = new ScoreKernel(weightMatrix, paMatrix);
+
+		// Every pair with a gene that isn't banded needs both dense bases
+		boolean isBanded = true;
+		for (int g : genes) {
+			isBanded &= bandedMatrix.isBanded(g);
+		}
+		if (isBanded) {
+			this.bMatrix = null;
+		} else if (bMatrix instanceof BasisTensor) {
+			this.bMatrix = (BasisTensor) bMatrix;
+		} else {
+			boolean[] denseGenes = new boolean[bMatrix.getGeneCount()];
+			for (int g : genes) {
+				denseGenes[g] = true;
+			}
+			this.bMatrix = BasisTensor.copyOf(bMatrix, denseGenes);
+		}
+
+		long geneSize = isBanded ? (long) bMatrix.getConditionCount() * (bandedMatrix.getWidth() * 8 + 4) : (long) bMatrix.getBinCount() * bMatrix.getConditionCount() * 8;
+		genesPerBlock = (int) Math.max(1, Math.min(genes.length, BLOCK_SIZE / Math.max(1, geneSize)));
+	}
+
+	int getBlockCount() {
+		return (genes.length + genesPerBlock - 1) / genesPerBlock;
+	}
+
+	/**
+	 * Scores every pair and returns the strongest <code>capacity</code>
+	 * positive and negative ones.
+	 */
+	TopPairs computeTopPairs(final int capacity, int threads) {
+		final TopPairs result = new TopPairs(capacity);
+		Siren.runInParallel(threads, getBlockCount(), 1, new Siren.RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				final TopPairs pairs = new TopPairs(capacity);
+				try {
+					scoreBlocks(start, end, new PairAction() {
+						@Override
+						public void run(int geneA, int geneB, double score) {
+							pairs.add(geneA, geneB, score);
+						}
+					});
+				} catch (IOException e) {
+					// Not thrown when collecting pairs in memory
+					throw new IllegalStateException(e);
+				}
+				synchronized (result) {
+					result.addAll(pairs);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Scores every pair and writes those whose score is at least
+	 * <code>minimumScore</code> in magnitude as tab-delimited lines of gene
+	 * A, gene B and score.  Genes are written as their labels or, if there
+	 * are none, as 1-based indexes like in network files.  Lines are written
+	 * in no particular order.
+	 *
+	 * @return the number of lines written
+	 */
+	long writePairs(final Writer writer, final List<String> labels, final double minimumScore, int threads) throws IOException {
+		final long[] total = new long[1];
+		final IOException[] error = new IOException[1];
+		Siren.runInParallel(threads, getBlockCount(), 1, new Siren.RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				final StringBuilder buffer = new StringBuilder();
+				final long[] count = new long[1];
+				try {
+					scoreBlocks(start, end, new PairAction() {
+						@Override
+						public void run(int geneA, int geneB, double score) throws IOException {
+							if (!(Math.abs(score) >= minimumScore)) {
+								return;
+							}
+							appendGene(buffer, labels, geneA).append('\t');
+							appendGene(buffer, labels, geneB).append('\t').append(score).append('\n');
+							count[0]++;
+							if (buffer.length() >= WRITE_BUFFER_SIZE) {
+								flush(writer, buffer);
+							}
+						}
+					});
+					flush(writer, buffer);
+				} catch (IOException e) {
+					synchronized (error) {
+						error[0] = e;
+					}
+				}
+				synchronized (total) {
+					total[0] += count[0];
+				}
+			}
+		});
+		if (error[0] != null) {
+			throw error[0];
+		}
+		writer.flush();
+		return total[0];
+	}
+
+	private static StringBuilder appendGene(StringBuilder buffer, List<String> labels, int gene) {
+		return labels == null ? buffer.append(gene + 1) : buffer.append(labels.get(gene));
+	}
+
+	private static void flush(Writer writer, StringBuilder buffer) throws IOException {
+		synchronized (writer) {
+			writer.append(buffer);
+		}
+		buffer.setLength(0);
+	}
+
+	/**
+	 * Scores the pairs between blocks <code>start</code> (inclusive) to
+	 * <code>end</code> (exclusive) and every block from there on.
+	 */
+	void scoreBlocks(int start, int end, PairAction action) throws IOException {
+		int totalBins = bandedMatrix.getBinCount();
+		double[][] pABMatrix = new double[totalBins][totalBins];
+		int totalBlocks = getBlockCount();
+		for (int blockA = start; blockA < end; blockA++) {
+			int startA = blockA * genesPerBlock;
+			int endA = Math.min(genes.length, startA + genesPerBlock);
+			for (int blockB = blockA; blockB < totalBlocks; blockB++) {
+				int startB = blockB * genesPerBlock;
+				int endB = Math.min(genes.length, startB + genesPerBlock);
+				for (int i = startA; i < endA; i++) {
+					int geneA = genes[i];
+					for (int j = Math.max(startB, i + 1); j < endB; j++) {
+						int geneB = genes[j];
+						if (bandedMatrix.isBanded(geneA) && bandedMatrix.isBanded(geneB)) {
+							bandedMatrix.computePabMatrix(geneA, geneB, pABMatrix);
+						} else {
+							Siren.computePabMatrix(bMatrix, geneA, geneB, pABMatrix);
+						}
+						action.run(geneA, geneB, kernel.computeScore(pABMatrix, geneA, geneB));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * The bases of one set of genes followed by those of another, without
+ * copying either, e.g. to add genes to a {@link BasisStore} entry.
+ */
+class AppendedBases implements BasisSource {
+	private final BasisSource first;
+	private final BasisSource second;
+
+	AppendedBases(BasisSource first, BasisSource second) {
+		if (first.getBinCount() != second.getBinCount() || first.getConditionCount() != second.getConditionCount()) {
+			throw new IllegalArgumentException("Bases must have the same bins and conditions");
+		}
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public int getGeneCount() {
+		return first.getGeneCount() + second.getGeneCount();
+	}
+
+	@Override
+	public int getBinCount() {
+		return first.getBinCount();
+	}
+
+	@Override
+	public int getConditionCount() {
+		return first.getConditionCount();
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		int totalFirst = first.getGeneCount();
+		if (gene < totalFirst) {
+			first.copyGene(gene, destination);
+		} else {
+			second.copyGene(gene - totalFirst, destination);
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Banded representation of a {@link BasisSource}.  A B-spline basis of
+ * degree d has at most d + 1 consecutive non-zero bins per condition, so
+ * for each gene and condition this stores the first bin of the band and
+ * the <code>width</code> weights that follow it.
+ * <p>
+ * Genes whose basis doesn't fit in the band (e.g. because it has NaNs) are
+ * flagged so callers can fall back to the dense tensor.
+ * <p>
+ * Double-precision bands of width 3 and 4 use fully unrolled kernels unless
+ * the system property {@value #GENERIC_PROPERTY} is true.
+ */
+public class BandedBasis {
+	static final String GENERIC_PROPERTY = "siren.genericBandKernels";
+
+	private static final boolean UNROLLED = !Boolean.getBoolean(GENERIC_PROPERTY);
+
+	private final int totalGenes;
+	private final int totalBins;
+	private final int totalConditions;
+	private final int width;
+
+	// genes x conditions
+	private final int[] startBins;
+
+	// genes x conditions x width, in double or single precision
+	private final double[] weights;
+	private final float[] floatWeights;
+
+	private final boolean[] isBanded;
+
+	// Width of the unrolled kernel used for double-precision weights, or 0
+	// for the generic loop
+	private final int unrolledWidth;
+
+	// Width of the blocked kernel used for single-precision weights, or 0
+	// for the generic loop
+	private final int blockedWidth;
+
+	/**
+	 * Stores the weights in single precision if the bases are (see
+	 * {@link FloatBasisTensor}), since that loses nothing.
+	 */
+	public BandedBasis(BasisSource bMatrix, int width) {
+		this(bMatrix, width, bMatrix instanceof FloatBasisTensor);
+	}
+
+	/**
+	 * @param singlePrecision whether to store the weights in single
+	 *                        precision, which halves their memory
+	 */
+	public BandedBasis(BasisSource bMatrix, int width, boolean singlePrecision) {
+		totalGenes = bMatrix.getGeneCount();
+		totalBins = bMatrix.getBinCount();
+		totalConditions = bMatrix.getConditionCount();
+		this.width = Math.min(width, totalBins);
+
+		long size = (long) totalGenes * totalConditions * this.width;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Banded basis too large: %d genes x %d conditions x %d bins", totalGenes, totalConditions, this.width));
+		}
+		startBins = new int[totalGenes * totalConditions];
+		weights = singlePrecision ? null : new double[(int) size];
+		floatWeights = singlePrecision ? new float[(int) size] : null;
+		isBanded = new boolean[totalGenes];
+		unrolledWidth = getUnrolledWidth(this.width);
+		blockedWidth = getBlockedWidth(this.width);
+
+		double[] buffer = new double[totalBins * totalConditions];
+		for (int g = 0; g < totalGenes; g++) {
+			bMatrix.copyGene(g, buffer);
+			isBanded[g] = setGene(g, buffer);
+		}
+	}
+
+	/**
+	 * Returns the width of the unrolled kernel for bands of the given
+	 * width, or 0 if there's none or they're disabled by
+	 * {@value #GENERIC_PROPERTY}.  Degrees 2 (the default) and 3 have bands
+	 * of width 3 and 4.
+	 */
+	static int getUnrolledWidth(int width) {
+		return UNROLLED && (width == 3 || width == 4) ? width : 0;
+	}
+
+	/**
+	 * Returns the width of the blocked kernel for single-precision bands of
+	 * the given width, or 0 if there's none or {@link BlockedKernels} are
+	 * disabled.
+	 */
+	static int getBlockedWidth(int width) {
+		return BlockedKernels.isEnabled() && (width == 3 || width == 4) ? width : 0;
+	}
+
+	/**
+	 * Stores the band of the given gene from its bins x conditions basis.
+	 * Returns false if the basis doesn't fit in the band.
+	 */
+	private boolean setGene(int gene, double[] data) {
+		for (int c = 0; c < totalConditions; c++) {
+			int first = -1;
+			int last = -1;
+			for (int b = 0; b < totalBins; b++) {
+				double value = data[b * totalConditions + c];
+				if (Double.isNaN(value)) {
+					return false;
+				}
+				if (value != 0) {
+					if (first == -1) {
+						first = b;
+					}
+					last = b;
+				}
+			}
+			if (first != -1 && last - first + 1 > width) {
+				return false;
+			}
+
+			// Keep the band within the bins
+			int start = first == -1 ? 0 : Math.min(first, totalBins - width);
+			int index = gene * totalConditions + c;
+			startBins[index] = start;
+			for (int p = 0; p < width; p++) {
+				double value = data[(start + p) * totalConditions + c];
+				if (weights != null) {
+					weights[index * width + p] = value;
+				} else {
+					floatWeights[index * width + p] = (float) value;
+				}
+			}
+		}
+		return true;
+	}
+
+	public int getGeneCount() {
+		return totalGenes;
+	}
+
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns true if the basis of the given gene is represented by this
+	 * banded basis.
+	 */
+	public boolean isBanded(int gene) {
+		return isBanded[gene];
+	}
+
+	/**
+	 * Computes the joint probability matrix of two banded genes in
+	 * O(conditions x width^2).  Products are accumulated per cell in the
+	 * same condition order as the dense version, so both give the same
+	 * values.
+	 */
+	void computePabMatrix(int geneA, int geneB, double[][] result) {
+		computePabMatrix(geneA, geneB, null, result);
+	}
+
+	/**
+	 * Computes the joint probability matrix of two banded genes, pairing
+	 * condition c of <code>geneA</code> with condition
+	 * <code>permutation[c]</code> of <code>geneB</code>.  If
+	 * <code>permutation</code> is null, conditions are paired as is.
+	 */
+	void computePabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		Siren.clearMatrix(result, 0);
+		if (weights == null) {
+			if (blockedWidth == 3) {
+				accumulateFloatWidth3PabMatrix(geneA, geneB, permutation, result);
+			} else if (blockedWidth == 4) {
+				accumulateFloatWidth4PabMatrix(geneA, geneB, permutation, result);
+			} else {
+				accumulateFloatPabMatrix(geneA, geneB, permutation, result);
+			}
+		} else if (unrolledWidth == 3) {
+			accumulateWidth3PabMatrix(geneA, geneB, permutation, result);
+		} else if (unrolledWidth == 4) {
+			accumulateWidth4PabMatrix(geneA, geneB, permutation, result);
+		} else {
+			accumulatePabMatrix(geneA, geneB, permutation, result);
+		}
+
+		for (int i = 0; i < totalBins; i++) {
+			double[] row = result[i];
+			for (int j = 0; j < totalBins; j++) {
+				row[j] /= totalConditions;
+			}
+		}
+	}
+
+	private void accumulatePabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * width;
+			int offsetB = (indexB + conditionB) * width;
+			for (int p = 0; p < width; p++) {
+				double a = weights[offsetA + p];
+				if (a == 0) {
+					continue;
+				}
+				double[] row = result[startA + p];
+				for (int q = 0; q < width; q++) {
+					row[startB + q] += a * weights[offsetB + q];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #accumulatePabMatrix(int, int, int[], double[][])}, fully
+	 * unrolled for bands of width 3.  Gene B's weights are loaded once per
+	 * condition, and each cell gets the same products in the same order.
+	 */
+	private void accumulateWidth3PabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * 3;
+			int offsetB = (indexB + conditionB) * 3;
+			double b0 = weights[offsetB];
+			double b1 = weights[offsetB + 1];
+			double b2 = weights[offsetB + 2];
+			addProducts(result[startA], startB, weights[offsetA], b0, b1, b2);
+			addProducts(result[startA + 1], startB, weights[offsetA + 1], b0, b1, b2);
+			addProducts(result[startA + 2], startB, weights[offsetA + 2], b0, b1, b2);
+		}
+	}
+
+	/**
+	 * Like {@link #accumulateWidth3PabMatrix(int, int, int[], double[][])},
+	 * for bands of width 4.
+	 */
+	private void accumulateWidth4PabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * 4;
+			int offsetB = (indexB + conditionB) * 4;
+			double b0 = weights[offsetB];
+			double b1 = weights[offsetB + 1];
+			double b2 = weights[offsetB + 2];
+			double b3 = weights[offsetB + 3];
+			addProducts(result[startA], startB, weights[offsetA], b0, b1, b2, b3);
+			addProducts(result[startA + 1], startB, weights[offsetA + 1], b0, b1, b2, b3);
+			addProducts(result[startA + 2], startB, weights[offsetA + 2], b0, b1, b2, b3);
+			addProducts(result[startA + 3], startB, weights[offsetA + 3], b0, b1, b2, b3);
+		}
+	}
+
+	private static void addProducts(double[] row, int start, double a, double b0, double b1, double b2) {
+		if (a != 0) {
+			row[start] += a * b0;
+			row[start + 1] += a * b1;
+			row[start + 2] += a * b2;
+		}
+	}
+
+	private static void addProducts(double[] row, int start, double a, double b0, double b1, double b2, double b3) {
+		if (a != 0) {
+			row[start] += a * b0;
+			row[start + 1] += a * b1;
+			row[start + 2] += a * b2;
+			row[start + 3] += a * b3;
+		}
+	}
+
+	/**
+	 * Like {@link #accumulatePabMatrix(int, int, int[], double[][])}, but
+	 * for single-precision weights.  Products are still accumulated in
+	 * double precision.
+	 */
+	private void accumulateFloatPabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * width;
+			int offsetB = (indexB + conditionB) * width;
+			for (int p = 0; p < width; p++) {
+				double a = floatWeights[offsetA + p];
+				if (a == 0) {
+					continue;
+				}
+				double[] row = result[startA + p];
+				for (int q = 0; q < width; q++) {
+					row[startB + q] += a * floatWeights[offsetB + q];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #accumulateFloatPabMatrix(int, int, int[], double[][])},
+	 * blocked for bands of width 3: gene B's weights are widened once per
+	 * condition and kept in registers for each of gene A's.  Each cell gets
+	 * the same products in the same order.
+	 */
+	private void accumulateFloatWidth3PabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * 3;
+			int offsetB = (indexB + conditionB) * 3;
+			double b0 = floatWeights[offsetB];
+			double b1 = floatWeights[offsetB + 1];
+			double b2 = floatWeights[offsetB + 2];
+			addProducts(result[startA], startB, floatWeights[offsetA], b0, b1, b2);
+			addProducts(result[startA + 1], startB, floatWeights[offsetA + 1], b0, b1, b2);
+			addProducts(result[startA + 2], startB, floatWeights[offsetA + 2], b0, b1, b2);
+		}
+	}
+
+	/**
+	 * Like {@link #accumulateFloatWidth3PabMatrix(int, int, int[], double[][])},
+	 * for bands of width 4.
+	 */
+	private void accumulateFloatWidth4PabMatrix(int geneA, int geneB, int[] permutation, double[][] result) {
+		int indexA = geneA * totalConditions;
+		int indexB = geneB * totalConditions;
+		for (int c = 0; c < totalConditions; c++) {
+			int conditionB = permutation == null ? c : permutation[c];
+			int startA = startBins[indexA + c];
+			int startB = startBins[indexB + conditionB];
+			int offsetA = (indexA + c) * 4;
+			int offsetB = (indexB + conditionB) * 4;
+			double b0 = floatWeights[offsetB];
+			double b1 = floatWeights[offsetB + 1];
+			double b2 = floatWeights[offsetB + 2];
+			double b3 = floatWeights[offsetB + 3];
+			addProducts(result[startA], startB, floatWeights[offsetA], b0, b1, b2, b3);
+			addProducts(result[startA + 1], startB, floatWeights[offsetA + 1], b0, b1, b2, b3);
+			addProducts(result[startA + 2], startB, floatWeights[offsetA + 2], b0, b1, b2, b3);
+			addProducts(result[startA + 3], startB, floatWeights[offsetA + 3], b0, b1, b2, b3);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session-wide cache of the bases and marginals of individual genes, so
+ * networks scored against the same expression data (e.g. subnetworks of one
+ * network) only compute the bases of genes that haven't been seen yet.
+ * Entries are keyed by the expression source, the spline parameters and the
+ * gene's identifier, and the least recently used are evicted once the
+ * cache holds more than its capacity.
+ * <p>
+ * Where the expression data can change without its source changing (node
+ * attributes), entries also hold the expression profile they were computed
+ * from, and a lookup with a different profile misses.
+ */
+public class BasisCache {
+	/**
+	 * System property that sets the capacity of the session's cache, in MB.
+	 */
+	public static final String CAPACITY_PROPERTY = "siren.basisCacheMB";
+
+	// Rough size of an entry besides its arrays
+	private static final long ENTRY_OVERHEAD = 128;
+
+	/**
+	 * Bases and marginals of one gene.  The basis is kept in single
+	 * precision for single-precision sources (see {@link FloatBasisTensor}).
+	 */
+	static class Entry {
+		// Expression profile the basis was computed from, if it needs
+		// checking
+		final double[] expression;
+
+		// bins x conditions basis, in double or single precision, and
+		// marginals, or null if the gene isn't in the source
+		final double[] basis;
+		final float[] floatBasis;
+		final double[] pA;
+
+		final long size;
+
+		Entry(String key, double[] expression, double[] basis, float[] floatBasis, double[] pA) {
+			this.expression = expression;
+			this.basis = basis;
+			this.floatBasis = floatBasis;
+			this.pA = pA;
+			size = ENTRY_OVERHEAD + 2L * key.length() + 8L * (length(expression) + length(basis) + length(pA)) + 4L * (floatBasis == null ? 0 : floatBasis.length);
+		}
+
+		boolean hasData() {
+			return basis != null || floatBasis != null;
+		}
+
+		private static long length(double[] values) {
+			return values == null ? 0 : values.length;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long capacity;
+	private long size;
+
+	/**
+	 * @param capacity largest total size of the entries, in bytes
+	 */
+	public BasisCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the capacity given by {@link #CAPACITY_PROPERTY}, or an eighth
+	 * of the heap.
+	 */
+	public static long getDefaultCapacity() {
+		Long megabytes = Long.getLong(CAPACITY_PROPERTY);
+		return megabytes == null ? Runtime.getRuntime().maxMemory() / 8 : megabytes << 20;
+	}
+
+	/**
+	 * Returns the source identifier of an expression file.  It changes when
+	 * the file does.
+	 */
+	static String getFileSource(File file) throws IOException {
+		return String.format("file:%s:%d:%d", file.getCanonicalPath(), file.length(), file.lastModified());
+	}
+
+	/**
+	 * Returns the source identifier of expression data taken from the given
+	 * node attributes.
+	 */
+	static String getAttributeSource(List<String> attributeNames) {
+		StringBuilder builder = new StringBuilder("attributes");
+		for (String name : attributeNames) {
+			builder.append('\t').append(name);
+		}
+		return builder.toString();
+	}
+
+	private static String getKey(String source, int degreesOfFreedom, int degree, String gene) {
+		return source + '\n' + degreesOfFreedom + '\n' + degree + '\n' + gene;
+	}
+
+	/**
+	 * Returns the entry of the given gene, or null if it isn't cached or was
+	 * computed from a profile other than <code>expression</code> (unless
+	 * that's null).
+	 */
+	synchronized Entry get(String source, int degreesOfFreedom, int degree, String gene, double[] expression) {
+		Entry entry = entries.get(getKey(source, degreesOfFreedom, degree, gene));
+		if (entry == null || (expression != null && !Arrays.equals(entry.expression, expression))) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Caches the basis and marginals of the given gene, or, if
+	 * <code>basis</code> is null, that it isn't in the source, and returns
+	 * the new entry.  Arrays are kept, not copied, so they mustn't be
+	 * changed afterwards.
+	 */
+	Entry put(String source, int degreesOfFreedom, int degree, String gene, double[] expression, double[] basis, double[] pA) {
+		String key = getKey(source, degreesOfFreedom, degree, gene);
+		return put(key, new Entry(key, expression, basis, null, pA));
+	}
+
+	/**
+	 * Like {@link #put(String, int, int, String, double[], double[], double[])},
+	 * for a basis in single precision.
+	 */
+	Entry putFloat(String source, int degreesOfFreedom, int degree, String gene, double[] expression, float[] basis, double[] pA) {
+		String key = getKey(source, degreesOfFreedom, degree, gene);
+		return put(key, new Entry(key, expression, null, basis, pA));
+	}
+
+	private synchronized Entry put(String key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			size -= old.size;
+		}
+		size += entry.size;
+		evict();
+		return entry;
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the largest total size of the entries, in bytes, evicting the
+	 * least recently used as needed.
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * Returns the estimated total size of the entries, in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			size -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+}
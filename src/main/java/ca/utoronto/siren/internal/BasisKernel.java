@@ -0,0 +1,285 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Arrays;
+
+/**
+ * Computes the B-spline basis of one gene's expression profile at a time,
+ * fusing the steps of {@link Siren#scaleAndCentre(double[])} and
+ * {@link Siren#computeBSplineBasis(double[], int, int, BasisTensor, int, double[])}
+ * into reusable scratch space.  Scaling also finds the range, the knots'
+ * quantiles are found by selecting just the order statistics they need
+ * instead of sorting the whole profile, and each condition only evaluates
+ * the bases of its knot span.  Results are identical to those of the
+ * separate steps.
+ * <p>
+ * Kernels aren't thread-safe; each worker should use its own.
+ */
+class BasisKernel {
+	/**
+	 * Ranges at most this long are sorted rather than partitioned further.
+	 */
+	static final int INSERTION_SORT_SIZE = 16;
+
+	private final int degreesOfFreedom;
+	private final int degree;
+	private final int totalConditions;
+
+	private final double[] scaled;
+	private final double[] selection;
+	private final int[] ranks;
+	private final double[] quantiles;
+	private final double[] knots;
+	private final double[] scratch;
+
+	BasisKernel(int degreesOfFreedom, int degree, int totalConditions) {
+		this.degreesOfFreedom = degreesOfFreedom;
+		this.degree = degree;
+		this.totalConditions = totalConditions;
+		int interiorKnotCount = degreesOfFreedom - degree;
+		scaled = new double[totalConditions];
+		selection = new double[totalConditions];
+		ranks = new int[2 * interiorKnotCount];
+		quantiles = new double[interiorKnotCount + 1];
+		knots = new double[interiorKnotCount + 2 * (degree + 1)];
+		scratch = new double[degreesOfFreedom + degree + 1];
+	}
+
+	/**
+	 * Computes the basis of the given expression profile into
+	 * <code>gene</code> of <code>result</code>.
+	 */
+	void computeBasis(double[] expression, BasisTensor result, int gene) {
+		computeBasis(expression, result.getData(), result.offset(gene, 0));
+	}
+
+	/**
+	 * Computes the bins x conditions basis of the given expression profile
+	 * into <code>result</code>, starting at <code>offset</code>.
+	 */
+	void computeBasis(double[] expression, double[] result, int offset) {
+		// Scale and centre, as in Siren.scaleAndCentre, finding the range
+		int count = 0;
+		double mean = 0;
+		double M2 = 0;
+		for (int i = 0; i < totalConditions; i++) {
+			double value = expression[i];
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			M2 += delta * (value - mean);
+		}
+		double sigma = Math.sqrt(M2 / (count - 1));
+
+		double minX = Double.MAX_VALUE;
+		double maxX = Double.MIN_VALUE;
+		for (int i = 0; i < totalConditions; i++) {
+			double value = expression[i];
+			double x = Double.isNaN(value) ? Double.NaN : (value - mean) / sigma;
+			scaled[i] = x;
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+		}
+
+		computeKnots(minX, maxX);
+
+		// As in Siren.computeBSplineBasis
+		int k = degreesOfFreedom;
+		boolean hasMultipleOuterBound = maxX == knots[degreesOfFreedom + degree - 2];
+		boolean hasNaNKnots = Double.isNaN(minX) || Double.isNaN(maxX);
+		for (int i = 0; i < totalConditions; i++) {
+			double x = scaled[i];
+			if (hasNaNKnots || Double.isNaN(x) || x == knots[knots.length - 1]) {
+				Siren.computeBasis(x, degreesOfFreedom, degree, knots, scratch);
+			} else {
+				computeLocalBasis(x);
+			}
+
+			// Discard intercept; i.e. process bases j = 1...k-1
+			for (int j = 0; j < k; j++) {
+				result[offset + j * totalConditions + i] = scratch[j + 1];
+			}
+
+			if (x == maxX && !hasMultipleOuterBound) {
+				result[offset + (k - 1) * totalConditions + i] = 1;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link Siren#computeBasis(double, int, int, double[], double[])},
+	 * but only computes the degree + 1 bases that can be non-zero at
+	 * <code>x</code>: those of the knot span that holds it.  The others are
+	 * 0.  <code>x</code> must be below the last knot.
+	 */
+	private void computeLocalBasis(double x) {
+		// Last knot at or below x; later knots that are equal to it bound
+		// empty spans
+		int low = 0;
+		int high = knots.length - 1;
+		while (high - low > 1) {
+			int middle = (low + high) >>> 1;
+			if (knots[middle] <= x) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		int span = low;
+
+		Arrays.fill(scratch, 0);
+		scratch[span] = 1;
+		int total = knots.length - 1;
+		for (int d = 1; d <= degree; d++) {
+			total--;
+			for (int j = Math.max(0, span - d); j <= span && j < total; j++) {
+				double denominator1 = knots[d + j] - knots[j];
+				double denominator2 = knots[j + d + 1] - knots[j + 1];
+				double alpha1 = denominator1 == 0 ? 0 : (x - knots[j]) / denominator1;
+				double alpha2 = denominator2 == 0 ? 0 : (knots[j + d + 1] - x) / denominator2;
+				scratch[j] = alpha1 * scratch[j] + alpha2 * scratch[j + 1];
+			}
+		}
+	}
+
+	/**
+	 * Fills in the knots of the scaled profile, as in
+	 * {@link Siren#computeKnots(double[], int, int, double, double)}.
+	 */
+	private void computeKnots(double minX, double maxX) {
+		int interiorKnotCount = degreesOfFreedom - degree;
+		computeQuantiles(interiorKnotCount + 1);
+		for (int i = 0; i < interiorKnotCount + 1; i++) {
+			knots[i + degree] = quantiles[i];
+		}
+		for (int i = 0; i < degree + 1; i++) {
+			knots[i] = minX;
+			knots[knots.length - 1 - i] = maxX;
+		}
+	}
+
+	/**
+	 * Computes the quantiles of the scaled profile, as in
+	 * {@link Siren#computeQuantiles(double[], int)}, by selecting the two
+	 * order statistics around each one.
+	 */
+	private void computeQuantiles(int bins) {
+		int N = totalConditions;
+		System.arraycopy(scaled, 0, selection, 0, N);
+
+		// NaNs sort last, so move them out of the way
+		int end = N;
+		for (int i = N - 1; i >= 0; i--) {
+			if (Double.isNaN(selection[i])) {
+				selection[i] = selection[--end];
+				selection[end] = Double.NaN;
+			}
+		}
+
+		int q = bins;
+		int totalRanks = 0;
+		for (int k = 1; k < q; k++) {
+			double p = (double) k / q;
+			double h = (N - 1) * p + 1;
+			int floorH = (int) Math.floor(h);
+			totalRanks = addRank(floorH - 1, end, totalRanks);
+			totalRanks = addRank(floorH, end, totalRanks);
+		}
+		select(selection, 0, end - 1, ranks, 0, totalRanks - 1, 2 * (32 - Integer.numberOfLeadingZeros(end)));
+
+		quantiles[0] = 0;
+		for (int k = 1; k < q; k++) {
+			double p = (double) k / q;
+			double h = (N - 1) * p + 1;
+			int floorH = (int) Math.floor(h);
+			quantiles[k] = selection[floorH - 1] + (h - floorH) * (selection[floorH] - selection[floorH - 1]);
+		}
+	}
+
+	/**
+	 * Adds a rank to select, in ascending order without duplicates, unless
+	 * it's among the NaNs at or after <code>end</code>.
+	 */
+	private int addRank(int rank, int end, int totalRanks) {
+		if (rank >= end || (totalRanks > 0 && ranks[totalRanks - 1] >= rank)) {
+			return totalRanks;
+		}
+		ranks[totalRanks] = rank;
+		return totalRanks + 1;
+	}
+
+	/**
+	 * Partially sorts <code>values[start..end]</code> so that each of
+	 * <code>ranks[firstRank..lastRank]</code> (ascending, within the range)
+	 * holds the value it would hold if the range were sorted.  Falls back
+	 * to sorting once <code>depth</code> partitions have been made, so bad
+	 * pivots can't make it quadratic.
+	 */
+	static void select(double[] values, int start, int end, int[] ranks, int firstRank, int lastRank, int depth) {
+		while (firstRank <= lastRank) {
+			if (end - start < INSERTION_SORT_SIZE) {
+				insertionSort(values, start, end);
+				return;
+			}
+			if (depth-- == 0) {
+				Arrays.sort(values, start, end + 1);
+				return;
+			}
+
+			// Three-way partition around the median of three, so runs of
+			// tied values are settled in one step
+			double pivot = medianOfThree(values[start], values[(start + end) >>> 1], values[end]);
+			int less = start;
+			int greater = end;
+			int i = start;
+			while (i <= greater) {
+				double value = values[i];
+				if (value < pivot) {
+					values[i++] = values[less];
+					values[less++] = value;
+				} else if (value > pivot) {
+					values[i] = values[greater];
+					values[greater--] = value;
+				} else {
+					i++;
+				}
+			}
+
+			// Ranks in [less, greater] are settled; select the rest on
+			// either side
+			int split = firstRank;
+			while (split <= lastRank && ranks[split] < less) {
+				split++;
+			}
+			if (split > firstRank) {
+				select(values, start, less - 1, ranks, firstRank, split - 1, depth);
+			}
+			while (split <= lastRank && ranks[split] <= greater) {
+				split++;
+			}
+			firstRank = split;
+			start = greater + 1;
+		}
+	}
+
+	private static double medianOfThree(double a, double b, double c) {
+		if (a < b) {
+			return b < c ? b : (a < c ? c : a);
+		}
+		return a < c ? a : (b < c ? c : b);
+	}
+
+	private static void insertionSort(double[] values, int start, int end) {
+		for (int i = start + 1; i <= end; i++) {
+			double value = values[i];
+			int j = i - 1;
+			while (j >= start && values[j] > value) {
+				values[j + 1] = values[j];
+				j--;
+			}
+			values[j + 1] = value;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Read access to the B-spline bases of a set of genes, regardless of where
+ * they're stored.
+ */
+public interface BasisSource {
+	int getGeneCount();
+
+	int getBinCount();
+
+	int getConditionCount();
+
+	/**
+	 * Copies the bins x conditions basis of the given gene into
+	 * <code>destination</code>.  The value for (bin, condition) goes to
+	 * <code>destination[bin * getConditionCount() + condition]</code>.
+	 */
+	void copyGene(int gene, double[] destination);
+}
@@ -0,0 +1,466 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk store of precomputed B-spline bases and marginals, keyed by a
+ * content hash of the expression data and the spline parameters.  Entries
+ * are memory-mapped when loaded, so the bases of a large expression data
+ * set don't need to be rebuilt, or even copied onto the Java heap, when
+ * it's scored again against another network.
+ * <p>
+ * Each entry is a single little-endian file: a fixed-size header, the gene
+ * labels (if any), the marginals (genes x bins), then the bases (genes x
+ * bins x conditions, laid out as in {@link BasisTensor}).  Bases held in
+ * single precision (a {@link FloatBasisTensor}) are stored, and mapped back,
+ * as 4-byte floats; others as doubles.
+ * <p>
+ * Entries under a partial key (see {@link #getPartialKey(String)}) hold
+ * only some genes of the data, labelled, and grow as more of its genes are
+ * needed.
+ * <p>
+ * The entries' total size is capped.  Loading an entry marks it as used
+ * (through its modification time), and once a new entry takes the store
+ * over its capacity, the least recently used entries are deleted.
+ */
+class BasisStore {
+	static final String EXTENSION = ".basis";
+
+	static final long MAGIC = 0x534952454e424153L; // "SIRENBAS"
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 64;
+	static final String SINGLE_PRECISION_SUFFIX = "-f32";
+	static final String PARTIAL_SUFFIX = "-genes";
+
+	/**
+	 * System property that sets the default capacity of a store, in MB.
+	 */
+	static final String CAPACITY_PROPERTY = "siren.basisStoreMB";
+	static final long DEFAULT_CAPACITY = 16L << 30;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File directory;
+	private final long capacity;
+
+	BasisStore(File directory) {
+		this(directory, getDefaultCapacity());
+	}
+
+	/**
+	 * @param capacity largest total size of the entries, in bytes
+	 */
+	BasisStore(File directory, long capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the capacity given by {@link #CAPACITY_PROPERTY}, or
+	 * {@link #DEFAULT_CAPACITY}.
+	 */
+	static long getDefaultCapacity() {
+		Long megabytes = Long.getLong(CAPACITY_PROPERTY);
+		return megabytes == null ? DEFAULT_CAPACITY : megabytes << 20;
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Bases and marginals loaded from the store.
+	 */
+	static class StoredBasis {
+		/**
+		 * Gene label of each row, or null if the rows aren't labelled.
+		 */
+		final List<String> labels;
+		final MappedBasisTensor bMatrix;
+		final double[][] paMatrix;
+
+		StoredBasis(List<String> labels, MappedBasisTensor bMatrix, double[][] paMatrix) {
+			this.labels = labels;
+			this.bMatrix = bMatrix;
+			this.paMatrix = paMatrix;
+		}
+	}
+
+	/**
+	 * Returns the key for the bases of the given expression matrix.
+	 */
+	static String computeKey(double[][] expressionMatrix, int degreesOfFreedom, int degree) {
+		MessageDigest digest = createDigest(degreesOfFreedom, degree);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(expressionMatrix.length);
+		buffer.putInt(expressionMatrix.length == 0 ? 0 : expressionMatrix[0].length);
+		for (double[] row : expressionMatrix) {
+			for (double value : row) {
+				if (buffer.remaining() < 8) {
+					digest.update(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+				buffer.putDouble(value);
+			}
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the key for the bases of the expression data in the given
+	 * file.  The key depends on the raw contents of the file, so it can be
+	 * checked without parsing it.
+	 */
+	static String computeKey(File expressionFile, int degreesOfFreedom, int degree) throws IOException {
+		MessageDigest digest = createDigest(degreesOfFreedom, degree);
+		digest.update("file".getBytes(StandardCharsets.UTF_8));
+		FileInputStream input = new FileInputStream(expressionFile);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = input.read(buffer);
+			while (read != -1) {
+				digest.update(buffer, 0, read);
+				read = input.read(buffer);
+			}
+		} finally {
+			input.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the key for single-precision bases (see
+	 * {@link FloatBasisTensor}) if <code>singlePrecision</code> is true.
+	 * They're stored separately so they're never mistaken for exact ones.
+	 */
+	static String getKey(String key, boolean singlePrecision) {
+		return singlePrecision ? key + SINGLE_PRECISION_SUFFIX : key;
+	}
+
+	/**
+	 * Returns the key for an entry that holds the bases of only some genes
+	 * of the data with the given key.  They're stored separately so they're
+	 * never mistaken for the bases of the whole data.
+	 */
+	static String getPartialKey(String key) {
+		return key + PARTIAL_SUFFIX;
+	}
+
+	private static MessageDigest createDigest(int degreesOfFreedom, int degree) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			ByteBuffer parameters = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			parameters.putInt(VERSION);
+			parameters.putInt(degreesOfFreedom);
+			parameters.putInt(degree);
+			digest.update(parameters.array());
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte value : bytes) {
+			builder.append(String.format("%02x", value));
+		}
+		return builder.toString();
+	}
+
+	File getFile(String key) {
+		return new File(directory, key + EXTENSION);
+	}
+
+	/**
+	 * Returns the stored bases for the given key, or null if there are
+	 * none or they can't be read.
+	 */
+	StoredBasis load(String key) throws IOException {
+		File file = getFile(key);
+		RandomAccessFile input;
+		try {
+			input = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			// Not stored, or just evicted
+			return null;
+		}
+		try {
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return null;
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+				return null;
+			}
+			int totalGenes = header.getInt();
+			int totalBins = header.getInt();
+			int totalConditions = header.getInt();
+			header.getInt(); // degreesOfFreedom
+			header.getInt(); // degree
+			int totalLabels = header.getInt();
+			long labelSize = header.getLong();
+			int valueSize = header.getInt();
+			if (valueSize != 4 && valueSize != 8) {
+				return null;
+			}
+
+			long paPosition = HEADER_SIZE + pad(labelSize);
+			long bPosition = paPosition + (long) totalGenes * totalBins * 8;
+			long expectedSize = bPosition + (long) totalGenes * totalBins * totalConditions * valueSize;
+			if (size != expectedSize) {
+				return null;
+			}
+
+			List<String> labels = null;
+			if (totalLabels >= 0) {
+				byte[] bytes = new byte[(int) labelSize];
+				channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, labelSize).get(bytes);
+				labels = new ArrayList<String>(totalLabels);
+				if (totalLabels > 0) {
+					labels.addAll(Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n", -1)));
+				}
+				if (labels.size() != totalLabels) {
+					return null;
+				}
+			}
+
+			double[][] paMatrix = new double[totalGenes][totalBins];
+			ByteBuffer marginals = channel.map(FileChannel.MapMode.READ_ONLY, paPosition, bPosition - paPosition).order(ByteOrder.LITTLE_ENDIAN);
+			for (int g = 0; g < totalGenes; g++) {
+				marginals.asDoubleBuffer().get(paMatrix[g]);
+				marginals.position(marginals.position() + totalBins * 8);
+			}
+
+			MappedBasisTensor bMatrix = new MappedBasisTensor(channel, bPosition, totalGenes, totalBins, totalConditions, valueSize == 4);
+			file.setLastModified(System.currentTimeMillis());
+			return new StoredBasis(labels, bMatrix, paMatrix);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Stores bases and marginals under the given key, and deletes the least
+	 * recently used entries if the store is then over its capacity.  The
+	 * entry is written to a temporary file first, so concurrent readers
+	 * never see a partial entry.  Entries larger than the whole capacity
+	 * aren't stored.
+	 *
+	 * @param labels gene label of each row, or null
+	 */
+	void save(String key, List<String> labels, BasisSource bMatrix, double[][] paMatrix, int degreesOfFreedom, int degree) throws IOException {
+		save(key, labels, bMatrix, paMatrix, degreesOfFreedom, degree, bMatrix instanceof FloatBasisTensor);
+	}
+
+	/**
+	 * Like {@link #save(String, List, BasisSource, double[][], int, int)},
+	 * but stores the bases as floats if <code>singlePrecision</code> is
+	 * true, whatever the source.
+	 */
+	void save(String key, List<String> labels, BasisSource bMatrix, double[][] paMatrix, int degreesOfFreedom, int degree, boolean singlePrecision) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create basis store: " + directory);
+		}
+
+		byte[] labelBytes = new byte[0];
+		if (labels != null) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < labels.size(); i++) {
+				if (i > 0) {
+					builder.append('\n');
+				}
+				builder.append(labels.get(i));
+			}
+			labelBytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		int totalGenes = bMatrix.getGeneCount();
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
+		int valueSize = singlePrecision ? 4 : 8;
+		long size = HEADER_SIZE + pad(labelBytes.length) + (long) totalGenes * totalBins * 8 + (long) totalGenes * totalBins * totalConditions * valueSize;
+		if (size > capacity) {
+			return;
+		}
+
+		File temporaryFile = File.createTempFile(key, ".tmp", directory);
+		try {
+			RandomAccessFile output = new RandomAccessFile(temporaryFile, "rw");
+			try {
+				FileChannel channel = output.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putLong(MAGIC);
+				buffer.putInt(VERSION);
+				buffer.putInt(totalGenes);
+				buffer.putInt(totalBins);
+				buffer.putInt(totalConditions);
+				buffer.putInt(degreesOfFreedom);
+				buffer.putInt(degree);
+				buffer.putInt(labels == null ? -1 : labels.size());
+				buffer.putLong(labelBytes.length);
+				buffer.putInt(valueSize);
+				buffer.position(HEADER_SIZE);
+				flush(channel, buffer);
+
+				channel.write(ByteBuffer.wrap(labelBytes));
+				channel.write(ByteBuffer.allocate((int) (pad(labelBytes.length) - labelBytes.length)));
+
+				for (double[] pA : paMatrix) {
+					writeDoubles(channel, buffer, pA, pA.length);
+				}
+				if (singlePrecision && bMatrix instanceof FloatBasisTensor) {
+					float[] gene = new float[totalBins * totalConditions];
+					for (int g = 0; g < totalGenes; g++) {
+						((FloatBasisTensor) bMatrix).copyGene(g, gene);
+						writeFloats(channel, buffer, gene, gene.length);
+					}
+				} else if (singlePrecision) {
+					double[] gene = new double[totalBins * totalConditions];
+					float[] values = new float[gene.length];
+					for (int g = 0; g < totalGenes; g++) {
+						bMatrix.copyGene(g, gene);
+						for (int i = 0; i < gene.length; i++) {
+							values[i] = (float) gene[i];
+						}
+						writeFloats(channel, buffer, values, values.length);
+					}
+				} else {
+					double[] gene = new double[totalBins * totalConditions];
+					for (int g = 0; g < totalGenes; g++) {
+						bMatrix.copyGene(g, gene);
+						writeDoubles(channel, buffer, gene, gene.length);
+					}
+				}
+				flush(channel, buffer);
+			} finally {
+				output.close();
+			}
+
+			File file = getFile(key);
+			if (!temporaryFile.renameTo(file)) {
+				// Another writer might have stored the same entry already
+				file.delete();
+				if (!temporaryFile.renameTo(file)) {
+					throw new IOException("Unable to write basis store entry: " + file);
+				}
+			}
+			evict(file);
+		} finally {
+			temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries, other than <code>kept</code>,
+	 * until the entries fit in the capacity.
+	 */
+	private synchronized void evict(File kept) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<File>();
+		long size = 0;
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+				entries.add(file);
+				size += file.length();
+			}
+		}
+		if (size <= capacity) {
+			return;
+		}
+
+		// Sort by last use once, since it changes as entries are loaded
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for (File file : entries) {
+			lastUsed.put(file, file.lastModified());
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(lastUsed.get(file1), lastUsed.get(file2));
+			}
+		});
+		for (File file : entries) {
+			if (size <= capacity) {
+				break;
+			}
+			if (file.equals(kept)) {
+				continue;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	private static void writeDoubles(FileChannel channel, ByteBuffer buffer, double[] values, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			if (buffer.remaining() < 8) {
+				flush(channel, buffer);
+			}
+			int count = Math.min(length - offset, buffer.remaining() / 8);
+			buffer.asDoubleBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + count * 8);
+			offset += count;
+		}
+	}
+
+	private static void writeFloats(FileChannel channel, ByteBuffer buffer, float[] values, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			if (buffer.remaining() < 4) {
+				flush(channel, buffer);
+			}
+			int count = Math.min(length - offset, buffer.remaining() / 4);
+			buffer.asFloatBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + count * 4);
+			offset += count;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Rounds up to a multiple of 8 bytes so the doubles that follow are
+	 * aligned.
+	 */
+	private static long pad(long size) {
+		return (size + 7) & ~7L;
+	}
+}
@@ -0,0 +1,133 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * B-spline basis values for a set of genes (genes x bins x conditions),
+ * backed by a single contiguous array.  The values for one gene and bin are
+ * stored contiguously across conditions, since that is the innermost loop
+ * when computing joint probabilities (see
+ * {@link Siren#computePabMatrix(BasisTensor, int, int, double[][])}).
+ * <p>
+ * A tensor can also hold just a subset of the genes, in which case only
+ * those genes take up space and the others must not be accessed.
+ */
+public class BasisTensor implements BasisSource {
+	private final int totalGenes;
+	private final int totalBins;
+	private final int totalConditions;
+	private final double[] data;
+
+	// Slot of each gene in data, or null if every gene has a slot
+	private final int[] slots;
+
+	public BasisTensor(int totalGenes, int totalBins, int totalConditions) {
+		this(totalGenes, totalBins, totalConditions, null);
+	}
+
+	/**
+	 * Creates a tensor that only holds the genes for which
+	 * <code>genes[gene]</code> is true.  If <code>genes</code> is null, it
+	 * holds every gene.
+	 */
+	public BasisTensor(int totalGenes, int totalBins, int totalConditions, boolean[] genes) {
+		int totalSlots = totalGenes;
+		if (genes == null) {
+			slots = null;
+		} else {
+			slots = new int[totalGenes];
+			totalSlots = 0;
+			for (int g = 0; g < totalGenes; g++) {
+				slots[g] = genes[g] ? totalSlots++ : -1;
+			}
+		}
+
+		long size = (long) totalSlots * totalBins * totalConditions;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Basis tensor too large: %d genes x %d bins x %d conditions", totalSlots, totalBins, totalConditions));
+		}
+		this.totalGenes = totalGenes;
+		this.totalBins = totalBins;
+		this.totalConditions = totalConditions;
+		data = new double[(int) size];
+	}
+
+	/**
+	 * Returns a tensor holding the bases of the selected genes of
+	 * <code>source</code>.  If <code>genes</code> is null, all genes are
+	 * copied.
+	 */
+	static BasisTensor copyOf(BasisSource source, boolean[] genes) {
+		BasisTensor result = new BasisTensor(source.getGeneCount(), source.getBinCount(), source.getConditionCount(), genes);
+		double[] buffer = new double[source.getBinCount() * source.getConditionCount()];
+		for (int g = 0; g < source.getGeneCount(); g++) {
+			if (result.contains(g)) {
+				source.copyGene(g, buffer);
+				System.arraycopy(buffer, 0, result.data, result.offset(g, 0), buffer.length);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int getGeneCount() {
+		return totalGenes;
+	}
+
+	@Override
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	@Override
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	/**
+	 * Returns true if this tensor holds the basis of the given gene.
+	 */
+	public boolean contains(int gene) {
+		return slots == null || slots[gene] != -1;
+	}
+
+	/**
+	 * Returns the backing array.  The value for (gene, bin, condition) is
+	 * at <code>offset(gene, bin) + condition</code>.
+	 */
+	double[] getData() {
+		return data;
+	}
+
+	/**
+	 * Returns the index of the first condition for the given gene and bin
+	 * in the backing array.
+	 */
+	int offset(int gene, int bin) {
+		int slot = slots == null ? gene : slots[gene];
+		return (slot * totalBins + bin) * totalConditions;
+	}
+
+	public double get(int gene, int bin, int condition) {
+		return data[offset(gene, bin) + condition];
+	}
+
+	public void set(int gene, int bin, int condition, double value) {
+		data[offset(gene, bin) + condition] = value;
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		System.arraycopy(data, offset(gene, 0), destination, 0, totalBins * totalConditions);
+	}
+
+	/**
+	 * Returns the basis matrix of the given gene as a bins x conditions
+	 * array.
+	 */
+	double[][] getGene(int gene) {
+		double[][] result = new double[totalBins][totalConditions];
+		for (int b = 0; b < totalBins; b++) {
+			System.arraycopy(data, offset(gene, b), result[b], 0, totalConditions);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,476 @@
+package ca.utoronto.siren.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Scores many networks outside Cytoscape, e.g. in a nightly pipeline.  Jobs
+ * are listed in a manifest, one per line, as tab-delimited paths to:
+ * <ol>
+ * <li>an expression file, formatted like Expression_Format.txt,</li>
+ * <li>a network file, formatted like Network_Format.txt,</li>
+ * <li>the output file, and</li>
+ * <li>optionally, a weight matrix (the default one is used if it's missing
+ *     or "-").</li>
+ * </ol>
+ * Relative paths are relative to the manifest.  Blank lines and lines
+ * starting with "#" are ignored.
+ * <p>
+ * Jobs that use the same expression file share its bases, which are
+ * computed once.  Groups of jobs that share an expression file run
+ * concurrently as long as their estimated memory fits in the budget.
+ * Networks are streamed: interactions are read, scored and written in
+ * chunks of {@link #CHUNK_SIZE}, so the heap needed grows with the number of
+ * genes rather than the number of interactions.  Scores are written as
+ * tab-delimited lines of gene A, gene B (both 1-based, as in the network
+ * file) and score.
+ */
+public class BatchRunner {
+	/**
+	 * Number of interactions scored and written at a time.
+	 */
+	static final int CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * Rough heap usage of one interaction: its gene pair, its score and its
+	 * share of the scoring buffers.
+	 */
+	static final int BYTES_PER_INTERACTION = 64;
+
+	static final String DEFAULT_WEIGHTS = "-";
+
+	/**
+	 * One network to score.
+	 */
+	static class Job {
+		final File expressionFile;
+		final File networkFile;
+		final File outputFile;
+
+		/**
+		 * Weight matrix file, or null for the default weight matrix.
+		 */
+		final File weightFile;
+
+		Job(File expressionFile, File networkFile, File outputFile, File weightFile) {
+			this.expressionFile = expressionFile;
+			this.networkFile = networkFile;
+			this.outputFile = outputFile;
+			this.weightFile = weightFile;
+		}
+
+		@Override
+		public String toString() {
+			return networkFile.getPath();
+		}
+	}
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	private boolean singlePrecision;
+	private BasisStore basisStore;
+
+	/**
+	 * Sets the total number of worker threads, which are shared between the
+	 * jobs that run concurrently.
+	 */
+	void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets the largest number of expression files whose jobs run at once.
+	 */
+	void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Sets the estimated heap usage, in bytes, that concurrent jobs must fit
+	 * in.  A group of jobs that doesn't fit on its own runs by itself.
+	 */
+	void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = Math.max(1, memoryBudget);
+	}
+
+	void setSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+	}
+
+	/**
+	 * Caches bases on disk between runs, unless <code>basisStore</code> is
+	 * null.
+	 */
+	void setBasisStore(BasisStore basisStore) {
+		this.basisStore = basisStore;
+	}
+
+	/**
+	 * Returns the jobs listed in the given manifest.
+	 */
+	static List<Job> readManifest(File manifest) throws IOException {
+		File directory = manifest.getAbsoluteFile().getParentFile();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8));
+		try {
+			List<Job> result = new ArrayList<Job>();
+			int lineNumber = 0;
+			String line = reader.readLine();
+			while (line != null) {
+				try {
+					lineNumber++;
+					if (line.trim().isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					String[] parts = line.split("\t");
+					if (parts.length < 3 || parts.length > 4) {
+						throw new IOException(String.format("Expected 3 or 4 tab-delimited paths on line %d of %s", lineNumber, manifest));
+					}
+					File weightFile = parts.length < 4 || DEFAULT_WEIGHTS.equals(parts[3]) ? null : resolve(directory, parts[3]);
+					result.add(new Job(resolve(directory, parts[0]), resolve(directory, parts[1]), resolve(directory, parts[2]), weightFile));
+				} finally {
+					line = reader.readLine();
+				}
+			}
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static File resolve(File directory, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+
+	/**
+	 * Runs the given jobs, reporting progress and failures to
+	 * <code>log</code>, and returns the number of jobs that failed.  A job
+	 * that fails doesn't stop the others.
+	 */
+	int run(List<Job> jobs, final Appendable log) throws InterruptedException {
+		// Group jobs by expression file, keeping the manifest's order
+		Map<File, List<Job>> groups = new LinkedHashMap<File, List<Job>>();
+		for (Job job : jobs) {
+			File key;
+			try {
+				key = job.expressionFile.getCanonicalFile();
+			} catch (IOException e) {
+				key = job.expressionFile.getAbsoluteFile();
+			}
+			List<Job> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Job>();
+				groups.put(key, group);
+			}
+			group.add(job);
+		}
+
+		if (groups.isEmpty()) {
+			return 0;
+		}
+		final int groupThreads = Math.max(1, threads / Math.min(concurrency, groups.size()));
+		final int budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget >> 20));
+		final Semaphore memory = new Semaphore(budget, true);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, groups.size()));
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (final List<Job> group : groups.values()) {
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws InterruptedException {
+						int megabytes = budget;
+						try {
+							megabytes = (int) Math.min(budget, Math.max(1, estimateMemory(group) >> 20));
+						} catch (IOException e) {
+							// Reported when the files are read
+						}
+						memory.acquire(megabytes);
+						try {
+							return runGroup(group, groupThreads, log);
+						} finally {
+							memory.release(megabytes);
+						}
+					}
+				}));
+			}
+
+			int failed = 0;
+			for (Future<Integer> result : results) {
+				try {
+					failed += result.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return failed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Estimates the heap usage of a group of jobs that share an expression
+	 * file: the expression data, its bases and their banded copy, and one
+	 * chunk of the largest network.
+	 */
+	long estimateMemory(List<Job> group) throws IOException {
+		int[] shape = TabDelimitedReader.countLinesAndFields(group.get(0).expressionFile);
+		long genes = shape[0];
+		long conditions = shape[1];
+		int valueSize = singlePrecision ? 4 : 8;
+		long result = genes * conditions * 8;
+		result += genes * conditions * Siren.DEFAULT_DEGREES_OF_FREEDOM * valueSize;
+		result += genes * conditions * ((Siren.DEFAULT_DEGREE + 1) * valueSize + 4);
+		// Only one chunk is held at a time, so there's no need to count further
+		long interactions = 0;
+		for (Job job : group) {
+			interactions = Math.max(interactions, TabDelimitedReader.countLines(job.networkFile, CHUNK_SIZE));
+		}
+		return result + interactions * BYTES_PER_INTERACTION;
+	}
+
+	/**
+	 * Runs the jobs of one expression file and returns the number that
+	 * failed.
+	 */
+	private int runGroup(List<Job> group, int threads, Appendable log) {
+		File expressionFile = group.get(0).expressionFile;
+		long startNanos = System.nanoTime();
+		PreparedBases bases;
+		try {
+			bases = prepareBases(expressionFile, threads);
+		} catch (Exception e) {
+			for (Job job : group) {
+				log(log, "Failed to score %s: unable to compute bases of %s: %s", job, expressionFile, e);
+			}
+			return group.size();
+		}
+		log(log, "Computed bases of %d genes from %s in %.1f s", bases.bandedMatrix.getGeneCount(), expressionFile, (System.nanoTime() - startNanos) / 1e9);
+
+		int failed = 0;
+		for (Job job : group) {
+			startNanos = System.nanoTime();
+			try {
+				long total = runJob(job, bases, threads);
+				double seconds = (System.nanoTime() - startNanos) / 1e9;
+				log(log, "Scored %d interactions of %s in %.1f s (%.0f interactions/s)", total, job, seconds, total / Math.max(seconds, 1e-9));
+			} catch (Exception e) {
+				log(log, "Failed to score %s: %s", job, e);
+				job.outputFile.delete();
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Bases of an expression file, prepared for scoring any number of
+	 * networks.
+	 */
+	static class PreparedBases {
+		final BasisTensor denseMatrix;
+		final BandedBasis bandedMatrix;
+		final double[][] paMatrix;
+
+		PreparedBases(BasisTensor denseMatrix, BandedBasis bandedMatrix, double[][] paMatrix) {
+			this.denseMatrix = denseMatrix;
+			this.bandedMatrix = bandedMatrix;
+			this.paMatrix = paMatrix;
+		}
+	}
+
+	PreparedBases prepareBases(File expressionFile, int threads) throws IOException {
+		int degreesOfFreedom = Siren.DEFAULT_DEGREES_OF_FREEDOM;
+		int degree = Siren.DEFAULT_DEGREE;
+		String key = basisStore == null ? null : BasisStore.getKey(BasisStore.computeKey(expressionFile, degreesOfFreedom, degree), singlePrecision);
+		BasisStore.StoredBasis stored = basisStore == null ? null : basisStore.load(key);
+
+		BasisSource bMatrix;
+		double[][] paMatrix;
+		if (stored == null) {
+			double[][] expressionMatrix = TabDelimitedReader.loadMatrix(expressionFile, threads);
+			if (expressionMatrix.length == 0) {
+				throw new IOException("No expression data");
+			}
+			if (singlePrecision) {
+				bMatrix = Siren.computeFloatBMatrix(expressionMatrix, degreesOfFreedom, degree, threads);
+			} else {
+				bMatrix = Siren.computeBMatrix(expressionMatrix, degreesOfFreedom, degree, threads);
+			}
+			paMatrix = Siren.computePaMatrix(bMatrix);
+			if (basisStore != null) {
+				basisStore.save(key, null, bMatrix, paMatrix, degreesOfFreedom, degree);
+			}
+		} else {
+			bMatrix = stored.bMatrix;
+			paMatrix = stored.paMatrix;
+		}
+
+		BandedBasis bandedMatrix = new BandedBasis(bMatrix, degree + 1, singlePrecision);
+		BasisTensor denseMatrix;
+		if (bMatrix instanceof BasisTensor) {
+			denseMatrix = (BasisTensor) bMatrix;
+		} else {
+			// Only genes that can't be banded need dense bases
+			boolean[] denseGenes = new boolean[bMatrix.getGeneCount()];
+			for (int g = 0; g < denseGenes.length; g++) {
+				denseGenes[g] = !bandedMatrix.isBanded(g);
+			}
+			denseMatrix = BasisTensor.copyOf(bMatrix, denseGenes);
+		}
+		return new PreparedBases(denseMatrix, bandedMatrix, paMatrix);
+	}
+
+	/**
+	 * Scores the network of the given job, reading its interactions and
+	 * writing their scores a chunk at a time, and returns the number of
+	 * interactions scored.
+	 */
+	long runJob(Job job, PreparedBases bases, int threads) throws IOException {
+		double[][] weightMatrix = job.weightFile == null ? Siren.DEFAULT_WEIGHT_MATRIX : TabDelimitedReader.loadMatrix(job.weightFile, 1);
+		int totalBins = bases.bandedMatrix.getBinCount();
+		if (weightMatrix.length != totalBins || weightMatrix[0].length != totalBins) {
+			throw new IOException(String.format("Weight matrix must be %d x %d", totalBins, totalBins));
+		}
+
+		NetworkStream network = new NetworkStream(job.networkFile);
+		int totalGenes = bases.bandedMatrix.getGeneCount();
+		InteractionScorer scorer = new InteractionScorer(bases.denseMatrix, bases.bandedMatrix, new ScoreKernel(weightMatrix, bases.paMatrix));
+		File parent = job.outputFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(job.outputFile), StandardCharsets.UTF_8));
+		try {
+			// The network is read, scored and written a chunk at a time, so
+			// only one chunk of interactions is ever on the heap
+			int[] genesA = new int[CHUNK_SIZE];
+			int[] genesB = new int[CHUNK_SIZE];
+			int[][] chunk = new int[CHUNK_SIZE][2];
+			long start = 0;
+			int count = network.read(genesA, genesB);
+			while (count > 0) {
+				for (int i = 0; i < count; i++) {
+					if (!isGene(genesA[i], totalGenes) || !isGene(genesB[i], totalGenes)) {
+						throw new IOException(String.format("Interaction %d refers to a gene that isn't in %s", start + i + 1, job.expressionFile));
+					}
+					chunk[i][0] = genesA[i];
+					chunk[i][1] = genesB[i];
+				}
+				writeScores(scorer, count == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, count), threads, writer);
+				start += count;
+				count = network.read(genesA, genesB);
+			}
+		} finally {
+			writer.close();
+		}
+		return network.getTotalRead();
+	}
+
+	private static boolean isGene(int gene, int totalGenes) {
+		return gene >= 0 && gene < totalGenes;
+	}
+
+	/**
+	 * Scores a chunk of interactions and writes their scores.
+	 */
+	static void writeScores(InteractionScorer scorer, int[][] chunk, int threads, Writer writer) throws IOException {
+		double[] scores = scorer.computeScores(chunk, threads);
+		StringBuilder buffer = new StringBuilder();
+		for (int i = 0; i < chunk.length; i++) {
+			buffer.append(chunk[i][0] + 1).append('\t').append(chunk[i][1] + 1).append('\t').append(scores[i]).append('\n');
+		}
+		writer.append(buffer);
+	}
+
+	private static void log(Appendable log, String format, Object... args) {
+		synchronized (log) {
+			try {
+				log.append(String.format(Locale.ROOT, format, args)).append('\n');
+			} catch (IOException e) {
+				// Logging is best effort
+			}
+		}
+	}
+
+	static void printUsage() {
+		System.err.println("Usage: BatchRunner [options] manifest");
+		System.err.println("Each manifest line is: expression file<TAB>network file<TAB>output file[<TAB>weight matrix file]");
+		System.err.println("Options:");
+		System.err.println("  -threads N          worker threads (default: number of processors)");
+		System.err.println("  -concurrency N      expression files processed at once (default: number of processors)");
+		System.err.println("  -memory MB          memory budget for concurrent jobs (default: 3/4 of the heap)");
+		System.err.println("  -single-precision   store bases in single precision");
+		System.err.println("  -store DIRECTORY    cache bases in the given directory");
+		System.err.println("  -store-limit MB     largest total size of the cached bases (default: " + (BasisStore.DEFAULT_CAPACITY >> 20) + ")");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		BatchRunner runner = new BatchRunner();
+		File manifest = null;
+		File storeDirectory = null;
+		long storeCapacity = BasisStore.getDefaultCapacity();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String argument = args[i];
+				if ("-threads".equals(argument)) {
+					runner.setThreads(Integer.parseInt(args[++i]));
+				} else if ("-concurrency".equals(argument)) {
+					runner.setConcurrency(Integer.parseInt(args[++i]));
+				} else if ("-memory".equals(argument)) {
+					runner.setMemoryBudget(Long.parseLong(args[++i]) << 20);
+				} else if ("-single-precision".equals(argument)) {
+					runner.setSinglePrecision(true);
+				} else if ("-store".equals(argument)) {
+					storeDirectory = new File(args[++i]);
+				} else if ("-store-limit".equals(argument)) {
+					storeCapacity = Long.parseLong(args[++i]) << 20;
+				} else if (manifest == null && !argument.startsWith("-")) {
+					manifest = new File(argument);
+				} else {
+					throw new IllegalArgumentException("Unexpected argument: " + argument);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Missing or malformed option values
+			System.err.println("Invalid arguments: " + e);
+			manifest = null;
+		}
+		if (manifest == null) {
+			printUsage();
+			System.exit(2);
+		}
+		if (storeDirectory != null) {
+			storeDirectory.mkdirs();
+			runner.setBasisStore(new BasisStore(storeDirectory, storeCapacity));
+		}
+
+		List<Job> jobs = readManifest(manifest);
+		int failed = runner.run(jobs, System.err);
+		if (failed > 0) {
+			System.err.printf("%d of %d jobs failed%n", failed, jobs.size());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Register-blocked versions of the inner loops of scoring.  A row of gene
+ * A's basis is multiplied against four of gene B's rows per pass over the
+ * conditions, so each value of A is loaded once for four products and the
+ * four sums are independent chains that the JIT can schedule side by side
+ * instead of waiting on one another.  Each sum still adds its products in
+ * condition order, so results equal those of the scalar loops.
+ * <p>
+ * This stands in for SIMD kernels: the bundle is compiled for Java 7 and
+ * runs in Cytoscape's JVM, where <code>jdk.incubator.vector</code> isn't
+ * available, so the blocking is plain Java and relies on the JIT.  It's
+ * used by the dense joint probability loops and, for single-precision
+ * bands of width 3 and 4, by {@link BandedBasis}.  Setting the system
+ * property {@value #SCALAR_PROPERTY} to true forces the scalar loops, e.g.
+ * to compare their speed.
+ */
+class BlockedKernels {
+	static final String SCALAR_PROPERTY = "siren.scalarKernels";
+
+	/**
+	 * Number of gene B rows accumulated per pass.
+	 */
+	static final int BLOCK_SIZE = 4;
+
+	private static final boolean ENABLED = !Boolean.getBoolean(SCALAR_PROPERTY);
+
+	/**
+	 * Returns whether the blocked kernels are in use.
+	 */
+	static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Adds the products of row <code>binA</code> of <code>geneA</code> with
+	 * each row y of <code>geneB</code>, over conditions
+	 * [<code>start</code>, <code>end</code>), to <code>row[y]</code>.
+	 */
+	static void accumulateRow(BasisTensor bMatrix, int geneA, int binA, int geneB, int start, int end, double[] row) {
+		if (ENABLED) {
+			accumulateBlocked(bMatrix, geneA, binA, geneB, start, end, row);
+		} else {
+			accumulateScalar(bMatrix, geneA, binA, geneB, start, end, row);
+		}
+	}
+
+	static void accumulateScalar(BasisTensor bMatrix, int geneA, int binA, int geneB, int start, int end, double[] row) {
+		double[] data = bMatrix.getData();
+		int offsetA = bMatrix.offset(geneA, binA);
+		for (int y = 0; y < row.length; y++) {
+			int offsetB = bMatrix.offset(geneB, y);
+			double sum = row[y];
+			for (int c = start; c < end; c++) {
+				sum += data[offsetA + c] * data[offsetB + c];
+			}
+			row[y] = sum;
+		}
+	}
+
+	static void accumulateBlocked(BasisTensor bMatrix, int geneA, int binA, int geneB, int start, int end, double[] row) {
+		double[] data = bMatrix.getData();
+		int offsetA = bMatrix.offset(geneA, binA);
+		int totalBins = row.length;
+		int y = 0;
+		for (; y + BLOCK_SIZE <= totalBins; y += BLOCK_SIZE) {
+			int offsetB0 = bMatrix.offset(geneB, y);
+			int offsetB1 = bMatrix.offset(geneB, y + 1);
+			int offsetB2 = bMatrix.offset(geneB, y + 2);
+			int offsetB3 = bMatrix.offset(geneB, y + 3);
+			double sum0 = row[y];
+			double sum1 = row[y + 1];
+			double sum2 = row[y + 2];
+			double sum3 = row[y + 3];
+			for (int c = start; c < end; c++) {
+				double a = data[offsetA + c];
+				sum0 += a * data[offsetB0 + c];
+				sum1 += a * data[offsetB1 + c];
+				sum2 += a * data[offsetB2 + c];
+				sum3 += a * data[offsetB3 + c];
+			}
+			row[y] = sum0;
+			row[y + 1] = sum1;
+			row[y + 2] = sum2;
+			row[y + 3] = sum3;
+		}
+		for (; y < totalBins; y++) {
+			int offsetB = bMatrix.offset(geneB, y);
+			double sum = row[y];
+			for (int c = start; c < end; c++) {
+				sum += data[offsetA + c] * data[offsetB + c];
+			}
+			row[y] = sum;
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package ca.utoronto.siren.internal;
 
+import java.io.File;
 import java.util.Properties;
 
+import org.cytoscape.application.CyApplicationConfiguration;
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.events.NetworkAboutToBeDestroyedListener;
 import org.cytoscape.service.util.AbstractCyActivator;
 import org.cytoscape.task.NetworkTaskFactory;
 import org.cytoscape.work.ServiceProperties;
@@ -9,9 +13,22 @@ import org.osgi.framework.BundleContext;
 
 public class CyActivator extends AbstractCyActivator {
     public void start(BundleContext context) {
+    	CyApplicationConfiguration configuration = getService(context, CyApplicationConfiguration.class);
+    	BasisStore basisStore = new BasisStore(new File(configuration.getConfigurationDirectoryLocation(), "siren"));
+    	BasisCache basisCache = new BasisCache(BasisCache.getDefaultCapacity());
+    	registerService(context, basisCache, BasisCache.class, new Properties());
+    	CyEventHelper eventHelper = getService(context, CyEventHelper.class);
+    	SirenStateManager stateManager = new SirenStateManager();
+    	registerService(context, stateManager, NetworkAboutToBeDestroyedListener.class, new Properties());
+    	
     	Properties properties = new Properties();
     	properties.put(ServiceProperties.PREFERRED_MENU, ServiceProperties.APPS_MENU);
     	properties.put(ServiceProperties.TITLE, "SIREN");
-		registerService(context, new SirenNetworkTaskFactory(), NetworkTaskFactory.class, properties);
+		registerService(context, new SirenNetworkTaskFactory(basisStore, basisCache, stateManager, eventHelper), NetworkTaskFactory.class, properties);
+		
+		Properties updateProperties = new Properties();
+		updateProperties.put(ServiceProperties.PREFERRED_MENU, ServiceProperties.APPS_MENU);
+		updateProperties.put(ServiceProperties.TITLE, "Update SIREN scores");
+		registerService(context, new UpdateSirenNetworkTaskFactory(stateManager, eventHelper), NetworkTaskFactory.class, updateProperties);
     }
 }
@@ -0,0 +1,77 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * B-spline basis values stored in single precision, laid out as in
+ * {@link BasisTensor}.  Takes half the memory of a {@link BasisTensor};
+ * values are widened back to doubles when read, and joint probabilities and
+ * scores are still accumulated in double precision.
+ */
+public class FloatBasisTensor implements BasisSource {
+	private final int totalGenes;
+	private final int totalBins;
+	private final int totalConditions;
+	private final float[] data;
+
+	public FloatBasisTensor(int totalGenes, int totalBins, int totalConditions) {
+		long size = (long) totalGenes * totalBins * totalConditions;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Basis tensor too large: %d genes x %d bins x %d conditions", totalGenes, totalBins, totalConditions));
+		}
+		this.totalGenes = totalGenes;
+		this.totalBins = totalBins;
+		this.totalConditions = totalConditions;
+		data = new float[(int) size];
+	}
+
+	@Override
+	public int getGeneCount() {
+		return totalGenes;
+	}
+
+	@Override
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	@Override
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	int offset(int gene, int bin) {
+		return (gene * totalBins + bin) * totalConditions;
+	}
+
+	public double get(int gene, int bin, int condition) {
+		return data[offset(gene, bin) + condition];
+	}
+
+	/**
+	 * Stores the given bins x conditions basis of a gene, rounded to single
+	 * precision.
+	 */
+	void setGene(int gene, double[] source) {
+		int offset = offset(gene, 0);
+		int size = totalBins * totalConditions;
+		for (int i = 0; i < size; i++) {
+			data[offset + i] = (float) source[i];
+		}
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		int offset = offset(gene, 0);
+		int size = totalBins * totalConditions;
+		for (int i = 0; i < size; i++) {
+			destination[i] = data[offset + i];
+		}
+	}
+
+	/**
+	 * Copies the bins x conditions basis of the given gene into
+	 * <code>destination</code> without widening it.
+	 */
+	void copyGene(int gene, float[] destination) {
+		System.arraycopy(data, offset(gene, 0), destination, 0, totalBins * totalConditions);
+	}
+}
@@ -0,0 +1,41 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Like {@link GeneBases}, for bases held in single precision (see
+ * {@link FloatBasisTensor}).  Values are widened to doubles when read.
+ */
+class FloatGeneBases implements BasisSource {
+	private final float[][] bases;
+	private final int totalBins;
+	private final int totalConditions;
+
+	FloatGeneBases(float[][] bases, int totalBins, int totalConditions) {
+		this.bases = bases;
+		this.totalBins = totalBins;
+		this.totalConditions = totalConditions;
+	}
+
+	@Override
+	public int getGeneCount() {
+		return bases.length;
+	}
+
+	@Override
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	@Override
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		float[] basis = bases[gene];
+		int size = totalBins * totalConditions;
+		for (int i = 0; i < size; i++) {
+			destination[i] = basis[i];
+		}
+	}
+}
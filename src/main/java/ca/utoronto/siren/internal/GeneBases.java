@@ -0,0 +1,38 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Bases of a set of genes that are each held in their own bins x conditions
+ * array, e.g. as fetched from a {@link BasisCache}.  Genes can share
+ * arrays.
+ */
+class GeneBases implements BasisSource {
+	private final double[][] bases;
+	private final int totalBins;
+	private final int totalConditions;
+
+	GeneBases(double[][] bases, int totalBins, int totalConditions) {
+		this.bases = bases;
+		this.totalBins = totalBins;
+		this.totalConditions = totalConditions;
+	}
+
+	@Override
+	public int getGeneCount() {
+		return bases.length;
+	}
+
+	@Override
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	@Override
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		System.arraycopy(bases[gene], 0, destination, 0, totalBins * totalConditions);
+	}
+}
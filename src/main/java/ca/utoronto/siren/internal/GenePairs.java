@@ -0,0 +1,117 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Arrays;
+
+/**
+ * The distinct unordered gene pairs of a network matrix.  Networks often
+ * contain the same interaction more than once, as parallel edges or in both
+ * directions, and the joint probability matrix of (B, A) is the transpose
+ * of that of (A, B), so each distinct pair only needs one joint probability
+ * matrix.  Since the weight matrix needn't be symmetric, a pair is scored in
+ * each orientation that some interaction uses.
+ * <p>
+ * Pairs are stored with the lower gene first, ordered by that gene.
+ */
+class GenePairs {
+	private static final byte FORWARD = 1;
+	private static final byte REVERSE = 2;
+
+	private final int[][] pairs;
+
+	// Pair of each interaction, and whether it's in reverse orientation
+	private final int[] pairIndexes;
+	private final boolean[] isReversed;
+
+	// Orientations each pair is needed in
+	private final byte[] orientations;
+
+	private final double[] forwardScores;
+	private final double[] reverseScores;
+
+	GenePairs(int[][] networkMatrix, int totalGenes) {
+		int totalInteractions = networkMatrix.length;
+		pairIndexes = new int[totalInteractions];
+		isReversed = new boolean[totalInteractions];
+
+		// Counting sort of the interactions by their lower gene
+		int[] starts = new int[totalGenes + 1];
+		for (int[] interaction : networkMatrix) {
+			starts[Math.min(interaction[0], interaction[1]) + 1]++;
+		}
+		for (int g = 0; g < totalGenes; g++) {
+			starts[g + 1] += starts[g];
+		}
+		int[] sortedInteractions = new int[totalInteractions];
+		int[] positions = Arrays.copyOf(starts, totalGenes);
+		for (int i = 0; i < totalInteractions; i++) {
+			int low = Math.min(networkMatrix[i][0], networkMatrix[i][1]);
+			sortedInteractions[positions[low]++] = i;
+		}
+
+		// Within each lower gene, find the distinct higher genes.  lastLow
+		// records which lower gene last saw each higher gene, so no clearing
+		// is needed between lower genes.
+		int[] lastLow = new int[totalGenes];
+		Arrays.fill(lastLow, -1);
+		int[] pairOfHigh = new int[totalGenes];
+		int[][] uniquePairs = new int[totalInteractions][];
+		byte[] uniqueOrientations = new byte[totalInteractions];
+		int totalPairs = 0;
+		for (int low = 0; low < totalGenes; low++) {
+			for (int k = starts[low]; k < starts[low + 1]; k++) {
+				int i = sortedInteractions[k];
+				int[] interaction = networkMatrix[i];
+				int high = Math.max(interaction[0], interaction[1]);
+				if (lastLow[high] != low) {
+					lastLow[high] = low;
+					pairOfHigh[high] = totalPairs;
+					uniquePairs[totalPairs++] = new int[] { low, high };
+				}
+				int pair = pairOfHigh[high];
+				pairIndexes[i] = pair;
+				isReversed[i] = interaction[0] != low;
+				uniqueOrientations[pair] |= isReversed[i] ? REVERSE : FORWARD;
+			}
+		}
+
+		pairs = Arrays.copyOf(uniquePairs, totalPairs);
+		orientations = Arrays.copyOf(uniqueOrientations, totalPairs);
+		forwardScores = new double[totalPairs];
+		reverseScores = new double[totalPairs];
+	}
+
+	/**
+	 * Returns the distinct pairs, as a network matrix.
+	 */
+	int[][] getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * Scores the given pair in each orientation it's needed in, given the
+	 * joint probability matrix of its genes in stored order or, if
+	 * <code>isTransposed</code>, in reverse order.
+	 */
+	void computeScores(ScoreKernel kernel, int pair, double[][] pABMatrix, boolean isTransposed) {
+		int geneA = pairs[pair][0];
+		int geneB = pairs[pair][1];
+		if ((orientations[pair] & FORWARD) != 0) {
+			forwardScores[pair] = isTransposed ? kernel.computeTransposedScore(pABMatrix, geneA, geneB) : kernel.computeScore(pABMatrix, geneA, geneB);
+		}
+		if ((orientations[pair] & REVERSE) != 0) {
+			reverseScores[pair] = isTransposed ? kernel.computeScore(pABMatrix, geneB, geneA) : kernel.computeTransposedScore(pABMatrix, geneB, geneA);
+		}
+	}
+
+	/**
+	 * Returns the score of each interaction of the original network matrix.
+	 */
+	double[] getScores() {
+		double[] result = new double[pairIndexes.length];
+		for (int i = 0; i < result.length; i++) {
+			int pair = pairIndexes[i];
+			result[i] = isReversed[i] ? reverseScores[pair] : forwardScores[pair];
+		}
+		return result;
+	}
+}
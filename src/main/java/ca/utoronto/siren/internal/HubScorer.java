@@ -0,0 +1,169 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Scores gene pairs against the dense basis in batches that share a gene.
+ * Each interaction is assigned to whichever of its genes has more
+ * interactions (its hub), and the joint probability matrices of a hub and a
+ * tile of its neighbours are computed together as a blocked
+ * B<sub>hub</sub> x [B<sub>n1</sub> ... B<sub>nk</sub>]<sup>T</sup>
+ * product.  Conditions are processed in blocks small enough that the hub's
+ * rows stay in cache while they are reused for every neighbour in the tile.
+ * <p>
+ * Rows are accumulated with {@link BlockedKernels}.  Each cell still adds
+ * its products in condition order, so the joint probabilities are identical
+ * to those of
+ * {@link Siren#computePabMatrix(BasisTensor, int, int, double[][])}.
+ */
+class HubScorer {
+	/**
+	 * Number of neighbours whose joint probability matrices are computed
+	 * together.
+	 */
+	static final int TILE_SIZE = 8;
+
+	/**
+	 * Number of conditions processed per block.  At 10 bins, one gene's
+	 * block takes 10KB.
+	 */
+	static final int CONDITION_BLOCK_SIZE = 128;
+
+	/**
+	 * Largest number of interactions of a single hub handled by one work
+	 * unit, so that large hubs are spread across workers.
+	 */
+	static final int MAXIMUM_BATCH_SIZE = 256;
+
+	private final BasisTensor bMatrix;
+	private final ScoreKernel kernel;
+	private final GenePairs pairs;
+	private final int[][] networkMatrix;
+
+	HubScorer(BasisTensor bMatrix, ScoreKernel kernel, GenePairs pairs) {
+		this.bMatrix = bMatrix;
+		this.kernel = kernel;
+		this.pairs = pairs;
+		this.networkMatrix = pairs.getPairs();
+	}
+
+	/**
+	 * Computes the scores of the given pairs (indexes into
+	 * {@link GenePairs#getPairs()}) and stores them in the pairs.
+	 */
+	void computeScores(int[] interactions, int threads) {
+		if (interactions.length == 0) {
+			return;
+		}
+
+		final int[] hubs = new int[interactions.length];
+		final int[] sortedInteractions = new int[interactions.length];
+		groupByHub(interactions, hubs, sortedInteractions);
+
+		// Split each hub's interactions into batches of bounded size
+		final int[] batchStarts = createBatches(hubs);
+		int totalBatches = batchStarts.length - 1;
+
+		Siren.runInParallel(threads, totalBatches, new Siren.RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				int totalBins = bMatrix.getBinCount();
+				double[][][] pABMatrices = new double[TILE_SIZE][totalBins][totalBins];
+				for (int b = start; b < end; b++) {
+					int from = batchStarts[b];
+					int to = batchStarts[b + 1];
+					computeScores(hubs[from], sortedInteractions, from, to, pABMatrices);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sorts the interactions by hub.  On return, <code>hubs[i]</code> is
+	 * the hub of interaction <code>sortedInteractions[i]</code>.
+	 */
+	void groupByHub(int[] interactions, int[] hubs, int[] sortedInteractions) {
+		int totalGenes = bMatrix.getGeneCount();
+		int[] degrees = new int[totalGenes];
+		for (int i : interactions) {
+			degrees[networkMatrix[i][0]]++;
+			degrees[networkMatrix[i][1]]++;
+		}
+
+		// Counting sort by hub
+		int[] starts = new int[totalGenes + 1];
+		int[] hubOf = new int[interactions.length];
+		for (int k = 0; k < interactions.length; k++) {
+			int geneA = networkMatrix[interactions[k]][0];
+			int geneB = networkMatrix[interactions[k]][1];
+			int hub = degrees[geneA] > degrees[geneB] || (degrees[geneA] == degrees[geneB] && geneA <= geneB) ? geneA : geneB;
+			hubOf[k] = hub;
+			starts[hub + 1]++;
+		}
+		for (int g = 0; g < totalGenes; g++) {
+			starts[g + 1] += starts[g];
+		}
+		for (int k = 0; k < interactions.length; k++) {
+			int position = starts[hubOf[k]]++;
+			hubs[position] = hubOf[k];
+			sortedInteractions[position] = interactions[k];
+		}
+	}
+
+	static int[] createBatches(int[] hubs) {
+		int[] starts = new int[hubs.length + 1];
+		int totalBatches = 0;
+		int batchStart = 0;
+		for (int i = 1; i <= hubs.length; i++) {
+			if (i == hubs.length || hubs[i] != hubs[batchStart] || i - batchStart == MAXIMUM_BATCH_SIZE) {
+				starts[totalBatches++] = batchStart;
+				batchStart = i;
+			}
+		}
+		starts[totalBatches] = hubs.length;
+
+		int[] result = new int[totalBatches + 1];
+		System.arraycopy(starts, 0, result, 0, totalBatches + 1);
+		return result;
+	}
+
+	private void computeScores(int hub, int[] sortedInteractions, int from, int to, double[][][] pABMatrices) {
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
+		int[] neighbours = new int[TILE_SIZE];
+
+		for (int tileStart = from; tileStart < to; tileStart += TILE_SIZE) {
+			int tileSize = Math.min(TILE_SIZE, to - tileStart);
+			for (int t = 0; t < tileSize; t++) {
+				int[] interaction = networkMatrix[sortedInteractions[tileStart + t]];
+				neighbours[t] = interaction[0] == hub ? interaction[1] : interaction[0];
+				Siren.clearMatrix(pABMatrices[t], 0);
+			}
+
+			for (int blockStart = 0; blockStart < totalConditions; blockStart += CONDITION_BLOCK_SIZE) {
+				int blockEnd = Math.min(totalConditions, blockStart + CONDITION_BLOCK_SIZE);
+				for (int t = 0; t < tileSize; t++) {
+					int neighbour = neighbours[t];
+					double[][] pABMatrix = pABMatrices[t];
+					for (int x = 0; x < totalBins; x++) {
+						BlockedKernels.accumulateRow(bMatrix, hub, x, neighbour, blockStart, blockEnd, pABMatrix[x]);
+					}
+				}
+			}
+
+			for (int t = 0; t < tileSize; t++) {
+				int interactionIndex = sortedInteractions[tileStart + t];
+				int[] interaction = networkMatrix[interactionIndex];
+				double[][] pABMatrix = pABMatrices[t];
+				for (int x = 0; x < totalBins; x++) {
+					double[] row = pABMatrix[x];
+					for (int y = 0; y < totalBins; y++) {
+						row[y] /= totalConditions;
+					}
+				}
+
+				// The hub is gene A of its joint probability matrix, so it's
+				// transposed for pairs where the hub is gene B.
+				pairs.computeScores(kernel, interactionIndex, pABMatrix, interaction[0] != hub);
+			}
+		}
+	}
+}
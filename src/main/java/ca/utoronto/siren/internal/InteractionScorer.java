@@ -0,0 +1,60 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Bases and marginals prepared for scoring interactions over several calls,
+ * e.g. to score a large network in chunks.  The banded basis, the dense
+ * copy of the genes that need it and the log marginals are built once.
+ */
+class InteractionScorer {
+	private final BasisTensor denseMatrix;
+	private final BandedBasis bandedMatrix;
+	private final ScoreKernel kernel;
+
+	/**
+	 * @param networkMatrix every interaction that will be scored, which
+	 *                      determines which genes need a dense basis if
+	 *                      <code>bMatrix</code> isn't on the heap
+	 */
+	InteractionScorer(BasisSource bMatrix, double[][] paMatrix, double[][] weightMatrix, int[][] networkMatrix, int degree) {
+		this(bMatrix, paMatrix, weightMatrix, networkMatrix, degree, bMatrix instanceof FloatBasisTensor || (bMatrix instanceof MappedBasisTensor && ((MappedBasisTensor) bMatrix).isSinglePrecision()));
+	}
+
+	/**
+	 * @param singlePrecision whether to keep the banded basis in single
+	 *                        precision (see {@link FloatBasisTensor})
+	 */
+	InteractionScorer(BasisSource bMatrix, double[][] paMatrix, double[][] weightMatrix, int[][] networkMatrix, int degree, boolean singlePrecision) {
+		bandedMatrix = new BandedBasis(bMatrix, degree + 1, singlePrecision);
+		if (bMatrix instanceof BasisTensor) {
+			denseMatrix = (BasisTensor) bMatrix;
+		} else {
+			denseMatrix = BasisTensor.copyOf(bMatrix, Siren.getDenseGenes(bandedMatrix, networkMatrix));
+		}
+		kernel = new ScoreKernel(weightMatrix, paMatrix);
+	}
+
+	/**
+	 * Scores with bases that have already been prepared, e.g. shared by
+	 * several networks with different weight matrices.
+	 *
+	 * @param denseMatrix dense bases of (at least) the genes that aren't
+	 *                    banded
+	 */
+	InteractionScorer(BasisTensor denseMatrix, BandedBasis bandedMatrix, ScoreKernel kernel) {
+		this.denseMatrix = denseMatrix;
+		this.bandedMatrix = bandedMatrix;
+		this.kernel = kernel;
+	}
+
+	double[] computeScores(int[][] networkMatrix, int threads) {
+		return Siren.computeScores(denseMatrix, bandedMatrix, kernel, networkMatrix, threads);
+	}
+
+	/**
+	 * Returns a permutation test of the interactions this scores, sharing
+	 * its bases.
+	 */
+	PermutationTest createPermutationTest() {
+		return new PermutationTest(denseMatrix, bandedMatrix, kernel);
+	}
+}
@@ -0,0 +1,88 @@
+package ca.utoronto.siren.internal;
+
+/**
+ * Map from long keys, such as SUIDs, to non-negative ints, e.g. the rows or
+ * indexes of nodes.  Keys and values are stored in primitive arrays with
+ * open addressing, so lookups don't box or allocate.
+ */
+class LongIntMap {
+	private static final int MISSING = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+
+	LongIntMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			values[i] = MISSING;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value of the given key, or -1 if it has none.
+	 */
+	int get(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; values[i] != MISSING; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return MISSING;
+	}
+
+	boolean containsKey(long key) {
+		return get(key) != MISSING;
+	}
+
+	/**
+	 * Sets the value of the given key, which must not be negative.
+	 */
+	void put(long key, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value: " + value);
+		}
+		if ((size + 1) * 2 > keys.length) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			allocate(keys.length * 2);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != MISSING) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != MISSING && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		if (values[i] == MISSING) {
+			size++;
+		}
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private static int hash(long key) {
+		// SUIDs are sequential, so spread them over the table
+		key *= 0x9e3779b97f4a7c15L;
+		return (int) (key ^ (key >>> 32));
+	}
+}
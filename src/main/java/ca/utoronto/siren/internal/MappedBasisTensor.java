@@ -0,0 +1,103 @@
+package ca.utoronto.siren.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * B-spline bases read from a memory-mapped file (see {@link BasisStore}).
+ * The values stay off the Java heap; genes are laid out as in
+ * {@link BasisTensor}, as doubles or, for single-precision bases, as floats
+ * that are widened when read.  Since a single mapping is limited to 2GB,
+ * the file is mapped in segments of whole genes.
+ */
+class MappedBasisTensor implements BasisSource {
+	static final long MAXIMUM_SEGMENT_SIZE = 1 << 30;
+
+	private final int totalGenes;
+	private final int totalBins;
+	private final int totalConditions;
+	private final int genesPerSegment;
+
+	// Segments as doubles or floats; the other is null
+	private final DoubleBuffer[] segments;
+	private final FloatBuffer[] floatSegments;
+
+	/**
+	 * Maps the tensor starting at byte <code>position</code> of the given
+	 * channel, whose values are floats if <code>singlePrecision</code> is
+	 * true and doubles otherwise.
+	 */
+	MappedBasisTensor(FileChannel channel, long position, int totalGenes, int totalBins, int totalConditions, boolean singlePrecision) throws IOException {
+		this.totalGenes = totalGenes;
+		this.totalBins = totalBins;
+		this.totalConditions = totalConditions;
+
+		long geneSize = (long) totalBins * totalConditions * (singlePrecision ? 4 : 8);
+		genesPerSegment = (int) Math.max(1, Math.min(totalGenes, MAXIMUM_SEGMENT_SIZE / Math.max(1, geneSize)));
+		int totalSegments = totalGenes == 0 ? 0 : (totalGenes + genesPerSegment - 1) / genesPerSegment;
+		segments = singlePrecision ? null : new DoubleBuffer[totalSegments];
+		floatSegments = singlePrecision ? new FloatBuffer[totalSegments] : null;
+		for (int s = 0; s < totalSegments; s++) {
+			int genes = Math.min(genesPerSegment, totalGenes - s * genesPerSegment);
+			long start = position + s * genesPerSegment * geneSize;
+			ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, genes * geneSize).order(ByteOrder.LITTLE_ENDIAN);
+			if (singlePrecision) {
+				floatSegments[s] = segment.asFloatBuffer();
+			} else {
+				segments[s] = segment.asDoubleBuffer();
+			}
+		}
+	}
+
+	@Override
+	public int getGeneCount() {
+		return totalGenes;
+	}
+
+	@Override
+	public int getBinCount() {
+		return totalBins;
+	}
+
+	@Override
+	public int getConditionCount() {
+		return totalConditions;
+	}
+
+	/**
+	 * Returns whether the values are stored in single precision.
+	 */
+	boolean isSinglePrecision() {
+		return floatSegments != null;
+	}
+
+	public double get(int gene, int bin, int condition) {
+		int offset = ((gene % genesPerSegment) * totalBins + bin) * totalConditions;
+		if (floatSegments != null) {
+			return floatSegments[gene / genesPerSegment].get(offset + condition);
+		}
+		return segments[gene / genesPerSegment].get(offset + condition);
+	}
+
+	@Override
+	public void copyGene(int gene, double[] destination) {
+		int size = totalBins * totalConditions;
+		int offset = (gene % genesPerSegment) * size;
+		if (floatSegments != null) {
+			// Absolute gets don't touch the shared position
+			FloatBuffer segment = floatSegments[gene / genesPerSegment];
+			for (int i = 0; i < size; i++) {
+				destination[i] = segment.get(offset + i);
+			}
+			return;
+		}
+		// Work on a duplicate so concurrent readers don't share a position
+		DoubleBuffer segment = segments[gene / genesPerSegment].duplicate();
+		segment.position(offset);
+		segment.get(destination, 0, size);
+	}
+}
@@ -0,0 +1,73 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the interactions of a network file a chunk at a time, so networks
+ * needn't fit on the heap.  The file is memory-mapped and parsed as in
+ * {@link TabDelimitedReader#loadNetworkMatrix(File, int)}, but each chunk's
+ * genes go into primitive arrays supplied (and reused) by the caller
+ * instead of an array per interaction.
+ */
+class NetworkStream {
+	private final File file;
+	private final List<ByteBuffer> chunks;
+
+	// Fields of the current line
+	private final int[] values;
+
+	private int chunkIndex;
+	private int position;
+	private long totalRead;
+
+	NetworkStream(File file) throws IOException {
+		this.file = file;
+		chunks = TabDelimitedReader.mapChunks(file, 1);
+		int columns = chunks.isEmpty() ? 0 : TabDelimitedReader.countFields(chunks.get(0));
+		values = new int[Math.max(2, columns)];
+	}
+
+	/**
+	 * Reads up to <code>genesA.length</code> interactions into
+	 * <code>genesA</code> and <code>genesB</code> and returns the number
+	 * read, which is 0 once the file is exhausted.  Genes are 1-based in the
+	 * file and 0-based in the result; lines with fewer than two genes give
+	 * -1 for the missing ones.
+	 */
+	int read(int[] genesA, int[] genesB) throws IOException {
+		int count = 0;
+		while (count < genesA.length && chunkIndex < chunks.size()) {
+			ByteBuffer chunk = chunks.get(chunkIndex);
+			int limit = chunk.limit();
+			if (position >= limit) {
+				chunkIndex++;
+				position = 0;
+				continue;
+			}
+			Arrays.fill(values, 0);
+			try {
+				// Each line is an interaction, so lines are numbered by the
+				// total read
+				position = TabDelimitedReader.parseInts(chunk, position, limit, values, totalRead);
+			} catch (TabDelimitedReader.LineException e) {
+				throw e.locate(file, 0);
+			}
+			genesA[count] = values[0] - 1;
+			genesB[count] = values[1] - 1;
+			count++;
+			totalRead++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of interactions read so far.
+	 */
+	long getTotalRead() {
+		return totalRead;
+	}
+}
@@ -0,0 +1,163 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Random;
+
+/**
+ * Estimates the significance of SIREN scores by permutation.  For each
+ * interaction (A, B), the conditions of gene B are shuffled relative to those
+ * of gene A, which keeps both marginals but breaks any dependence between
+ * the genes.  The p-value is the fraction of permutations whose score is at
+ * least as large in magnitude as the observed one.
+ * <p>
+ * Bases are computed once; permutations are index arrays applied while
+ * computing the joint probability matrix.  Each interaction's permutations
+ * are drawn from a generator seeded from its gene pair, so results don't
+ * depend on the number of threads.
+ * <p>
+ * Testing stops early once enough permutations have reached the observed
+ * score, since the interaction is then clearly not significant (the
+ * sequential estimate of Besag and Clifford, 1991).
+ */
+class PermutationTest {
+	static final int DEFAULT_PERMUTATIONS = 1000;
+	static final int DEFAULT_EXCEEDANCES = 10;
+	static final long DEFAULT_SEED = 1;
+
+	private final BasisTensor bMatrix;
+	private final BandedBasis bandedMatrix;
+	private final ScoreKernel kernel;
+
+	PermutationTest(BasisSource bMatrix, double[][] paMatrix, double[][] weightMatrix, int degree, int[][] networkMatrix) {
+		bandedMatrix = new BandedBasis(bMatrix, degree + 1);
+		if (bMatrix instanceof BasisTensor) {
+			this.bMatrix = (BasisTensor) bMatrix;
+		} else {
+			this.bMatrix = BasisTensor.copyOf(bMatrix, Siren.getDenseGenes(bandedMatrix, networkMatrix));
+		}
+		kernel = new ScoreKernel(weightMatrix, paMatrix);
+	}
+
+	/**
+	 * Tests with bases that have already been prepared for scoring (see
+	 * {@link InteractionScorer}), so they aren't built twice.
+	 *
+	 * @param bMatrix dense bases of (at least) the genes that aren't banded
+	 */
+	PermutationTest(BasisTensor bMatrix, BandedBasis bandedMatrix, ScoreKernel kernel) {
+		this.bMatrix = bMatrix;
+		this.bandedMatrix = bandedMatrix;
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Returns the p-value of each interaction.
+	 *
+	 * @param permutations the largest number of permutations per interaction
+	 * @param exceedances  the number of permutations that reach the observed
+	 *                     score after which testing stops
+	 */
+	double[] computePValues(final int[][] networkMatrix, final int permutations, final int exceedances, final long seed, int threads) {
+		final double[] result = new double[networkMatrix.length];
+		Siren.runInParallel(threads, networkMatrix.length, 1, new Siren.RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				int totalBins = bandedMatrix.getBinCount();
+				double[][] pABMatrix = new double[totalBins][totalBins];
+				int[] permutation = new int[bandedMatrix.getConditionCount()];
+				for (int i = start; i < end; i++) {
+					int geneA = networkMatrix[i][0];
+					int geneB = networkMatrix[i][1];
+					Random random = new Random(computeSeed(seed, geneA, geneB));
+					result[i] = computePValue(geneA, geneB, permutations, exceedances, random, permutation, pABMatrix);
+				}
+			}
+		});
+		return result;
+	}
+
+	private double computePValue(int geneA, int geneB, int permutations, int exceedances, Random random, int[] permutation, double[][] pABMatrix) {
+		for (int c = 0; c < permutation.length; c++) {
+			permutation[c] = c;
+		}
+		double observed = Math.abs(computeScore(geneA, geneB, null, pABMatrix));
+
+		int total = 0;
+		int exceeded = 0;
+		while (total < permutations && exceeded < exceedances) {
+			shuffle(permutation, random);
+			double score = computeScore(geneA, geneB, permutation, pABMatrix);
+			if (Math.abs(score) >= observed) {
+				exceeded++;
+			}
+			total++;
+		}
+
+		if (exceeded >= exceedances) {
+			return (double) exceeded / total;
+		}
+		return (exceeded + 1.0) / (total + 1.0);
+	}
+
+	private double computeScore(int geneA, int geneB, int[] permutation, double[][] pABMatrix) {
+		if (bandedMatrix.isBanded(geneA) && bandedMatrix.isBanded(geneB)) {
+			bandedMatrix.computePabMatrix(geneA, geneB, permutation, pABMatrix);
+		} else {
+			computePabMatrix(bMatrix, geneA, geneB, permutation, pABMatrix);
+		}
+		return kernel.computeScore(pABMatrix, geneA, geneB);
+	}
+
+	/**
+	 * Like {@link Siren#computePabMatrix(BasisTensor, int, int, double[][])},
+	 * but pairing condition c of <code>geneA</code> with condition
+	 * <code>permutation[c]</code> of <code>geneB</code>.
+	 */
+	static void computePabMatrix(BasisTensor bMatrix, int geneA, int geneB, int[] permutation, double[][] result) {
+		if (permutation == null) {
+			Siren.computePabMatrix(bMatrix, geneA, geneB, result);
+			return;
+		}
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
+		double[] data = bMatrix.getData();
+		for (int i = 0; i < totalBins; i++) {
+			int offsetA = bMatrix.offset(geneA, i);
+			double[] row = result[i];
+			for (int j = 0; j < totalBins; j++) {
+				int offsetB = bMatrix.offset(geneB, j);
+				double sum = 0;
+				for (int c = 0; c < totalConditions; c++) {
+					sum += data[offsetA + c] * data[offsetB + permutation[c]];
+				}
+				row[j] = sum / totalConditions;
+			}
+		}
+	}
+
+	/**
+	 * Fisher-Yates shuffle.
+	 */
+	static void shuffle(int[] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+
+	/**
+	 * Derives the seed of an interaction's permutations from the base seed
+	 * and its genes, using the SplitMix64 finalizer so nearby pairs get
+	 * unrelated seeds.
+	 */
+	static long computeSeed(long seed, int geneA, int geneB) {
+		return mix(seed ^ mix(((long) geneA << 32) | (geneB & 0xffffffffL)));
+	}
+
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+}
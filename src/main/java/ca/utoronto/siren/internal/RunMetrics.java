@@ -0,0 +1,315 @@
+package ca.utoronto.siren.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, allocation, throughput and peak heap usage of each phase of a
+ * SIREN run.  Phases are sequential: each one is started with
+ * {@link #begin(String)} and ended with {@link #end(long, String)}.  A
+ * phase that's run in several parts (e.g. chunks of interactions) is
+ * reported as one, combining their measurements.
+ * <p>
+ * While a phase is running, its metrics are active on the thread that
+ * began it, and {@link Siren#runInParallel(int, int, Siren.RangeAction)}
+ * hands them to the fork-join workers it starts.  Workers report the bytes
+ * they allocate and sample heap usage through the metrics they were given,
+ * so concurrent runs (e.g. several tasks in Cytoscape) don't count each
+ * other's work, and work that isn't measured costs nothing extra.
+ * <p>
+ * Allocated bytes are only available on JVMs that measure per-thread
+ * allocation (e.g. HotSpot), and are -1 otherwise.  Peak heap usage is the
+ * largest heap usage sampled during the phase: when it begins and ends,
+ * and after each unit of parallel work.  The JVM-wide peaks of the memory
+ * pools are left alone, since other code in the same JVM may rely on them.
+ */
+public class RunMetrics {
+	public static final String EXTRACT_ATTRIBUTES = "Extract attributes";
+	public static final String LOAD_EXPRESSION_FILE = "Load expression file";
+	public static final String LOAD_CACHED_BASES = "Load cached bases";
+	public static final String COMPUTE_BASES = "Compute bases";
+	public static final String COMPUTE_MARGINALS = "Compute marginals";
+	public static final String SCORE_INTERACTIONS = "Score interactions";
+	public static final String WRITE_EDGE_TABLE = "Write edge table";
+	public static final String COMPUTE_P_VALUES = "Compute p-values";
+
+	public static final String GENES = "genes";
+	public static final String INTERACTIONS = "interactions";
+
+	private static final Method threadAllocatedBytes = findThreadAllocatedBytes();
+	private static final ThreadLocal<RunMetrics> active = new ThreadLocal<RunMetrics>();
+
+	/**
+	 * Measurements of one phase.
+	 */
+	public static class Phase {
+		final String name;
+		long wallNanos;
+		long allocatedBytes;
+		long peakHeapBytes;
+		long items;
+		String unit;
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		/**
+		 * Returns the bytes allocated during the phase, or -1 if unknown.
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public long getPeakHeapBytes() {
+			return peakHeapBytes;
+		}
+
+		/**
+		 * Returns the number of items (e.g. genes or interactions) processed.
+		 */
+		public long getItems() {
+			return items;
+		}
+
+		public String getUnit() {
+			return unit;
+		}
+
+		/**
+		 * Returns items processed per second, or 0 if there were none.
+		 */
+		public double getThroughput() {
+			return items == 0 || wallNanos == 0 ? 0 : items * 1e9 / wallNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format(Locale.ROOT, "%s: %.1f ms", name, wallNanos / 1e6));
+			if (items > 0) {
+				builder.append(String.format(Locale.ROOT, ", %d %s (%.0f %s/s)", items, unit, getThroughput(), unit));
+			}
+			if (allocatedBytes >= 0) {
+				builder.append(String.format(Locale.ROOT, ", %.1f MB allocated", allocatedBytes / 1e6));
+			}
+			builder.append(String.format(Locale.ROOT, ", %.1f MB peak heap", peakHeapBytes / 1e6));
+			return builder.toString();
+		}
+	}
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private Phase current;
+	private long startNanos;
+	private long startAllocatedBytes;
+	private final AtomicLong workerAllocations = new AtomicLong();
+	private final AtomicLong peakHeapBytes = new AtomicLong();
+
+	/**
+	 * Starts timing the given phase, and makes these metrics active on the
+	 * calling thread until it ends.
+	 */
+	public void begin(String name) {
+		current = new Phase(name);
+		peakHeapBytes.set(getHeapBytes());
+		active.set(this);
+		startAllocatedBytes = getAllocatedBytes();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase, which processed <code>items</code> of the
+	 * given unit (e.g. "genes"), and returns its measurements.
+	 */
+	public Phase end(long items, String unit) {
+		Phase phase = current;
+		phase.wallNanos = System.nanoTime() - startNanos;
+		long allocatedBytes = getAllocatedBytes();
+		phase.allocatedBytes = allocatedBytes < 0 || startAllocatedBytes < 0 ? -1 : allocatedBytes - startAllocatedBytes;
+		sampleHeap();
+		phase.peakHeapBytes = peakHeapBytes.get();
+		phase.items = items;
+		phase.unit = unit;
+		current = null;
+		if (active.get() == this) {
+			active.remove();
+		}
+
+		// Combine with an earlier part of the same phase
+		Phase earlier = getPhase(phase.name);
+		if (earlier == null) {
+			phases.add(phase);
+			return phase;
+		}
+		earlier.wallNanos += phase.wallNanos;
+		earlier.allocatedBytes = earlier.allocatedBytes < 0 || phase.allocatedBytes < 0 ? -1 : earlier.allocatedBytes + phase.allocatedBytes;
+		earlier.peakHeapBytes = Math.max(earlier.peakHeapBytes, phase.peakHeapBytes);
+		earlier.items += phase.items;
+		earlier.unit = unit;
+		return earlier;
+	}
+
+	public List<Phase> getPhases() {
+		return Collections.unmodifiableList(phases);
+	}
+
+	/**
+	 * Returns the phase with the given name, or null if there's none.
+	 */
+	public Phase getPhase(String name) {
+		for (Phase phase : phases) {
+			if (phase.name.equals(name)) {
+				return phase;
+			}
+		}
+		return null;
+	}
+
+	public long getTotalWallNanos() {
+		long result = 0;
+		for (Phase phase : phases) {
+			result += phase.wallNanos;
+		}
+		return result;
+	}
+
+	public long getPeakHeapBytes() {
+		long result = 0;
+		for (Phase phase : phases) {
+			result = Math.max(result, phase.peakHeapBytes);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the phases as tab-delimited lines, with a header.
+	 */
+	public void writeTsv(Writer writer) throws IOException {
+		writer.write("phase\twall_ms\tallocated_bytes\tpeak_heap_bytes\titems\tunit\tthroughput_per_s\n");
+		for (Phase phase : phases) {
+			writer.write(String.format(Locale.ROOT, "%s\t%.3f\t%d\t%d\t%d\t%s\t%.3f\n",
+					phase.name, phase.wallNanos / 1e6, phase.allocatedBytes, phase.peakHeapBytes, phase.items, phase.unit == null ? "" : phase.unit, phase.getThroughput()));
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Writes the phases and totals as a JSON object.
+	 */
+	public void writeJson(Writer writer) throws IOException {
+		writer.write("{\n  \"phases\": [");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase phase = phases.get(i);
+			writer.write(i == 0 ? "\n" : ",\n");
+			writer.write(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"wall_ms\": %.3f, \"allocated_bytes\": %d, \"peak_heap_bytes\": %d, \"items\": %d, \"unit\": \"%s\", \"throughput_per_s\": %.3f}",
+					escape(phase.name), phase.wallNanos / 1e6, phase.allocatedBytes, phase.peakHeapBytes, phase.items, phase.unit == null ? "" : escape(phase.unit), phase.getThroughput()));
+		}
+		writer.write(String.format(Locale.ROOT, "\n  ],\n  \"total_wall_ms\": %.3f,\n  \"peak_heap_bytes\": %d\n}\n", getTotalWallNanos() / 1e6, getPeakHeapBytes()));
+		writer.flush();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Phase phase : phases) {
+			builder.append(phase).append('\n');
+		}
+		builder.append(String.format(Locale.ROOT, "Total: %.1f ms, %.1f MB peak heap", getTotalWallNanos() / 1e6, getPeakHeapBytes() / 1e6));
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the metrics of the phase running on the current thread, or
+	 * null if there's none.
+	 */
+	static RunMetrics getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread and by the
+	 * fork-join workers of this run, or -1 if unknown.
+	 */
+	private long getAllocatedBytes() {
+		long bytes = getThreadAllocatedBytes();
+		return bytes < 0 ? -1 : bytes + workerAllocations.get();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or -1 if
+	 * unknown.
+	 */
+	static long getThreadAllocatedBytes() {
+		if (threadAllocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return (Long) threadAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Records bytes allocated by a unit of parallel work.  Work that runs on
+	 * the calling thread is already counted by that thread, so only
+	 * fork-join workers' allocations are recorded.
+	 */
+	void countWorkerAllocations(long bytes) {
+		if (bytes > 0 && Thread.currentThread() instanceof ForkJoinWorkerThread) {
+			workerAllocations.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Records the current heap usage towards the peak of the current phase.
+	 */
+	void sampleHeap() {
+		long bytes = getHeapBytes();
+		long peak = peakHeapBytes.get();
+		while (bytes > peak && !peakHeapBytes.compareAndSet(peak, bytes)) {
+			peak = peakHeapBytes.get();
+		}
+	}
+
+	private static long getHeapBytes() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static Method findThreadAllocatedBytes() {
+		// Not part of the standard API, so look it up reflectively
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			if (!type.isInstance(bean)) {
+				return null;
+			}
+			Method method = type.getMethod("getThreadAllocatedBytes", long.class);
+			Long bytes = (Long) method.invoke(bean, Thread.currentThread().getId());
+			return bytes != null && bytes >= 0 ? method : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Locale;
+
+/**
+ * Differences between scores computed two ways, e.g. from single- and
+ * double-precision bases, for checking that a faster or smaller
+ * computation is still accurate enough.
+ */
+public class ScoreComparison {
+	private final int total;
+	private final double tolerance;
+	private double maximumError;
+	private double totalError;
+	private double maximumRelativeError;
+	private int signChanges;
+	private int exceeded;
+
+	/**
+	 * Compares <code>scores</code> with <code>expected</code>, counting the
+	 * scores that differ by more than <code>tolerance</code>.
+	 */
+	public ScoreComparison(double[] expected, double[] scores, double tolerance) {
+		if (expected.length != scores.length) {
+			throw new IllegalArgumentException(String.format("Expected %d scores but got %d", expected.length, scores.length));
+		}
+		total = scores.length;
+		this.tolerance = tolerance;
+		for (int i = 0; i < total; i++) {
+			double error = Math.abs(scores[i] - expected[i]);
+			maximumError = Math.max(maximumError, error);
+			totalError += error;
+			if (expected[i] != 0) {
+				maximumRelativeError = Math.max(maximumRelativeError, error / Math.abs(expected[i]));
+			}
+			if (Math.signum(scores[i]) != Math.signum(expected[i])) {
+				signChanges++;
+			}
+			if (error > tolerance) {
+				exceeded++;
+			}
+		}
+	}
+
+	public double getMaximumError() {
+		return maximumError;
+	}
+
+	public double getMeanError() {
+		return total == 0 ? 0 : totalError / total;
+	}
+
+	/**
+	 * Returns the largest error relative to a non-zero expected score.
+	 */
+	public double getMaximumRelativeError() {
+		return maximumRelativeError;
+	}
+
+	/**
+	 * Returns the number of scores whose sign differs from the expected one.
+	 */
+	public int getSignChanges() {
+		return signChanges;
+	}
+
+	/**
+	 * Returns the number of scores that differ by more than the tolerance.
+	 */
+	public int getExceededCount() {
+		return exceeded;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%d scores: max error %.3g, mean error %.3g, max relative error %.3g, %d sign changes, %d over %.3g",
+				total, maximumError, getMeanError(), maximumRelativeError, signChanges, exceeded, tolerance);
+	}
+}
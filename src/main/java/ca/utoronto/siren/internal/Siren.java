@@ -1,11 +1,14 @@
 package ca.utoronto.siren.internal;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Java port of the SIgning Of REgulatory Networks (SIREN) scoring algorithm
@@ -26,54 +29,200 @@ public class Siren {
 		-1, -1, -1, -1, -1, -1,  0,  1,  1,  1,
 	});
 	
+	public static final int DEFAULT_DEGREES_OF_FREEDOM = 10;
+	public static final int DEFAULT_DEGREE = 2;
+	
+	/**
+	 * Smallest number of genes or interactions handled by a single parallel
+	 * work unit.  Below this, splitting costs more than it saves.
+	 */
+	static final int MINIMUM_WORK_UNIT = 64;
+	
 	public static double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, double[][] weightMatrix) {
-		int degreesOfFreedom = 10;
-		int degree = 2;
-		
-		double[][][] bMatrix = computeBMatrix(expressionMatrix, degreesOfFreedom, degree);
+		return computeScores(expressionMatrix, networkMatrix, weightMatrix, 1);
+	}
+	
+	/**
+	 * Computes the SIREN scores using up to <code>threads</code> worker
+	 * threads.  The scores are identical to those of the serial version.
+	 */
+	public static double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, double[][] weightMatrix, int threads) {
+		return computeScores(expressionMatrix, networkMatrix, weightMatrix, threads, null);
+	}
+	
+	/**
+	 * Computes the SIREN scores, recording the time, allocation and
+	 * throughput of each phase in <code>metrics</code> unless it's null.
+	 */
+	public static double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, double[][] weightMatrix, int threads, RunMetrics metrics) {
+		return computeScores(expressionMatrix, networkMatrix, weightMatrix, threads, false, metrics);
+	}
+	
+	/**
+	 * Computes the SIREN scores, keeping the bases in single precision if
+	 * <code>singlePrecision</code> is true (see {@link FloatBasisTensor}).
+	 * Other spline configurations are scored with a {@link SirenEngine}.
+	 */
+	public static double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, double[][] weightMatrix, int threads, boolean singlePrecision, RunMetrics metrics) {
+		SirenEngine engine = new SirenEngine(DEFAULT_DEGREES_OF_FREEDOM, DEFAULT_DEGREE, weightMatrix);
+		return engine.computeScores(expressionMatrix, networkMatrix, threads, singlePrecision, metrics);
+	}
+	
+	/**
+	 * Returns the permutation p-value of each interaction's score (see
+	 * {@link PermutationTest}).
+	 */
+	static double[] computePValues(double[][] expressionMatrix, int[][] networkMatrix, double[][] weightMatrix, int permutations, int threads) {
+		BasisTensor bMatrix = computeBMatrix(expressionMatrix, DEFAULT_DEGREES_OF_FREEDOM, DEFAULT_DEGREE, threads);
 		double[][] paMatrix = computePaMatrix(bMatrix);
-		return computeScores(bMatrix, weightMatrix, paMatrix, networkMatrix);
+		PermutationTest test = new PermutationTest(bMatrix, paMatrix, weightMatrix, DEFAULT_DEGREE, networkMatrix);
+		return test.computePValues(networkMatrix, permutations, PermutationTest.DEFAULT_EXCEEDANCES, PermutationTest.DEFAULT_SEED, threads);
 	}
 	
-	static double[][][] computeBMatrix(double[][] expressionMatrix, int degreesOfFreedom, int degree) {
-		// Assume expressionMatrix is rectangular and has at least 1 row
+	/**
+	 * Scores every pair of genes and returns the <code>capacity</code> pairs
+	 * with the highest positive scores and those with the lowest negative
+	 * scores (see {@link AllPairsScorer}).
+	 */
+	static TopPairs computeTopPairs(double[][] expressionMatrix, double[][] weightMatrix, int capacity, int threads) {
+		BasisTensor bMatrix = computeBMatrix(expressionMatrix, DEFAULT_DEGREES_OF_FREEDOM, DEFAULT_DEGREE, threads);
+		double[][] paMatrix = computePaMatrix(bMatrix);
+		return new AllPairsScorer(bMatrix, paMatrix, weightMatrix, DEFAULT_DEGREE, null).computeTopPairs(capacity, threads);
+	}
+	
+	/**
+	 * Computes the scores from precomputed bases of the given degree, which
+	 * might not be on the heap (see {@link BasisStore}).  Scoring uses a
+	 * banded copy of the bases; dense bases are only copied onto the heap for
+	 * the genes that can't be banded.
+	 */
+	static double[] computeScores(BasisSource bMatrix, double[][] paMatrix, double[][] weightMatrix, int[][] networkMatrix, int degree, int threads) {
+		return new InteractionScorer(bMatrix, paMatrix, weightMatrix, networkMatrix, degree).computeScores(networkMatrix, threads);
+	}
+	
+	static BasisTensor computeBMatrix(double[][] expressionMatrix, int degreesOfFreedom, int degree) {
+		return computeBMatrix(expressionMatrix, degreesOfFreedom, degree, 1);
+	}
+	
+	static BasisTensor computeBMatrix(final double[][] expressionMatrix, final int degreesOfFreedom, final int degree, int threads) {
+		// Assume expressionMatrix is rectangular
 		int totalGenes = expressionMatrix.length;
+		int totalConditions = totalGenes == 0 ? 0 : expressionMatrix[0].length;
 		
-		double[][][] result = new double[totalGenes][][];
+		final BasisTensor result = new BasisTensor(totalGenes, degreesOfFreedom, totalConditions);
+		runInParallel(threads, totalGenes, new RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				computeBMatrix(expressionMatrix, degreesOfFreedom, degree, start, end, result);
+			}
+		});
+		return result;
+	}
+	
+	static void computeBMatrix(double[][] expressionMatrix, int degreesOfFreedom, int degree, int start, int end, BasisTensor result) {
+		BasisKernel kernel = new BasisKernel(degreesOfFreedom, degree, result.getConditionCount());
+		for (int g = start; g < end; g++) {
+			kernel.computeBasis(expressionMatrix[g], result, g);
+		}
+	}
+	
+	/**
+	 * Like {@link #computeBMatrix(double[][], int, int, int)}, but stores the
+	 * bases in single precision.  Each gene's basis is computed in double
+	 * precision and rounded as it's stored.
+	 */
+	static FloatBasisTensor computeFloatBMatrix(final double[][] expressionMatrix, final int degreesOfFreedom, final int degree, int threads) {
+		int totalGenes = expressionMatrix.length;
+		final int totalConditions = totalGenes == 0 ? 0 : expressionMatrix[0].length;
+		
+		final FloatBasisTensor result = new FloatBasisTensor(totalGenes, degreesOfFreedom, totalConditions);
+		runInParallel(threads, totalGenes, new RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				BasisKernel kernel = new BasisKernel(degreesOfFreedom, degree, totalConditions);
+				double[] gene = new double[degreesOfFreedom * totalConditions];
+				for (int g = start; g < end; g++) {
+					kernel.computeBasis(expressionMatrix[g], gene, 0);
+					result.setGene(g, gene);
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Computes the marginals of bases that might not be on the heap, one
+	 * gene at a time.
+	 */
+	static double[][] computePaMatrix(BasisSource bMatrix) {
+		if (bMatrix instanceof BasisTensor) {
+			return computePaMatrix((BasisTensor) bMatrix);
+		}
+		int totalGenes = bMatrix.getGeneCount();
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
+		double[] buffer = new double[totalBins * totalConditions];
+		
+		double[][] result = new double[totalGenes][totalBins];
 		for (int g = 0; g < totalGenes; g++) {
-			result[g] = computeBSplineBasis(scaleAndCentre(expressionMatrix[g]), degreesOfFreedom, degree);
+			bMatrix.copyGene(g, buffer);
+			for (int b = 0; b < totalBins; b++) {
+				double sum = 0;
+				for (int c = 0; c < totalConditions; c++) {
+					sum += buffer[b * totalConditions + c];
+				}
+				result[g][b] = sum / totalConditions;
+			}
 		}
 		return result;
 	}
 	
-	static double[][] computePaMatrix(double[][][] bMatrix) {
-		int totalGenes = bMatrix.length;
-		int totalBins = bMatrix[0].length;
-		int totalConditions = bMatrix[0][0].length;
+	static double[][] computePaMatrix(BasisTensor bMatrix) {
+		int totalGenes = bMatrix.getGeneCount();
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
+		double[] data = bMatrix.getData();
 		
 		double[][] result = new double[totalGenes][totalBins];
 		for (int g = 0; g < totalGenes; g++) {
 			for (int b = 0; b < totalBins; b++) {
+				int offset = bMatrix.offset(g, b);
+				double sum = 0;
 				for (int c = 0; c < totalConditions; c++) {
-					result[g][b] += bMatrix[g][b][c];
+					sum += data[offset + c];
 				}
-				result[g][b] /= totalConditions;
+				result[g][b] = sum / totalConditions;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the natural log of each marginal probability in
+	 * <code>paMatrix</code>.
+	 */
+	static double[][] computeLogPaMatrix(double[][] paMatrix) {
+		double[][] result = new double[paMatrix.length][];
+		for (int g = 0; g < paMatrix.length; g++) {
+			double[] pA = paMatrix[g];
+			result[g] = new double[pA.length];
+			for (int b = 0; b < pA.length; b++) {
+				result[g][b] = Math.log(pA[b]);
 			}
 		}
 		return result;
 	}
 	
-	static void computePabMatrix(double[][] bMatrixA, double[][] bMatrixB, double[][] result) {
-		int totalBins = bMatrixA.length;
-		int totalConditions = bMatrixA[0].length;
+	static void computePabMatrix(BasisTensor bMatrix, int geneA, int geneB, double[][] result) {
+		int totalBins = bMatrix.getBinCount();
+		int totalConditions = bMatrix.getConditionCount();
 		
 		for (int i = 0; i < totalBins; i++) {
+			double[] row = result[i];
+			Arrays.fill(row, 0);
+			BlockedKernels.accumulateRow(bMatrix, geneA, i, geneB, 0, totalConditions, row);
 			for (int j = 0; j < totalBins; j++) {
-				result[i][j] = 0;
-				for (int c = 0; c < totalConditions; c++) {
-					result[i][j] += bMatrixA[i][c] * bMatrixB[j][c];
-				}
-				result[i][j] /= totalConditions;
+				row[j] /= totalConditions;
 			}
 		}
 	}
@@ -111,58 +260,66 @@ public class Siren {
 	}
 	
 	/**
-	 * Returns a vector of length X containing the coefficients of polynomial
-	 * j.
+	 * Evaluates every B-spline basis function at <code>x</code> in a single
+	 * pass, storing the coefficient of polynomial j in
+	 * <code>result[j]</code> for j = 0...knots.length - degree - 2.
 	 * 
 	 * @param x
+	 * @param degreesOfFreedom
 	 * @param degree
-	 * @param j
 	 * @param knots
-	 * @return
+	 * @param result buffer of at least knots.length - 1 elements
 	 */
-	static double[] computeBasis(double[] x, int degreesOfFreedom, int degree, int j, double[] knots) {
-		// Adapted from basis() at:
+	static void computeBasis(double x, int degreesOfFreedom, int degree, double[] knots, double[] result) {
+		// Iterative (Cox-de Boor) version of basis() at:
 		// http://cran.r-project.org/web/packages/crs/vignettes/spline_primer.pdf
+		//
+		// Each degree is computed in place from the previous one.  Element j
+		// only depends on elements j and j + 1 of the previous degree, so
+		// visiting j in ascending order never reads an overwritten value.
 		
-		double[] result = new double[x.length];
-
-		// The R implementation has NaNs in the following case.
 		double maxX = knots[knots.length - 1];
-		boolean hasMultipleOuterBound = maxX == knots[degreesOfFreedom + degree - 2];
-		for (int i = 0; i < x.length; i++) {
-			if (x[i] == maxX && j > degreesOfFreedom - degree && hasMultipleOuterBound) {
-				result[i] = Double.NaN;
-			}
+		boolean isMaxX = x == maxX;
+		int total = knots.length - 1;
+		for (int j = 0; j < total; j++) {
+			result[j] = (x >= knots[j] && x < knots[j + 1]) ? 1 : 0;
 		}
-
-		if (degree == 0) {
-			for (int i = 0; i < x.length; i++) {
-				if (Double.isNaN(result[i])) {
-					continue;
-				}
-				result[i] = (x[i] >= knots[j] && x[i] < knots[j + 1]) ? 1 : 0;
+		if (isMaxX) {
+			markUndefinedBases(degreesOfFreedom, 0, knots, result, total);
+		}
+		
+		for (int d = 1; d <= degree; d++) {
+			total--;
+			for (int j = 0; j < total; j++) {
+				double denominator1 = knots[d + j] - knots[j];
+				double denominator2 = knots[j + d + 1] - knots[j + 1];
+				double alpha1 = denominator1 == 0 ? 0 : (x - knots[j]) / denominator1;
+				double alpha2 = denominator2 == 0 ? 0 : (knots[j + d + 1] - x) / denominator2;
+				result[j] = alpha1 * result[j] + alpha2 * result[j + 1];
 			}
-			return result;
-		} else {
-			double[] basis1 = computeBasis(x, degreesOfFreedom, degree - 1, j, knots);
-			double[] basis2 = computeBasis(x, degreesOfFreedom, degree - 1, j + 1, knots);
-			
-			for (int i = 0; i < x.length; i++) {
-				if (Double.isNaN(result[i])) {
-					continue;
-				}
-				double denominator1 = knots[degree + j] - knots[j];
-				double denominator2 = knots[j + degree + 1] - knots[j + 1];				
-				double alpha1 = denominator1 == 0 ? 0 : (x[i] - knots[j]) / denominator1;
-				double alpha2 = denominator2 == 0 ? 0 : (knots[j + degree + 1] - x[i]) / denominator2;
-				result[i] = alpha1 * basis1[i] + alpha2 * basis2[i];
+			if (isMaxX) {
+				markUndefinedBases(degreesOfFreedom, d, knots, result, total);
 			}
-			return result;
 		}
 	}
 	
 	/**
-	 * Returns an X x K B-spline basis matrix, where X is the number of
+	 * Sets the bases of the given degree to NaN where the R implementation
+	 * has NaNs; i.e. at the outer bound when it is a multiple knot.
+	 */
+	private static void markUndefinedBases(int degreesOfFreedom, int degree, double[] knots, double[] result, int total) {
+		double maxX = knots[knots.length - 1];
+		boolean hasMultipleOuterBound = maxX == knots[degreesOfFreedom + degree - 2];
+		if (!hasMultipleOuterBound) {
+			return;
+		}
+		for (int j = Math.max(0, degreesOfFreedom - degree + 1); j < total; j++) {
+			result[j] = Double.NaN;
+		}
+	}
+	
+	/**
+	 * Returns a K x X B-spline basis matrix, where X is the number of
 	 * elements in x, and K = degreesOfFreedom.
 	 * @param x
 	 * @param degreesOfFreedom
@@ -170,6 +327,19 @@ public class Siren {
 	 * @return
 	 */
 	static double[][] computeBSplineBasis(double[] x, int degreesOfFreedom, int degree) {
+		BasisTensor result = new BasisTensor(1, degreesOfFreedom, x.length);
+		computeBSplineBasis(x, degreesOfFreedom, degree, result, 0, new double[degreesOfFreedom + degree + 1]);
+		return result.getGene(0);
+	}
+	
+	/**
+	 * Computes the K x X B-spline basis matrix for x and stores it in the
+	 * slot for the given gene of <code>result</code>.
+	 * 
+	 * @param scratch buffer of at least degreesOfFreedom + degree + 1
+	 *                elements
+	 */
+	static void computeBSplineBasis(double[] x, int degreesOfFreedom, int degree, BasisTensor result, int gene, double[] scratch) {
 		// Adapted from bs() at:
 		// http://cran.r-project.org/web/packages/crs/vignettes/spline_primer.pdf
 
@@ -183,21 +353,23 @@ public class Siren {
 		
 		int k = degreesOfFreedom;
 		double[] knots = computeKnots(x, degreesOfFreedom, degree, minX, maxX);
-		double[][] result = new double[k][];
-		
-		// Discard intercept; i.e. process bases j = 1...k-1
-		for (int j = 0; j < k; j++) {
-			result[j] = computeBasis(x, degreesOfFreedom, degree, j + 1, knots);
-		}
-		
 		boolean hasMultipleOuterBound = maxX == knots[degreesOfFreedom + degree - 2];
+		double[] data = result.getData();
+		int offset = result.offset(gene, 0);
+		int stride = result.getConditionCount();
+		
 		for (int i = 0; i < x.length; i++) {
+			computeBasis(x[i], degreesOfFreedom, degree, knots, scratch);
+			
+			// Discard intercept; i.e. process bases j = 1...k-1
+			for (int j = 0; j < k; j++) {
+				data[offset + j * stride + i] = scratch[j + 1];
+			}
+			
 			if (x[i] == maxX && !hasMultipleOuterBound) {
-				result[k - 1][i] = 1; 
+				data[offset + (k - 1) * stride + i] = 1;
 			}
 		}
-		
-		return result;
 	}
 	
 	static double[] computeKnots(double sample[], int degreesOfFreedom, int degree, double minX, double maxX) {
@@ -237,86 +409,24 @@ public class Siren {
 		return result;
 	}
 	
-	static int[] getMatrixDimensions(String path) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(path));
-		int rows = 0;
-		int columns = 0;
-		
-		try {
-			String line = reader.readLine();
-			while (line != null) {
-				try {
-					if (columns == 0) {
-						columns = line.split("\t").length;
-					}
-					rows++;
-				} finally {
-					line = reader.readLine();
-				}
-			}
-		} finally {
-			reader.close();
-		}
-		return new int[] { rows, columns };
+	public static double[][] loadMatrix(String path) throws IOException {
+		return loadMatrix(path, 1);
 	}
 	
-	public static double[][] loadMatrix(String path) throws IOException {
-		int[] dimensions = getMatrixDimensions(path);
-		int rows = dimensions[0];
-		int columns = dimensions[1];
-		
-		BufferedReader reader = new BufferedReader(new FileReader(path));
-		double[][] result = new double[rows][columns];
-		try {
-			int rowIndex = 0;
-			String line = reader.readLine();
-			while (line != null) {
-				try {
-					int columnIndex = 0;
-					for (String value : line.split("\t")) {
-						result[rowIndex][columnIndex] = Double.parseDouble(value);
-						columnIndex++;
-					}
-					rowIndex++;
-				} finally {
-					line = reader.readLine();
-				}
-			}
-		} finally {
-			reader.close();
-		}
-		return result;
+	/**
+	 * Loads a tab-delimited matrix, parsing it in up to
+	 * <code>threads</code> line-aligned chunks in parallel.
+	 */
+	public static double[][] loadMatrix(String path, int threads) throws IOException {
+		return TabDelimitedReader.loadMatrix(new File(path), threads);
 	}
 	
 	public static int[][] loadNetworkMatrix(String path) throws IOException {
-		int[] dimensions = getMatrixDimensions(path);
-		int rows = dimensions[0];
-		int columns = dimensions[1];
-		
-		BufferedReader reader = new BufferedReader(new FileReader(path));
-		int[][] result = new int[rows][columns];
-		try {
-			int rowIndex = 0;
-			String line = reader.readLine();
-			while (line != null) {
-				try {
-					int columnIndex = 0;
-					for (String value : line.split("\t")) {
-						// The R implementation of SIREN used networks
-						// with 1-based indexes.  Since Java uses 0-based
-						// indexes, we need to adjust them.
-						result[rowIndex][columnIndex] = Integer.parseInt(value) - 1;
-						columnIndex++;
-					}
-					rowIndex++;
-				} finally {
-					line = reader.readLine();
-				}
-			}
-		} finally {
-			reader.close();
-		}
-		return result;
+		return loadNetworkMatrix(path, 1);
+	}
+	
+	public static int[][] loadNetworkMatrix(String path, int threads) throws IOException {
+		return TabDelimitedReader.loadNetworkMatrix(new File(path), threads);
 	}
 
 	static void printVector(double[] vector) {
@@ -346,30 +456,188 @@ public class Siren {
 		}
 	}
 	
-	static double[] computeScores(double[][][] bMatrix, double[][] weightMatrix, double[][] paMatrix, int[][] networkMatrix) {
-		int totalBins = bMatrix[0].length;
-		int totalInteractions = networkMatrix.length;
+	static double[] computeScores(BasisTensor bMatrix, double[][] weightMatrix, double[][] paMatrix, int[][] networkMatrix) {
+		return computeScores(bMatrix, weightMatrix, paMatrix, networkMatrix, 1);
+	}
+	
+	static double[] computeScores(BasisTensor bMatrix, double[][] weightMatrix, double[][] paMatrix, int[][] networkMatrix, int threads) {
+		return computeScores(bMatrix, null, weightMatrix, paMatrix, networkMatrix, threads);
+	}
+	
+	/**
+	 * Computes the scores using the banded basis for interactions between
+	 * genes it represents.  The remaining interactions are batched by hub
+	 * against the dense basis (see {@link HubScorer}).
+	 * <code>bandedMatrix</code> may be null, in which case only the dense
+	 * basis is used.  Repeated and reversed interactions share a joint
+	 * probability matrix (see {@link GenePairs}).
+	 */
+	static double[] computeScores(BasisTensor bMatrix, BandedBasis bandedMatrix, double[][] weightMatrix, double[][] paMatrix, int[][] networkMatrix, int threads) {
+		return computeScores(bMatrix, bandedMatrix, new ScoreKernel(weightMatrix, paMatrix), networkMatrix, threads);
+	}
+	
+	static double[] computeScores(final BasisTensor bMatrix, final BandedBasis bandedMatrix, final ScoreKernel kernel, int[][] networkMatrix, int threads) {
+		final GenePairs pairs = new GenePairs(networkMatrix, bMatrix.getGeneCount());
+		if (bandedMatrix != null) {
+			runInParallel(threads, pairs.getPairs().length, new RangeAction() {
+				@Override
+				public void run(int start, int end) {
+					// Each work unit gets its own scratch buffer
+					int totalBins = bMatrix.getBinCount();
+					double[][] pABMatrix = new double[totalBins][totalBins];
+					computeScores(bandedMatrix, kernel, pairs, start, end, pABMatrix);
+				}
+			});
+		}
 		
-		double[] result = new double[totalInteractions];
-		double[][] pABMatrix = new double[totalBins][totalBins];
-		for (int i = 0; i < totalInteractions; i++) {
-			int geneA = (int) networkMatrix[i][0];
-			int geneB = (int) networkMatrix[i][1];
-			
-			double[] pA = paMatrix[geneA];
-			double[] pB = paMatrix[geneB];
-			computePabMatrix(bMatrix[geneA], bMatrix[geneB], pABMatrix);
-			for (int x = 0; x < totalBins; x++) {
-				for (int y = 0; y < totalBins; y++) {
-					double xN = Math.log(pABMatrix[x][y] / pA[x] / pB[y]);
-					if (xN > 0) {
-						result[i] += pABMatrix[x][y] * weightMatrix[x][y] * xN;
-					}
+		int[] densePairs = getDenseInteractions(bandedMatrix, pairs.getPairs());
+		new HubScorer(bMatrix, kernel, pairs).computeScores(densePairs, threads);
+		return pairs.getScores();
+	}
+	
+	/**
+	 * Computes the scores for pairs <code>start</code> (inclusive) to
+	 * <code>end</code> (exclusive) whose genes both have a banded basis,
+	 * using <code>pABMatrix</code> as scratch space.  Other pairs are
+	 * skipped.
+	 */
+	static void computeScores(BandedBasis bandedMatrix, ScoreKernel kernel, GenePairs pairs, int start, int end, double[][] pABMatrix) {
+		int[][] networkMatrix = pairs.getPairs();
+		for (int i = start; i < end; i++) {
+			int geneA = networkMatrix[i][0];
+			int geneB = networkMatrix[i][1];
+			if (!bandedMatrix.isBanded(geneA) || !bandedMatrix.isBanded(geneB)) {
+				continue;
+			}
+			bandedMatrix.computePabMatrix(geneA, geneB, pABMatrix);
+			pairs.computeScores(kernel, i, pABMatrix, false);
+		}
+	}
+	
+	/**
+	 * Returns which genes have interactions that need the dense basis.
+	 */
+	static boolean[] getDenseGenes(BandedBasis bandedMatrix, int[][] networkMatrix) {
+		boolean[] result = new boolean[bandedMatrix.getGeneCount()];
+		for (int i : getDenseInteractions(bandedMatrix, networkMatrix)) {
+			result[networkMatrix[i][0]] = true;
+			result[networkMatrix[i][1]] = true;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the indexes of the interactions that need the dense basis;
+	 * i.e. those with a gene that <code>bandedMatrix</code> doesn't
+	 * represent.  If <code>bandedMatrix</code> is null, that's all of them.
+	 */
+	static int[] getDenseInteractions(BandedBasis bandedMatrix, int[][] networkMatrix) {
+		int[] result = new int[networkMatrix.length];
+		int total = 0;
+		for (int i = 0; i < networkMatrix.length; i++) {
+			if (bandedMatrix == null || !bandedMatrix.isBanded(networkMatrix[i][0]) || !bandedMatrix.isBanded(networkMatrix[i][1])) {
+				result[total++] = i;
+			}
+		}
+		return Arrays.copyOf(result, total);
+	}
+	
+	/**
+	 * Returns the SIREN score for a single interaction, given its joint
+	 * probability matrix and the marginals of both genes.  This is the
+	 * reference definition; scoring runs use the equivalent
+	 * {@link ScoreKernel}.
+	 */
+	static double computeScore(double[][] pABMatrix, double[] pA, double[] pB, double[][] weightMatrix) {
+		int totalBins = pA.length;
+		double result = 0;
+		for (int x = 0; x < totalBins; x++) {
+			for (int y = 0; y < totalBins; y++) {
+				double xN = Math.log(pABMatrix[x][y] / pA[x] / pB[y]);
+				if (xN > 0) {
+					result += pABMatrix[x][y] * weightMatrix[x][y] * xN;
 				}
 			}
 		}
 		return result;
 	}
+	
+	/**
+	 * A unit of work over a contiguous range of indexes.
+	 */
+	interface RangeAction {
+		void run(int start, int end);
+	}
+	
+	/**
+	 * Runs <code>action</code> over the range [0, <code>total</code>) using
+	 * a fork-join pool with <code>threads</code> workers.  If
+	 * <code>threads</code> is 1 or less, the action runs on the calling
+	 * thread.
+	 */
+	static void runInParallel(int threads, int total, RangeAction action) {
+		runInParallel(threads, total, MINIMUM_WORK_UNIT, action);
+	}
+	
+	/**
+	 * Runs <code>action</code> over the range [0, <code>total</code>) in
+	 * units of at least <code>minimumUnitSize</code> indexes.
+	 */
+	static void runInParallel(int threads, int total, int minimumUnitSize, RangeAction action) {
+		if (threads <= 1 || total <= minimumUnitSize) {
+			action.run(0, total);
+			return;
+		}
+		
+		// Split into a few units per worker so idle workers can steal.
+		int unitSize = Math.max(minimumUnitSize, total / (threads * 8));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new RangeTask(action, 0, total, unitSize, RunMetrics.getActive()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	static class RangeTask extends RecursiveAction {
+		private final RangeAction action;
+		private final int start;
+		private final int end;
+		private final int unitSize;
+		
+		// Metrics of the phase that started the work, or null if it isn't
+		// measured
+		private final RunMetrics metrics;
+		
+		RangeTask(RangeAction action, int start, int end, int unitSize, RunMetrics metrics) {
+			this.action = action;
+			this.start = start;
+			this.end = end;
+			this.unitSize = unitSize;
+			this.metrics = metrics;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start <= unitSize) {
+				if (metrics == null) {
+					action.run(start, end);
+					return;
+				}
+				long allocatedBytes = RunMetrics.getThreadAllocatedBytes();
+				action.run(start, end);
+				if (allocatedBytes >= 0) {
+					metrics.countWorkerAllocations(RunMetrics.getThreadAllocatedBytes() - allocatedBytes);
+				}
+				metrics.sampleHeap();
+				return;
+			}
+			int middle = (start + end) >>> 1;
+			invokeAll(new RangeTask(action, start, middle, unitSize, metrics),
+					  new RangeTask(action, middle, end, unitSize, metrics));
+		}
+	}
 
 	static List<Double> parseResults(String filename) throws IOException {
 		BufferedReader reader = new BufferedReader(new FileReader(filename));
@@ -413,7 +681,17 @@ public class Siren {
 		}
 	}
 
-	public static void main(String[] args) throws IOException {
+	/**
+	 * Runs the jobs in the manifest given as arguments (see
+	 * {@link BatchRunner}).  Without arguments, checks the scores of the
+	 * example data in the current directory against Result.txt.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length > 0) {
+			BatchRunner.main(args);
+			return;
+		}
+		
 		double[][] weightMatrix = loadMatrix("Weighting_Matrix.txt");
 		double[][] expressionMatrix = loadMatrix("Expression_Format.txt");
 		int[][] networkMatrix = loadNetworkMatrix("Network_Format.txt");
@@ -425,5 +703,8 @@ public class Siren {
 				System.out.printf("%d\t%g\n", i, scores[i] - results.get(i));
 			}
 		}
+		
+		double[] singlePrecisionScores = computeScores(expressionMatrix, networkMatrix, weightMatrix, 1, true, null);
+		System.out.println("Single precision: " + new ScoreComparison(scores, singlePrecisionScores, 0.0000001));
 	}
 }
@@ -0,0 +1,157 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Arrays;
+
+/**
+ * SIREN scoring with a given spline configuration: the degrees of freedom
+ * (bins) and degree of the B-spline bases, and the bins x bins weight
+ * matrix.  The static methods of {@link Siren} use {@link #DEFAULT}, the
+ * configuration of the original R implementation.
+ * <p>
+ * Kernels are chosen for the configuration when the bases are prepared:
+ * bands of width 3 and 4 (degrees 2 and 3) get fully unrolled kernels (see
+ * {@link BandedBasis}), and other widths use the generic loop.
+ */
+public class SirenEngine {
+	public static final SirenEngine DEFAULT = new SirenEngine(Siren.DEFAULT_DEGREES_OF_FREEDOM, Siren.DEFAULT_DEGREE, Siren.DEFAULT_WEIGHT_MATRIX);
+
+	private final int degreesOfFreedom;
+	private final int degree;
+	private final double[][] weightMatrix;
+
+	/**
+	 * @param weightMatrix a <code>degreesOfFreedom</code> x
+	 *                     <code>degreesOfFreedom</code> matrix
+	 */
+	public SirenEngine(int degreesOfFreedom, int degree, double[][] weightMatrix) {
+		if (degree < 1 || degreesOfFreedom <= degree) {
+			throw new IllegalArgumentException(String.format("Degrees of freedom (%d) must be greater than the spline degree (%d), which must be at least 1", degreesOfFreedom, degree));
+		}
+		if (weightMatrix.length != degreesOfFreedom) {
+			throw new IllegalArgumentException(String.format("Weight matrix must be %d x %d", degreesOfFreedom, degreesOfFreedom));
+		}
+		for (double[] row : weightMatrix) {
+			if (row.length != degreesOfFreedom) {
+				throw new IllegalArgumentException(String.format("Weight matrix must be %d x %d", degreesOfFreedom, degreesOfFreedom));
+			}
+		}
+		this.degreesOfFreedom = degreesOfFreedom;
+		this.degree = degree;
+		this.weightMatrix = weightMatrix;
+	}
+
+	/**
+	 * Returns the default weight matrix, which is only defined for the
+	 * default degrees of freedom.
+	 */
+	static double[][] getDefaultWeightMatrix(int degreesOfFreedom) {
+		if (degreesOfFreedom != Siren.DEFAULT_DEGREES_OF_FREEDOM) {
+			throw new IllegalArgumentException(String.format("The default weight matrix is %d x %d; a weight matrix is needed for %d degrees of freedom", Siren.DEFAULT_DEGREES_OF_FREEDOM, Siren.DEFAULT_DEGREES_OF_FREEDOM, degreesOfFreedom));
+		}
+		return Siren.DEFAULT_WEIGHT_MATRIX;
+	}
+
+	public int getDegreesOfFreedom() {
+		return degreesOfFreedom;
+	}
+
+	public int getDegree() {
+		return degree;
+	}
+
+	public double[][] getWeightMatrix() {
+		return weightMatrix;
+	}
+
+	/**
+	 * Computes the SIREN scores of the given network.
+	 */
+	public double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, int threads) {
+		return computeScores(expressionMatrix, networkMatrix, threads, false, null);
+	}
+
+	/**
+	 * Computes the SIREN scores, keeping the bases in single precision if
+	 * <code>singlePrecision</code> is true (see {@link FloatBasisTensor}), and
+	 * recording the time, allocation and throughput of each phase in
+	 * <code>metrics</code> unless it's null.  Bases are only computed for the
+	 * genes of the interactions, so scoring a small network against a large
+	 * expression matrix costs about as much as the network.
+	 */
+	public double[] computeScores(double[][] expressionMatrix, int[][] networkMatrix, int threads, boolean singlePrecision, RunMetrics metrics) {
+		if (networkMatrix.length == 0) {
+			return new double[0];
+		}
+		int[] localGenes = new int[expressionMatrix.length];
+		Arrays.fill(localGenes, -1);
+		int totalGenes = 0;
+		for (int[] interaction : networkMatrix) {
+			// Other columns, such as weights, aren't genes
+			for (int k = 0; k < 2; k++) {
+				int gene = interaction[k];
+				if (localGenes[gene] == -1) {
+					localGenes[gene] = totalGenes++;
+				}
+			}
+		}
+		if (totalGenes < expressionMatrix.length) {
+			double[][] localExpression = new double[totalGenes][];
+			for (int gene = 0; gene < localGenes.length; gene++) {
+				if (localGenes[gene] != -1) {
+					localExpression[localGenes[gene]] = expressionMatrix[gene];
+				}
+			}
+			int[][] localNetwork = new int[networkMatrix.length][];
+			for (int i = 0; i < networkMatrix.length; i++) {
+				localNetwork[i] = new int[] { localGenes[networkMatrix[i][0]], localGenes[networkMatrix[i][1]] };
+			}
+			expressionMatrix = localExpression;
+			networkMatrix = localNetwork;
+		}
+		
+		if (metrics != null) {
+			metrics.begin(RunMetrics.COMPUTE_BASES);
+		}
+		BasisSource bMatrix = computeBases(expressionMatrix, threads, singlePrecision);
+		if (metrics != null) {
+			metrics.end(expressionMatrix.length, RunMetrics.GENES);
+			metrics.begin(RunMetrics.COMPUTE_MARGINALS);
+		}
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		if (metrics != null) {
+			metrics.end(expressionMatrix.length, RunMetrics.GENES);
+			metrics.begin(RunMetrics.SCORE_INTERACTIONS);
+		}
+		double[] result = createScorer(bMatrix, paMatrix, networkMatrix, singlePrecision).computeScores(networkMatrix, threads);
+		if (metrics != null) {
+			metrics.end(networkMatrix.length, RunMetrics.INTERACTIONS);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the bases of every gene, in single precision if
+	 * <code>singlePrecision</code> is true.
+	 */
+	BasisSource computeBases(double[][] expressionMatrix, int threads, boolean singlePrecision) {
+		if (singlePrecision) {
+			return Siren.computeFloatBMatrix(expressionMatrix, degreesOfFreedom, degree, threads);
+		}
+		return Siren.computeBMatrix(expressionMatrix, degreesOfFreedom, degree, threads);
+	}
+
+	/**
+	 * Prepares bases computed with this configuration for scoring the given
+	 * interactions (see {@link InteractionScorer}).
+	 */
+	InteractionScorer createScorer(BasisSource bMatrix, double[][] paMatrix, int[][] networkMatrix, boolean singlePrecision) {
+		checkBases(bMatrix);
+		return new InteractionScorer(bMatrix, paMatrix, weightMatrix, networkMatrix, degree, singlePrecision);
+	}
+
+	private void checkBases(BasisSource bMatrix) {
+		if (bMatrix.getBinCount() != degreesOfFreedom) {
+			throw new IllegalArgumentException(String.format("Bases have %d bins but the engine has %d degrees of freedom", bMatrix.getBinCount(), degreesOfFreedom));
+		}
+	}
+}
@@ -1,14 +1,26 @@
 package ca.utoronto.siren.internal;
 
+import org.cytoscape.event.CyEventHelper;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.task.NetworkTaskFactory;
 import org.cytoscape.work.TaskIterator;
 
 public class SirenNetworkTaskFactory implements NetworkTaskFactory {
+	private final BasisStore basisStore;
+	private final BasisCache basisCache;
+	private final SirenStateManager stateManager;
+	private final CyEventHelper eventHelper;
+	
+	public SirenNetworkTaskFactory(BasisStore basisStore, BasisCache basisCache, SirenStateManager stateManager, CyEventHelper eventHelper) {
+		this.basisStore = basisStore;
+		this.basisCache = basisCache;
+		this.stateManager = stateManager;
+		this.eventHelper = eventHelper;
+	}
 
 	@Override
 	public TaskIterator createTaskIterator(CyNetwork network) {
-		return new TaskIterator(new SirenTask(network));
+		return new TaskIterator(new SirenTask(network, basisStore, basisCache, stateManager, eventHelper));
 	}
 
 	@Override
@@ -0,0 +1,280 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What's known about the SIREN scores of a network after it's been scored,
+ * so they can be updated incrementally as the network changes.  SIREN bases
+ * and marginals only depend on a gene's own expression profile, and each
+ * score only depends on the two genes of its interaction, so only new
+ * interactions and the interactions of genes whose expression changed need
+ * to be rescored.
+ * <p>
+ * Genes and interactions are identified by the SUIDs of their nodes and
+ * edges.  Bases are computed on demand and kept for later updates.
+ */
+class SirenState {
+	final int degreesOfFreedom;
+	final int degree;
+	final double[][] weightMatrix;
+
+	// Settings of the run that created this state
+	String readFrom;
+	File expressionFile;
+	long expressionFileLength;
+	long expressionFileModified;
+	String nodeIdentifier;
+	List<String> attributeNames;
+
+	// Bases of the network's genes from the expression file, in file mode,
+	// and the expression profiles of genes loaded since (null if a gene
+	// isn't in the file)
+	private BasisSource fileBases;
+	private Map<String, Integer> fileRows;
+	private final Map<String, double[]> fileProfiles = new HashMap<String, double[]>();
+
+	private final Map<Long, Gene> genes = new HashMap<Long, Gene>();
+	private final Set<Long> scoredEdges = new HashSet<Long>();
+
+	static class Gene {
+		// Expression profile, or null if the basis comes from a file
+		double[] expression;
+
+		// Row in the file bases, or -1
+		int row = -1;
+
+		// Cached bins x conditions basis, or null if not computed yet
+		double[] basis;
+
+		// Whether scores that involve this gene are out of date
+		boolean isDirty = true;
+
+		boolean hasData() {
+			return expression != null || row != -1;
+		}
+	}
+
+	SirenState(int degreesOfFreedom, int degree, double[][] weightMatrix) {
+		this.degreesOfFreedom = degreesOfFreedom;
+		this.degree = degree;
+		this.weightMatrix = weightMatrix;
+	}
+
+	/**
+	 * Uses the given bases, labelled by gene, for genes identified through
+	 * {@link #setLabel(long, String)}.  They need only cover the genes of the
+	 * network; the profiles of genes added later are loaded through
+	 * {@link #addFileProfiles(Map, Collection)}.
+	 */
+	void setFileBases(BasisSource bases, List<String> labels) {
+		fileBases = bases;
+		fileRows = TabDelimitedReader.indexLabels(labels);
+		fileProfiles.clear();
+	}
+
+	/**
+	 * Returns the distinct labels, of those given, that are neither in the
+	 * file bases nor loaded yet.
+	 */
+	Set<String> getMissingLabels(String[] labels) {
+		Set<String> result = new HashSet<String>();
+		for (String label : labels) {
+			if (label != null && !fileRows.containsKey(label) && !fileProfiles.containsKey(label)) {
+				result.add(label);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the expression profiles loaded for the given labels.  Labels
+	 * without a profile are recorded as not being in the file.
+	 */
+	void addFileProfiles(Map<String, double[]> profiles, Collection<String> labels) {
+		for (String label : labels) {
+			fileProfiles.put(label, profiles.get(label));
+		}
+	}
+
+	boolean hasFileBases() {
+		return fileBases != null;
+	}
+
+	/**
+	 * Sets the label of a gene in the file bases.  Its scores become stale
+	 * if this changes its row or profile.
+	 */
+	void setLabel(long node, String label) {
+		Integer row = label == null ? null : fileRows.get(label);
+		int newRow = row == null ? -1 : row;
+		double[] expression = row == null && label != null ? fileProfiles.get(label) : null;
+		Gene gene = getGene(node);
+		if (gene.row != newRow || gene.expression != expression) {
+			gene.row = newRow;
+			gene.expression = expression;
+			gene.basis = null;
+			gene.isDirty = true;
+		}
+	}
+
+	/**
+	 * Sets the expression profile of a gene.  Its scores become stale if the
+	 * profile changed.
+	 */
+	void setExpression(long node, double[] expression) {
+		Gene gene = getGene(node);
+		if (!Arrays.equals(gene.expression, expression)) {
+			gene.expression = expression;
+			gene.basis = null;
+			gene.isDirty = true;
+		}
+	}
+
+	private Gene getGene(long node) {
+		Gene gene = genes.get(node);
+		if (gene == null) {
+			gene = new Gene();
+			genes.put(node, gene);
+		}
+		return gene;
+	}
+
+	/**
+	 * Forgets genes and interactions that are no longer in the network.
+	 */
+	void retain(Set<Long> nodes, Set<Long> edges) {
+		genes.keySet().retainAll(nodes);
+		scoredEdges.retainAll(edges);
+	}
+
+	/**
+	 * Records that the given interactions have up-to-date scores, and that
+	 * every gene is up to date.
+	 */
+	void markScored(long[] edges) {
+		for (long edge : edges) {
+			scoredEdges.add(edge);
+		}
+		for (Gene gene : genes.values()) {
+			gene.isDirty = false;
+		}
+	}
+
+	/**
+	 * Returns the indexes of the interactions that need to be scored: those
+	 * that haven't been scored yet, and those with a gene that changed.
+	 */
+	int[] getStaleInteractions(long[] edges, long[] sources, long[] targets) {
+		int[] result = new int[edges.length];
+		int total = 0;
+		for (int i = 0; i < edges.length; i++) {
+			if (!scoredEdges.contains(edges[i]) || isDirty(sources[i]) || isDirty(targets[i])) {
+				result[total++] = i;
+			}
+		}
+		return Arrays.copyOf(result, total);
+	}
+
+	private boolean isDirty(long node) {
+		Gene gene = genes.get(node);
+		return gene == null || gene.isDirty;
+	}
+
+	/**
+	 * Computes the scores of the given interactions (indexes into
+	 * <code>edges</code>, <code>sources</code> and <code>targets</code>),
+	 * computing bases only for the genes involved.  Interactions with a gene
+	 * that has no expression data score 0.
+	 */
+	double[] computeScores(int[] interactions, long[] edges, long[] sources, long[] targets, int threads) {
+		// Collect the genes involved and give them local indexes
+		final List<Gene> localGenes = new ArrayList<Gene>();
+		Map<Long, Integer> localIndexes = new HashMap<Long, Integer>();
+		int[][] networkMatrix = new int[interactions.length][];
+		int[] scoredInteractions = new int[interactions.length];
+		int total = 0;
+		for (int k = 0; k < interactions.length; k++) {
+			int i = interactions[k];
+			Gene geneA = genes.get(sources[i]);
+			Gene geneB = genes.get(targets[i]);
+			if (geneA == null || geneB == null || !geneA.hasData() || !geneB.hasData()) {
+				continue;
+			}
+			networkMatrix[total] = new int[] {
+				getLocalIndex(sources[i], geneA, localGenes, localIndexes),
+				getLocalIndex(targets[i], geneB, localGenes, localIndexes),
+			};
+			scoredInteractions[total++] = k;
+		}
+
+		double[] result = new double[interactions.length];
+		if (total > 0) {
+			int totalConditions = getConditionCount(localGenes.get(0));
+			final BasisTensor bMatrix = new BasisTensor(localGenes.size(), degreesOfFreedom, totalConditions);
+			Siren.runInParallel(threads, localGenes.size(), new Siren.RangeAction() {
+				@Override
+				public void run(int start, int end) {
+					for (int g = start; g < end; g++) {
+						double[] basis = getBasis(localGenes.get(g));
+						System.arraycopy(basis, 0, bMatrix.getData(), bMatrix.offset(g, 0), basis.length);
+					}
+				}
+			});
+			double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+			double[] scores = Siren.computeScores(bMatrix, paMatrix, weightMatrix, Arrays.copyOf(networkMatrix, total), degree, threads);
+			for (int k = 0; k < total; k++) {
+				result[scoredInteractions[k]] = scores[k];
+			}
+		}
+
+		for (int i : interactions) {
+			scoredEdges.add(edges[i]);
+		}
+		for (Gene gene : localGenes) {
+			gene.isDirty = false;
+		}
+		return result;
+	}
+
+	private static int getLocalIndex(long node, Gene gene, List<Gene> localGenes, Map<Long, Integer> localIndexes) {
+		Integer index = localIndexes.get(node);
+		if (index == null) {
+			index = localGenes.size();
+			localGenes.add(gene);
+			localIndexes.put(node, index);
+		}
+		return index;
+	}
+
+	private int getConditionCount(Gene gene) {
+		return gene.expression != null ? gene.expression.length : fileBases.getConditionCount();
+	}
+
+	/**
+	 * Returns the bins x conditions basis of the given gene, computing it if
+	 * needed.
+	 */
+	double[] getBasis(Gene gene) {
+		if (gene.basis != null) {
+			return gene.basis;
+		}
+		double[] result;
+		if (gene.expression != null) {
+			result = new double[degreesOfFreedom * gene.expression.length];
+			new BasisKernel(degreesOfFreedom, degree, gene.expression.length).computeBasis(gene.expression, result, 0);
+		} else {
+			result = new double[degreesOfFreedom * fileBases.getConditionCount()];
+			fileBases.copyGene(gene.row, result);
+		}
+		gene.basis = result;
+		return result;
+	}
+}
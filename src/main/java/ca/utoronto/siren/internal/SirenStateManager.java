@@ -0,0 +1,41 @@
+package ca.utoronto.siren.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.events.NetworkAboutToBeDestroyedEvent;
+import org.cytoscape.model.events.NetworkAboutToBeDestroyedListener;
+
+/**
+ * Keeps the {@link SirenState} of each scored network for the rest of the
+ * session, so its scores can be updated incrementally.
+ */
+public class SirenStateManager implements NetworkAboutToBeDestroyedListener {
+	private final Map<Long, SirenState> states = new HashMap<Long, SirenState>();
+
+	/**
+	 * Returns the state of the given network, or null if it hasn't been
+	 * scored.
+	 */
+	synchronized SirenState get(CyNetwork network) {
+		return states.get(network.getSUID());
+	}
+
+	synchronized void put(CyNetwork network, SirenState state) {
+		states.put(network.getSUID(), state);
+	}
+
+	/**
+	 * Forgets the state of the given network, e.g. while its scores are
+	 * being recomputed and no longer match it.
+	 */
+	synchronized void remove(CyNetwork network) {
+		states.remove(network.getSUID());
+	}
+
+	@Override
+	public synchronized void handleEvent(NetworkAboutToBeDestroyedEvent event) {
+		states.remove(event.getNetwork().getSUID());
+	}
+}
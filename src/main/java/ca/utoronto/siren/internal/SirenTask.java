@@ -1,21 +1,26 @@
 package ca.utoronto.siren.internal;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
+import org.cytoscape.event.CyEventHelper;
 import org.cytoscape.model.CyColumn;
 import org.cytoscape.model.CyEdge;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNode;
-import org.cytoscape.model.CyRow;
 import org.cytoscape.model.CyTable;
 import org.cytoscape.work.AbstractTask;
 import org.cytoscape.work.ProvidesTitle;
@@ -27,6 +32,18 @@ import org.cytoscape.work.util.ListSingleSelection;
 public class SirenTask extends AbstractTask {
 	static final String READ_FROM_FILE = "File";
 	static final String READ_FROM_ATTRIBUTES = "Node attributes";
+	static final String SCORE_COLUMN = "SIREN";
+	static final String P_VALUE_COLUMN = "SIREN p-value";
+	
+	/**
+	 * Approximate number of progress updates while scoring.
+	 */
+	static final int PROGRESS_STEPS = 100;
+	
+	/**
+	 * Smallest number of interactions scored per chunk.
+	 */
+	static final int MINIMUM_CHUNK_SIZE = 4096;
 	
 	@Tunable(description="Use gene expression values from",
 			 groups={"Step 1"})
@@ -47,10 +64,68 @@ public class SirenTask extends AbstractTask {
 			 dependsOn="readFrom=" + READ_FROM_ATTRIBUTES)
 	public ListMultipleSelection<String> attributeNames;
 	
+	@Tunable(description="Degrees of freedom (bins) of the spline bases",
+			 groups={"Spline"})
+	public int degreesOfFreedom = Siren.DEFAULT_DEGREES_OF_FREEDOM;
+	
+	@Tunable(description="Degree of the spline bases",
+			 groups={"Spline"})
+	public int degree = Siren.DEFAULT_DEGREE;
+	
+	@Tunable(description="Weight matrix file (optional for the default degrees of freedom)",
+			 groups={"Spline"},
+			 params="input=true")
+	public File weightMatrixFile;
+	
+	@Tunable(description="Number of worker threads",
+			 groups={"Advanced"})
+	public int threads = Runtime.getRuntime().availableProcessors();
+	
+	@Tunable(description="Reuse spline bases saved on disk by earlier sessions",
+			 groups={"Advanced"})
+	public boolean useBasisStore = true;
+	
+	@Tunable(description="Store spline bases in single precision (halves their memory)",
+			 groups={"Advanced"})
+	public boolean singlePrecision = false;
+	
+	@Tunable(description="Compute permutation p-values",
+			 groups={"Significance"})
+	public boolean computePValues = false;
+	
+	@Tunable(description="Maximum number of permutations per interaction",
+			 groups={"Significance"},
+			 dependsOn="computePValues=true")
+	public int permutations = PermutationTest.DEFAULT_PERMUTATIONS;
+	
+	@Tunable(description="Run report file (.json or .tsv, optional)",
+			 groups={"Advanced"},
+			 params="input=false")
+	public File reportFile;
+	
 	private CyNetwork network;
+	private BasisStore basisStore;
+	private BasisCache basisCache;
+	private SirenStateManager stateManager;
+	private CyEventHelper eventHelper;
+	private RunMetrics metrics = new RunMetrics();
 	
-	public SirenTask(CyNetwork network) {
+	/**
+	 * @param basisStore where the bases of genes are saved for later
+	 *                   sessions, or null to not save them
+	 * @param basisCache where the bases of genes are kept for other networks
+	 *                   scored in the session, or null to not keep them
+	 * @param stateManager where the state needed to update the scores later
+	 *                     is kept, or null to not keep it
+	 * @param eventHelper  used to batch the events of edge table writes, or
+	 *                     null to send them as usual
+	 */
+	public SirenTask(CyNetwork network, BasisStore basisStore, BasisCache basisCache, SirenStateManager stateManager, CyEventHelper eventHelper) {
 		this.network = network;
+		this.basisStore = basisStore;
+		this.basisCache = basisCache;
+		this.stateManager = stateManager;
+		this.eventHelper = eventHelper;
 		
 		CyTable table = network.getDefaultNodeTable();
 		List<String> expressionColumnNames = new ArrayList<String>();
@@ -85,8 +160,17 @@ public class SirenTask extends AbstractTask {
 		return "Compute SIREN scores for " + network.getRow(network).get(CyNetwork.NAME, String.class);
 	}
 	
+	/**
+	 * Returns the time, allocation and throughput of each phase of the last
+	 * run.
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
 	@Override
 	public void run(TaskMonitor taskMonitor) throws Exception {
+		metrics = new RunMetrics();
 		List<String> columnNames = attributeNames.getSelectedValues();
 		CyColumn[] columns = getColumns(network, columnNames);
 		
@@ -96,30 +180,521 @@ public class SirenTask extends AbstractTask {
 		taskMonitor.setTitle("Computing SIREN scores...");
 		taskMonitor.setStatusMessage(String.format("Computing SIREN scores for %d interactions, %d gene, and %d conditions...", edges.size(), nodes.size(), columnNames.size()));
 		
-		int[][] networkMatrix = extractNetworkMatrix(nodes, edges);
+		SirenEngine engine = createEngine();
+		BasisStore store = useBasisStore ? basisStore : null;
+		SirenState state = new SirenState(degreesOfFreedom, degree, engine.getWeightMatrix());
+		state.readFrom = readFrom.getSelectedValue();
 		
-		double[][] expressionMatrix;
-		if (READ_FROM_FILE.equals(readFrom.getSelectedValue())) {
-			expressionMatrix = loadExpressionData(expressionFile, network, nodes, nodeIdentifier.getSelectedValue());
+		// Each node's gene, as identified in the cache, and its cached
+		// bases.  Only the genes of interactions are needed; nodes without
+		// interactions, or that can't have expression data, have no gene.
+		BasisCache cache = basisCache == null ? new BasisCache(Long.MAX_VALUE) : basisCache;
+		int[][] endpoints = extractEndpoints(nodes, edges);
+		boolean[] isEndpoint = new boolean[nodes.size()];
+		for (int[] interaction : endpoints) {
+			isEndpoint[interaction[0]] = true;
+			isEndpoint[interaction[1]] = true;
+		}
+		String source;
+		String[] labels = null;
+		String[] genes = new String[nodes.size()];
+		double[][] expressionMatrix = null;
+		boolean isFileMode = READ_FROM_FILE.equals(readFrom.getSelectedValue());
+		if (isFileMode) {
+			source = BasisStore.getKey(BasisCache.getFileSource(expressionFile), singlePrecision);
+			labels = getGeneLabels(network, nodes, nodeIdentifier.getSelectedValue());
+			for (int i = 0; i < genes.length; i++) {
+				genes[i] = isEndpoint[i] ? labels[i] : null;
+			}
 		} else {
+			metrics.begin(RunMetrics.EXTRACT_ATTRIBUTES);
 			expressionMatrix = extractExpressionMatrix(network, nodes, columns);
+			endPhase(expressionMatrix.length, RunMetrics.GENES, taskMonitor);
+			source = BasisStore.getKey(BasisCache.getAttributeSource(columnNames), singlePrecision);
+			for (int i = 0; i < genes.length; i++) {
+				genes[i] = isEndpoint[i] ? Long.toString(nodes.get(i).getSUID()) : null;
+			}
+		}
+		
+		metrics.begin(RunMetrics.LOAD_CACHED_BASES);
+		BasisCache.Entry[] entries = new BasisCache.Entry[nodes.size()];
+		int totalCached = 0;
+		int totalMissing = 0;
+		for (int i = 0; i < entries.length; i++) {
+			if (genes[i] == null) {
+				continue;
+			}
+			entries[i] = cache.get(source, degreesOfFreedom, degree, genes[i], expressionMatrix == null ? null : expressionMatrix[i]);
+			if (entries[i] == null) {
+				totalMissing++;
+			} else {
+				totalCached++;
+			}
 		}
+		endPhase(totalCached, RunMetrics.GENES, taskMonitor);
+		if (totalMissing > 0) {
+			if (isFileMode) {
+				loadFileGenes(source, genes, entries, engine, store, cache, taskMonitor);
+			} else {
+				computeAttributeGenes(source, genes, expressionMatrix, entries, engine, store, cache, taskMonitor);
+			}
+		}
+		
+		// Bases of the network's genes, and the row of each node's gene, or
+		// -1 if it has no expression data
+		int[] geneRows = new int[nodes.size()];
+		List<BasisCache.Entry> geneEntries = new ArrayList<BasisCache.Entry>();
+		List<String> geneLabels = new ArrayList<String>();
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == null || !entries[i].hasData()) {
+				geneRows[i] = -1;
+				continue;
+			}
+			geneRows[i] = geneEntries.size();
+			geneEntries.add(entries[i]);
+			geneLabels.add(genes[i]);
+		}
+		BasisSource bMatrix = createGeneBases(geneEntries, degreesOfFreedom, singlePrecision);
+		double[][] paMatrix = new double[geneEntries.size()][];
+		for (int g = 0; g < paMatrix.length; g++) {
+			paMatrix[g] = geneEntries.get(g).pA;
+		}
+		
+		if (isFileMode) {
+			// Genes that join the interactions later are loaded from the file
+			// when its scores are updated
+			state.expressionFile = expressionFile;
+			state.expressionFileLength = expressionFile.length();
+			state.expressionFileModified = expressionFile.lastModified();
+			state.nodeIdentifier = nodeIdentifier.getSelectedValue();
+			state.setFileBases(bMatrix, geneLabels);
+			for (int i = 0; i < labels.length; i++) {
+				state.setLabel(nodes.get(i).getSUID(), labels[i]);
+			}
+		} else {
+			state.attributeNames = new ArrayList<String>(columnNames);
+			for (int i = 0; i < expressionMatrix.length; i++) {
+				state.setExpression(nodes.get(i).getSUID(), expressionMatrix[i]);
+			}
+		}
+		
+		int[] edgeIndexes = new int[edges.size()];
+		int[][] networkMatrix = extractNetworkMatrix(endpoints, geneRows, edgeIndexes);
+		long[] edgeSuids = TableColumns.getSuids(edges);
+		TableColumns edgeTable = new TableColumns(network.getDefaultEdgeTable());
+		if (cancelled) {
+			return;
+		}
+		
+		// Interactions are scored, and their scores written, in chunks so
+		// progress can be shown, scores can be explored as they arrive, and
+		// the run can be cancelled.
+		metrics.begin(RunMetrics.SCORE_INTERACTIONS);
+		InteractionScorer scorer = engine.createScorer(bMatrix, paMatrix, networkMatrix, singlePrecision);
+		endPhase(0, RunMetrics.INTERACTIONS, taskMonitor);
+		
+		// Genes without expression data score 0, as they would with an
+		// all-NaN expression profile.  Scores from earlier runs are cleared
+		// so they can't be mistaken for new ones.  The earlier state no
+		// longer describes the cleared scores, so it's dropped first, and a
+		// run that's cancelled or fails leaves none to update from.
+		if (stateManager != null) {
+			stateManager.remove(network);
+		}
+		metrics.begin(RunMetrics.WRITE_EDGE_TABLE);
+		boolean hasScores = network.getDefaultEdgeTable().getColumn(SCORE_COLUMN) != null;
+		String columnName = getScoreColumn(network);
+		initializeColumn(edgeTable, edgeSuids, edgeIndexes, networkMatrix.length, columnName, 0.0, hasScores);
+		endPhase(0, RunMetrics.INTERACTIONS, taskMonitor);
 		
-		double[] scores = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX);
+		double scoringProgress = computePValues ? 0.5 : 1.0;
+		int chunkSize = getChunkSize(networkMatrix.length);
+		for (int start = 0; start < networkMatrix.length; start += chunkSize) {
+			if (cancelled) {
+				taskMonitor.setStatusMessage(String.format("Cancelled after scoring %d of %d interactions", start, networkMatrix.length));
+				return;
+			}
+			int end = Math.min(networkMatrix.length, start + chunkSize);
+			metrics.begin(RunMetrics.SCORE_INTERACTIONS);
+			double[] scores = scorer.computeScores(Arrays.copyOfRange(networkMatrix, start, end), threads);
+			endPhase(end - start, RunMetrics.INTERACTIONS, taskMonitor);
+			
+			metrics.begin(RunMetrics.WRITE_EDGE_TABLE);
+			edgeTable.setValues(columnName, edgeSuids, Arrays.copyOfRange(edgeIndexes, start, end), scores, eventHelper);
+			endPhase(end - start, RunMetrics.INTERACTIONS, taskMonitor);
+			taskMonitor.setProgress(scoringProgress * end / networkMatrix.length);
+		}
 		
+		if (computePValues) {
+			taskMonitor.setStatusMessage(String.format("Computing p-values with up to %d permutations...", permutations));
+			metrics.begin(RunMetrics.COMPUTE_P_VALUES);
+			PermutationTest test = scorer.createPermutationTest();
+			
+			// Interactions without expression data score 0, which every
+			// permutation reaches.
+			boolean hasPValues = network.getDefaultEdgeTable().getColumn(P_VALUE_COLUMN) != null;
+			String pValueColumnName = getPValueColumn(network);
+			initializeColumn(edgeTable, edgeSuids, edgeIndexes, networkMatrix.length, pValueColumnName, 1.0, hasPValues);
+			endPhase(0, RunMetrics.INTERACTIONS, taskMonitor);
+			
+			// Permutations cost much more per interaction, so use smaller
+			// chunks
+			chunkSize = Math.max(1, chunkSize / 16);
+			for (int start = 0; start < networkMatrix.length; start += chunkSize) {
+				if (cancelled) {
+					taskMonitor.setStatusMessage(String.format("Cancelled after computing p-values for %d of %d interactions", start, networkMatrix.length));
+					return;
+				}
+				int end = Math.min(networkMatrix.length, start + chunkSize);
+				metrics.begin(RunMetrics.COMPUTE_P_VALUES);
+				double[] pValues = test.computePValues(Arrays.copyOfRange(networkMatrix, start, end), permutations, PermutationTest.DEFAULT_EXCEEDANCES, PermutationTest.DEFAULT_SEED, threads);
+				edgeTable.setValues(pValueColumnName, edgeSuids, Arrays.copyOfRange(edgeIndexes, start, end), pValues, eventHelper);
+				endPhase(end - start, RunMetrics.INTERACTIONS, taskMonitor);
+				taskMonitor.setProgress(scoringProgress + (1 - scoringProgress) * end / networkMatrix.length);
+			}
+		}
+		
+		if (stateManager != null) {
+			state.markScored(edgeSuids);
+			stateManager.put(network, state);
+		}
+		
+		taskMonitor.setStatusMessage(metrics.toString());
+		if (reportFile != null) {
+			writeReport(metrics, reportFile);
+		}
+	}
+	
+	/**
+	 * Returns the engine for the chosen spline configuration.  The default
+	 * weight matrix is used if no weight matrix file is given.
+	 */
+	SirenEngine createEngine() throws IOException {
+		double[][] weightMatrix;
+		if (weightMatrixFile == null) {
+			weightMatrix = SirenEngine.getDefaultWeightMatrix(degreesOfFreedom);
+		} else {
+			weightMatrix = TabDelimitedReader.loadMatrix(weightMatrixFile, 1);
+		}
+		return new SirenEngine(degreesOfFreedom, degree, weightMatrix);
+	}
+	
+	/**
+	 * Returns the number of interactions scored per chunk: enough for
+	 * roughly {@link #PROGRESS_STEPS} progress updates, but no fewer than
+	 * {@link #MINIMUM_CHUNK_SIZE} so each chunk has enough work to batch.
+	 */
+	static int getChunkSize(int totalInteractions) {
+		return Math.max(MINIMUM_CHUNK_SIZE, (totalInteractions + PROGRESS_STEPS - 1) / PROGRESS_STEPS);
+	}
+	
+	/**
+	 * Sets the given column of edges without expression data to
+	 * <code>missingValue</code>, and, if <code>clear</code>, clears it for
+	 * the others.  <code>edgeIndexes</code> holds the indexes of the
+	 * <code>totalInteractions</code> edges that have data.
+	 */
+	private void initializeColumn(TableColumns edgeTable, long[] edgeSuids, int[] edgeIndexes, int totalInteractions, String columnName, Double missingValue, boolean clear) {
+		boolean[] hasData = new boolean[edgeSuids.length];
+		for (int i = 0; i < totalInteractions; i++) {
+			hasData[edgeIndexes[i]] = true;
+		}
+		int[] rows = new int[edgeSuids.length];
+		int total = 0;
+		for (int i = 0; i < hasData.length; i++) {
+			if (!hasData[i] || clear) {
+				rows[total++] = i;
+			}
+		}
+		Double[] values = new Double[total];
+		for (int k = 0; k < total; k++) {
+			values[k] = hasData[rows[k]] ? null : missingValue;
+		}
+		edgeTable.setValues(columnName, edgeSuids, Arrays.copyOf(rows, total), values, eventHelper);
+	}
+	
+	/**
+	 * Fills in the missing entries of genes from the expression file, from
+	 * the basis store or by computing the bases of just those genes, and
+	 * caches them.  Genes that aren't in the file get entries without data.
+	 * Computed genes are added to the store.
+	 */
+	private void loadFileGenes(String source, String[] genes, BasisCache.Entry[] entries, SirenEngine engine, BasisStore store, BasisCache cache, TaskMonitor taskMonitor) throws IOException {
+		String key = store == null ? null : getStoreKey(BasisStore.computeKey(expressionFile, degreesOfFreedom, degree));
+		BasisStore.StoredBasis stored = loadStoredGenes(store, key, source, genes, genes, null, entries, cache, taskMonitor);
+		
+		// Only the rows of missing genes are parsed
+		Set<String> missingLabels = new HashSet<String>();
+		for (int i = 0; i < entries.length; i++) {
+			if (genes[i] != null && entries[i] == null) {
+				missingLabels.add(genes[i]);
+			}
+		}
+		if (missingLabels.isEmpty()) {
+			return;
+		}
+		metrics.begin(RunMetrics.LOAD_EXPRESSION_FILE);
+		TabDelimitedReader.LabelledMatrix expressionData = TabDelimitedReader.loadLabelledMatrix(expressionFile, missingLabels, threads);
+		endPhase(expressionData.values.length, RunMetrics.GENES, taskMonitor);
+		BasisSource bMatrix = computeBases(expressionData.values, engine, taskMonitor);
+		double[][] paMatrix = computeMarginals(bMatrix, taskMonitor);
+		saveStoredGenes(store, key, stored, expressionData.labels, bMatrix, paMatrix, taskMonitor);
+		
+		Map<String, Integer> rows = TabDelimitedReader.indexLabels(expressionData.labels);
+		Map<String, BasisCache.Entry> added = new HashMap<String, BasisCache.Entry>();
+		for (int i = 0; i < entries.length; i++) {
+			if (genes[i] == null || entries[i] != null) {
+				continue;
+			}
+			BasisCache.Entry entry = added.get(genes[i]);
+			if (entry == null) {
+				Integer row = rows.get(genes[i]);
+				if (row == null) {
+					entry = cache.put(source, degreesOfFreedom, degree, genes[i], null, null, null);
+				} else {
+					entry = cacheGene(cache, source, genes[i], null, bMatrix, row, paMatrix[row]);
+				}
+				added.put(genes[i], entry);
+			}
+			entries[i] = entry;
+		}
+	}
+	
+	/**
+	 * Fills in the missing entries of genes from node attributes, from the
+	 * basis store or by computing just their bases, and caches them.
+	 * Computed genes are added to the store.
+	 */
+	private void computeAttributeGenes(String source, String[] genes, double[][] expressionMatrix, BasisCache.Entry[] entries, SirenEngine engine, BasisStore store, BasisCache cache, TaskMonitor taskMonitor) {
+		// SUIDs change between sessions, so stored genes are labelled by
+		// their row of the expression matrix, which the key covers
+		String key = store == null ? null : getStoreKey(BasisStore.computeKey(expressionMatrix, degreesOfFreedom, degree));
+		String[] rowLabels = new String[entries.length];
+		for (int i = 0; i < rowLabels.length; i++) {
+			rowLabels[i] = Integer.toString(i);
+		}
+		BasisStore.StoredBasis stored = loadStoredGenes(store, key, source, genes, rowLabels, expressionMatrix, entries, cache, taskMonitor);
+		
+		int[] missing = new int[entries.length];
+		int totalMissing = 0;
+		for (int i = 0; i < entries.length; i++) {
+			if (genes[i] != null && entries[i] == null) {
+				missing[totalMissing++] = i;
+			}
+		}
+		double[][] missingMatrix = new double[totalMissing][];
+		for (int k = 0; k < totalMissing; k++) {
+			missingMatrix[k] = expressionMatrix[missing[k]];
+		}
+		if (totalMissing == 0) {
+			return;
+		}
+		BasisSource bMatrix = computeBases(missingMatrix, engine, taskMonitor);
+		double[][] paMatrix = computeMarginals(bMatrix, taskMonitor);
+		
+		List<String> missingLabels = new ArrayList<String>();
+		for (int k = 0; k < totalMissing; k++) {
+			int i = missing[k];
+			entries[i] = cacheGene(cache, source, genes[i], expressionMatrix[i], bMatrix, k, paMatrix[k]);
+			missingLabels.add(rowLabels[i]);
+		}
+		saveStoredGenes(store, key, stored, missingLabels, bMatrix, paMatrix, taskMonitor);
+	}
+	
+	/**
+	 * Returns the basis store key of the given data's genes for the chosen
+	 * spline configuration and precision.
+	 */
+	private String getStoreKey(String dataKey) {
+		return BasisStore.getKey(BasisStore.getPartialKey(dataKey), singlePrecision);
+	}
+	
+	/**
+	 * Fills in the missing entries of genes whose bases are in the store
+	 * entry for <code>key</code>, where node i's gene is labelled
+	 * <code>storeLabels[i]</code>, and caches them.  Returns the entry, or
+	 * null if there's none.
+	 */
+	private BasisStore.StoredBasis loadStoredGenes(BasisStore store, String key, String source, String[] genes, String[] storeLabels, double[][] expressionMatrix, BasisCache.Entry[] entries, BasisCache cache, TaskMonitor taskMonitor) {
+		if (store == null) {
+			return null;
+		}
+		metrics.begin(RunMetrics.LOAD_CACHED_BASES);
+		BasisStore.StoredBasis stored = loadBases(store, key, taskMonitor);
+		if (stored == null || stored.labels == null) {
+			endPhase(0, RunMetrics.GENES, taskMonitor);
+			return null;
+		}
+		Map<String, Integer> rows = TabDelimitedReader.indexLabels(stored.labels);
+		Map<String, BasisCache.Entry> added = new HashMap<String, BasisCache.Entry>();
+		for (int i = 0; i < entries.length; i++) {
+			if (genes[i] == null || entries[i] != null) {
+				continue;
+			}
+			BasisCache.Entry entry = added.get(genes[i]);
+			if (entry == null) {
+				Integer row = rows.get(storeLabels[i]);
+				if (row == null) {
+					continue;
+				}
+				entry = cacheGene(cache, source, genes[i], expressionMatrix == null ? null : expressionMatrix[i], stored.bMatrix, row, stored.paMatrix[row]);
+				added.put(genes[i], entry);
+			}
+			entries[i] = entry;
+		}
+		endPhase(added.size(), RunMetrics.GENES, taskMonitor);
+		return stored;
+	}
+	
+	/**
+	 * Adds the bases of newly computed genes, labelled
+	 * <code>labels</code>, to the store entry for <code>key</code>.  The
+	 * entry is rewritten with the genes it already had.
+	 */
+	private void saveStoredGenes(BasisStore store, String key, BasisStore.StoredBasis stored, List<String> labels, BasisSource bMatrix, double[][] paMatrix, TaskMonitor taskMonitor) {
+		if (store == null || labels.isEmpty()) {
+			return;
+		}
+		List<String> allLabels = new ArrayList<String>();
+		BasisSource allBases = bMatrix;
+		double[][] allMarginals = paMatrix;
+		if (stored != null) {
+			allLabels.addAll(stored.labels);
+			allBases = new AppendedBases(stored.bMatrix, bMatrix);
+			allMarginals = Arrays.copyOf(stored.paMatrix, stored.paMatrix.length + paMatrix.length);
+			System.arraycopy(paMatrix, 0, allMarginals, stored.paMatrix.length, paMatrix.length);
+		}
+		allLabels.addAll(labels);
+		try {
+			store.save(key, allLabels, allBases, allMarginals, degreesOfFreedom, degree, singlePrecision);
+		} catch (IOException e) {
+			// Storing is an optimization, so carry on without it
+			taskMonitor.setStatusMessage("Unable to save spline bases: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Caches the basis of the given row of <code>bMatrix</code>, as computed
+	 * by {@link #computeBases(double[][], SirenEngine, TaskMonitor)}, as the
+	 * basis of <code>gene</code>, and returns its entry.  Single-precision
+	 * bases are cached without widening them, and stored ones, which are
+	 * exactly floats, are narrowed back.
+	 */
+	private BasisCache.Entry cacheGene(BasisCache cache, String source, String gene, double[] expression, BasisSource bMatrix, int row, double[] pA) {
+		int size = bMatrix.getBinCount() * bMatrix.getConditionCount();
+		if (bMatrix instanceof FloatBasisTensor) {
+			float[] basis = new float[size];
+			((FloatBasisTensor) bMatrix).copyGene(row, basis);
+			return cache.putFloat(source, degreesOfFreedom, degree, gene, expression, basis, pA);
+		}
+		if (singlePrecision) {
+			double[] buffer = new double[size];
+			bMatrix.copyGene(row, buffer);
+			float[] basis = new float[size];
+			for (int k = 0; k < size; k++) {
+				basis[k] = (float) buffer[k];
+			}
+			return cache.putFloat(source, degreesOfFreedom, degree, gene, expression, basis, pA);
+		}
+		double[] basis = new double[size];
+		bMatrix.copyGene(row, basis);
+		return cache.put(source, degreesOfFreedom, degree, gene, expression, basis, pA);
+	}
+	
+	/**
+	 * Returns the bases of the given entries, which all have data, without
+	 * copying them.  Single-precision entries stay in single precision.
+	 */
+	static BasisSource createGeneBases(List<BasisCache.Entry> entries, int degreesOfFreedom, boolean singlePrecision) {
+		if (singlePrecision) {
+			float[][] bases = new float[entries.size()][];
+			for (int g = 0; g < bases.length; g++) {
+				bases[g] = entries.get(g).floatBasis;
+			}
+			return new FloatGeneBases(bases, degreesOfFreedom, bases.length == 0 ? 0 : bases[0].length / degreesOfFreedom);
+		}
+		double[][] bases = new double[entries.size()][];
+		for (int g = 0; g < bases.length; g++) {
+			bases[g] = entries.get(g).basis;
+		}
+		return new GeneBases(bases, degreesOfFreedom, bases.length == 0 ? 0 : bases[0].length / degreesOfFreedom);
+	}
+	
+	private BasisSource computeBases(double[][] expressionMatrix, SirenEngine engine, TaskMonitor taskMonitor) {
+		metrics.begin(RunMetrics.COMPUTE_BASES);
+		BasisSource result = engine.computeBases(expressionMatrix, threads, singlePrecision);
+		endPhase(expressionMatrix.length, RunMetrics.GENES, taskMonitor);
+		return result;
+	}
+	
+	private double[][] computeMarginals(BasisSource bMatrix, TaskMonitor taskMonitor) {
+		metrics.begin(RunMetrics.COMPUTE_MARGINALS);
+		double[][] result = Siren.computePaMatrix(bMatrix);
+		endPhase(bMatrix.getGeneCount(), RunMetrics.GENES, taskMonitor);
+		return result;
+	}
+	
+	private void endPhase(long items, String unit, TaskMonitor taskMonitor) {
+		taskMonitor.setStatusMessage(metrics.end(items, unit).toString());
+	}
+	
+	/**
+	 * Writes the given metrics as JSON if the file name ends in ".json", or
+	 * as tab-delimited text otherwise.
+	 */
+	static void writeReport(RunMetrics metrics, File file) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			if (file.getName().toLowerCase(Locale.ROOT).endsWith(".json")) {
+				metrics.writeJson(writer);
+			} else {
+				metrics.writeTsv(writer);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Returns the name of the edge column that holds the p-values of SIREN
+	 * scores, creating it if needed.
+	 */
+	static String getPValueColumn(CyNetwork network) {
 		CyTable table = network.getDefaultEdgeTable();
-		String columnName = "SIREN";
+		String columnName = P_VALUE_COLUMN;
 		if (table.getColumn(columnName) == null) {
 			table.createColumn(columnName, Double.class, false);
 		}
-		
-		for (int i = 0; i < scores.length; i++) {
-			CyEdge edge = edges.get(i);
-			network.getRow(edge).set(columnName, scores[i]);
+		return columnName;
+	}
+	
+	/**
+	 * Returns the name of the edge column that holds SIREN scores, creating
+	 * it if needed.
+	 */
+	static String getScoreColumn(CyNetwork network) {
+		CyTable table = network.getDefaultEdgeTable();
+		String columnName = SCORE_COLUMN;
+		if (table.getColumn(columnName) == null) {
+			table.createColumn(columnName, Double.class, false);
 		}
+		return columnName;
 	}
-
-	private static CyColumn[] getColumns(CyNetwork network, List<String> columnNames) {
+	
+	private static BasisStore.StoredBasis loadBases(BasisStore store, String key, TaskMonitor taskMonitor) {
+		try {
+			BasisStore.StoredBasis result = store.load(key);
+			if (result != null) {
+				taskMonitor.setStatusMessage("Using saved spline bases...");
+			}
+			return result;
+		} catch (IOException e) {
+			taskMonitor.setStatusMessage("Unable to read saved spline bases: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	static CyColumn[] getColumns(CyNetwork network, List<String> columnNames) {
 		CyTable table = network.getDefaultNodeTable();
 		CyColumn[] columns = new CyColumn[columnNames.size()];
 		int index = 0;
@@ -129,83 +704,67 @@ public class SirenTask extends AbstractTask {
 		return columns;
 	}
 
-	@SuppressWarnings("unchecked")
-	private static double[][] extractExpressionMatrix(CyNetwork network, List<CyNode> nodes, CyColumn[] columns) {
-		double[][] result = new double[nodes.size()][columns.length];
-		int nodeIndex = 0;
-		for (CyNode node : nodes) {
-			for (int i = 0; i < columns.length; i++) {
-				CyColumn column = columns[i];
-				CyRow row = network.getRow(node);
-				Class<Number> type = (Class<Number>) column.getType();
-				Number number = row.get(column.getName(), type);
-				result[nodeIndex][i] = number == null ? Double.NaN : number.doubleValue(); 
-			}
-			nodeIndex++;
-		}
-		return result;
+	static double[][] extractExpressionMatrix(CyNetwork network, List<CyNode> nodes, CyColumn[] columns) {
+		return new TableColumns(network.getDefaultNodeTable()).getMatrix(columns, TableColumns.getSuids(nodes));
 	}
 
-	private static int[][] extractNetworkMatrix(List<CyNode> nodes, List<CyEdge> edges) {
-		Map<CyNode, Integer> nodeIndexes = new IdentityHashMap<CyNode, Integer>();
+	/**
+	 * Returns the indexes, in <code>nodes</code>, of the source and target
+	 * of each edge.
+	 */
+	private static int[][] extractEndpoints(List<CyNode> nodes, List<CyEdge> edges) {
+		LongIntMap nodeIndexes = new LongIntMap(nodes.size());
 		int nodeIndex = 0;
 		for (CyNode node : nodes) {
-			nodeIndexes.put(node, nodeIndex++);
+			nodeIndexes.put(node.getSUID(), nodeIndex++);
 		}
 
 		int[][] result = new int[edges.size()][];
 		int edgeIndex = 0;
 		for (CyEdge edge : edges) {
-			result[edgeIndex++] = new int[] {
-				nodeIndexes.get(edge.getSource()),
-				nodeIndexes.get(edge.getTarget()),
-			};
+			result[edgeIndex++] = new int[] { nodeIndexes.get(edge.getSource().getSUID()), nodeIndexes.get(edge.getTarget().getSUID()) };
 		}
 		return result;
 	}
 	
-	private static double[][] loadExpressionData(File file, CyNetwork network, List<CyNode> nodes, String identifier) throws IOException {
-		CyTable table = network.getDefaultNodeTable();
-		CyColumn column = table.getColumn(identifier);
-		Class<?> type = column.getType();
-		
-		Map<String, Integer> nodeIndexes = new HashMap<String, Integer>();
-		int nodeIndex = 0;
-		for (CyNode node : nodes) {
-			CyRow row = network.getRow(node);
-			nodeIndexes.put(row.get(identifier, type).toString(), nodeIndex++);
-		}
-		
-		int[] dimensions = Siren.getMatrixDimensions(file.getPath());
-		// First column is gene name
-		int columns = dimensions[1] - 1;
-		int rows = dimensions[0];
-		
-		BufferedReader reader = new BufferedReader(new FileReader(file));
-		double[][] result = new double[rows][columns];
-		Siren.clearMatrix(result, Double.NaN);
-		try {
-			String line = reader.readLine();
-			while (line != null) {
-				try {
-					String[] values = line.split("\t");
-					if (values.length < 2) {
-						continue;
-					}
-					Integer rowIndex = nodeIndexes.get(values[0]);
-					if (rowIndex == null) {
-						continue;
-					}
-					for (int i = 1; i < values.length; i++) {
-						result[rowIndex][i - 1] = Double.parseDouble(values[i]);
-					}
-				} finally {
-					line = reader.readLine();
-				}
+	/**
+	 * Returns the interactions between nodes that have expression data, as
+	 * pairs of expression data rows.  The edge index of each interaction is
+	 * stored in <code>edgeIndexes</code>.
+	 */
+	private static int[][] extractNetworkMatrix(int[][] endpoints, int[] geneRows, int[] edgeIndexes) {
+		int[][] result = new int[endpoints.length][];
+		int total = 0;
+		for (int edgeIndex = 0; edgeIndex < endpoints.length; edgeIndex++) {
+			int geneA = geneRows[endpoints[edgeIndex][0]];
+			int geneB = geneRows[endpoints[edgeIndex][1]];
+			if (geneA != -1 && geneB != -1) {
+				edgeIndexes[total] = edgeIndex;
+				result[total++] = new int[] { geneA, geneB };
 			}
-		} finally {
-			reader.close();
+		}
+		return Arrays.copyOf(result, total);
+	}
+	
+	/**
+	 * Returns the expression profiles of the given genes that are in the
+	 * file, by label.  Where a label has several rows, the last is used.
+	 */
+	static Map<String, double[]> loadExpressionProfiles(File file, Collection<String> labels, int threads) throws IOException {
+		TabDelimitedReader.LabelledMatrix expressionData = TabDelimitedReader.loadLabelledMatrix(file, new HashSet<String>(labels), threads);
+		Map<String, double[]> result = new HashMap<String, double[]>();
+		for (int i = 0; i < expressionData.values.length; i++) {
+			result.put(expressionData.labels.get(i), expressionData.values[i]);
 		}
 		return result;
 	}
+	
+	/**
+	 * Returns the value of the given identifier column for each node, as
+	 * text, or null if it has none.
+	 */
+	static String[] getGeneLabels(CyNetwork network, List<CyNode> nodes, String identifier) {
+		CyTable table = network.getDefaultNodeTable();
+		return new TableColumns(table).getText(table.getColumn(identifier), TableColumns.getSuids(nodes));
+	}
 }
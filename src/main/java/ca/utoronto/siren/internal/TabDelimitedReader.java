@@ -0,0 +1,638 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads tab-delimited matrices in a single pass over a memory-mapped file.
+ * Fields are tokenised and parsed straight from the mapped bytes, without
+ * creating a String per line or per value (gene labels aside).  Large
+ * files are split into line-aligned chunks that are parsed in parallel.
+ */
+class TabDelimitedReader {
+	/**
+	 * Largest chunk mapped at once.  A single mapping is limited to 2GB.
+	 */
+	static final long MAXIMUM_CHUNK_SIZE = 1 << 30;
+
+	/**
+	 * Files smaller than this are always parsed as a single chunk.
+	 */
+	static final long MINIMUM_PARALLEL_SIZE = 1 << 20;
+
+	private static final byte TAB = '\t';
+	private static final byte NEW_LINE = '\n';
+	private static final byte CARRIAGE_RETURN = '\r';
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Returns the matrix of numbers in the given file.  The number of
+	 * columns is taken from the first line; missing values in shorter rows
+	 * are 0.
+	 */
+	static double[][] loadMatrix(File file, int threads) throws IOException {
+		final List<ByteBuffer> chunks = mapChunks(file, threads);
+		final int columns = chunks.isEmpty() ? 0 : countFields(chunks.get(0));
+		final double[][][] parts = new double[chunks.size()][][];
+		runInParallel(file, chunks, threads, new ChunkAction() {
+			@Override
+			public void run(int index) throws IOException {
+				ByteBuffer chunk = chunks.get(index);
+				double[][] rows = new double[countLines(chunk)][];
+				int rowIndex = 0;
+				int position = 0;
+				int limit = chunk.limit();
+				while (position < limit) {
+					double[] values = new double[columns];
+					position = parseDoubles(chunk, position, limit, values, 0, rowIndex);
+					rows[rowIndex++] = values;
+				}
+				parts[index] = rows;
+			}
+		});
+		return concatenate(parts);
+	}
+
+	/**
+	 * Returns the interactions in the given network file.  Genes are
+	 * 1-based in the file and 0-based in the result.
+	 */
+	static int[][] loadNetworkMatrix(File file, int threads) throws IOException {
+		final List<ByteBuffer> chunks = mapChunks(file, threads);
+		final int columns = chunks.isEmpty() ? 0 : countFields(chunks.get(0));
+		final int[][][] parts = new int[chunks.size()][][];
+		runInParallel(file, chunks, threads, new ChunkAction() {
+			@Override
+			public void run(int index) throws IOException {
+				ByteBuffer chunk = chunks.get(index);
+				int[][] rows = new int[countLines(chunk)][];
+				int rowIndex = 0;
+				int position = 0;
+				int limit = chunk.limit();
+				while (position < limit) {
+					int[] values = new int[columns];
+					position = parseInts(chunk, position, limit, values, rowIndex);
+					for (int i = 0; i < values.length; i++) {
+						// The R implementation of SIREN used networks
+						// with 1-based indexes.  Since Java uses 0-based
+						// indexes, we need to adjust them.
+						values[i]--;
+					}
+					rows[rowIndex++] = values;
+				}
+				parts[index] = rows;
+			}
+		});
+		return concatenate(parts);
+	}
+
+	/**
+	 * A matrix whose rows are labelled by the first column of the file.
+	 */
+	static class LabelledMatrix {
+		final List<String> labels;
+		final double[][] values;
+
+		LabelledMatrix(List<String> labels, double[][] values) {
+			this.labels = labels;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Returns the expression data in the given file.  The first column of
+	 * each line is the gene name, and the rest are its expression values.
+	 * Lines without any values are skipped, and missing values are NaN.
+	 */
+	static LabelledMatrix loadLabelledMatrix(File file, int threads) throws IOException {
+		return loadLabelledMatrix(file, null, threads);
+	}
+
+	/**
+	 * Returns the expression data of the given genes, or of every gene if
+	 * <code>wanted</code> is null.  Other lines are skipped without parsing
+	 * their values.
+	 */
+	static LabelledMatrix loadLabelledMatrix(File file, final Set<String> wanted, int threads) throws IOException {
+		final List<ByteBuffer> chunks = mapChunks(file, threads);
+		// First column is gene name
+		final int columns = chunks.isEmpty() ? 0 : countFields(chunks.get(0)) - 1;
+		final String[][] labelsPerChunk = new String[chunks.size()][];
+		final double[][][] valuesPerChunk = new double[chunks.size()][][];
+		runInParallel(file, chunks, threads, new ChunkAction() {
+			@Override
+			public void run(int index) throws IOException {
+				ByteBuffer chunk = chunks.get(index);
+				int totalLines = countLines(chunk);
+				String[] labels = new String[totalLines];
+				double[][] values = new double[totalLines][];
+				int total = 0;
+				int lineIndex = 0;
+				int position = 0;
+				int limit = chunk.limit();
+				while (position < limit) {
+					int end = findFieldEnd(chunk, position, limit);
+					int lineEnd = findLineEnd(chunk, end, limit);
+					if (!isEmpty(chunk, end, lineEnd)) {
+						String label = decode(chunk, position, end);
+						if (wanted == null || wanted.contains(label)) {
+							double[] row = new double[columns];
+							Arrays.fill(row, Double.NaN);
+							parseDoubles(chunk, end + 1, limit, row, 0, lineIndex);
+							labels[total] = label;
+							values[total] = row;
+							total++;
+						}
+					}
+					position = skipLine(chunk, lineEnd, limit);
+					lineIndex++;
+				}
+				labelsPerChunk[index] = Arrays.copyOf(labels, total);
+				valuesPerChunk[index] = Arrays.copyOf(values, total);
+			}
+		});
+
+		List<String> labels = new ArrayList<String>();
+		for (String[] part : labelsPerChunk) {
+			labels.addAll(Arrays.asList(part));
+		}
+		return new LabelledMatrix(labels, concatenate(valuesPerChunk));
+	}
+
+	/**
+	 * Returns the row of each label.  If a label appears more than once,
+	 * its last row wins.
+	 */
+	static Map<String, Integer> indexLabels(List<String> labels) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		int index = 0;
+		for (String label : labels) {
+			result.put(label, index++);
+		}
+		return result;
+	}
+
+	interface ChunkAction {
+		void run(int index) throws IOException;
+	}
+
+	/**
+	 * A malformed line.  Chunks are parsed in parallel, so it's numbered
+	 * from the start of its chunk until {@link #locate(File, long)} gives
+	 * its line in the file.
+	 */
+	@SuppressWarnings("serial")
+	static class LineException extends IOException {
+		private final String problem;
+		private final long lineIndex;
+
+		LineException(String problem, long lineIndex) {
+			super(String.format("%s on line %d of chunk", problem, lineIndex + 1));
+			this.problem = problem;
+			this.lineIndex = lineIndex;
+		}
+
+		/**
+		 * Returns the error for the given file, whose chunk starts at
+		 * (0-based) line <code>firstLine</code>.
+		 */
+		IOException locate(File file, long firstLine) {
+			return new IOException(String.format("%s on line %d of %s", problem, firstLine + lineIndex + 1, file));
+		}
+	}
+
+	/**
+	 * Runs <code>action</code> on each of the chunks of the given file.  If
+	 * any fail, the error of the first failing chunk is thrown, with
+	 * malformed lines numbered from the start of the file.
+	 */
+	static void runInParallel(File file, List<ByteBuffer> chunks, int threads, final ChunkAction action) throws IOException {
+		final IOException[] errors = new IOException[chunks.size()];
+		Siren.runInParallel(threads, chunks.size(), 1, new Siren.RangeAction() {
+			@Override
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					try {
+						action.run(i);
+					} catch (IOException e) {
+						errors[i] = e;
+					}
+				}
+			}
+		});
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] instanceof LineException) {
+				// Lines are only counted once there's an error to place
+				long firstLine = 0;
+				for (int k = 0; k < i; k++) {
+					firstLine += countLines(chunks.get(k));
+				}
+				throw ((LineException) errors[i]).locate(file, firstLine);
+			}
+			if (errors[i] != null) {
+				throw errors[i];
+			}
+		}
+	}
+
+	/**
+	 * Maps the given file as a list of line-aligned chunks.  The file is
+	 * split into about one chunk per thread, and into more if needed to
+	 * keep each mapping under {@link #MAXIMUM_CHUNK_SIZE}.
+	 */
+	static List<ByteBuffer> mapChunks(File file, int threads) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+			if (size == 0) {
+				return result;
+			}
+
+			long totalChunks = size < MINIMUM_PARALLEL_SIZE ? 1 : Math.max(threads, 1);
+			totalChunks = Math.max(totalChunks, (size + MAXIMUM_CHUNK_SIZE - 1) / MAXIMUM_CHUNK_SIZE);
+			long chunkSize = (size + totalChunks - 1) / totalChunks;
+
+			long start = 0;
+			while (start < size) {
+				long end = Math.min(size, start + chunkSize);
+				if (end < size) {
+					end = findNextLine(channel, end, size);
+				}
+				if (end - start > Integer.MAX_VALUE) {
+					throw new IOException(String.format("Line too long in %s near byte %d", file, start));
+				}
+				result.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+				start = end;
+			}
+			return result;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the offset of the first line that starts at or after
+	 * <code>position</code>.
+	 */
+	private static long findNextLine(FileChannel channel, long position, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		// Step back one byte, in case position is already a line start
+		long offset = position - 1;
+		while (offset < size) {
+			buffer.clear();
+			int read = channel.read(buffer, offset);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == NEW_LINE) {
+					return offset + i + 1;
+				}
+			}
+			offset += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of lines in the given file and the number of fields
+	 * in its first line, without parsing it.
+	 */
+	static int[] countLinesAndFields(File file) throws IOException {
+		List<ByteBuffer> chunks = mapChunks(file, 1);
+		long lines = 0;
+		for (ByteBuffer chunk : chunks) {
+			lines += countLines(chunk);
+		}
+		if (lines > Integer.MAX_VALUE) {
+			throw new IOException(String.format("Too many lines in %s", file));
+		}
+		return new int[] { (int) lines, chunks.isEmpty() ? 0 : countFields(chunks.get(0)) };
+	}
+
+	/**
+	 * Returns the number of lines in the given file, but stops reading once
+	 * <code>maximum</code> lines have been seen and returns
+	 * <code>maximum</code>.
+	 */
+	static int countLines(File file, int maximum) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			int result = 0;
+			byte last = NEW_LINE;
+			while (result < maximum) {
+				buffer.clear();
+				int read = channel.read(buffer);
+				if (read <= 0) {
+					// Last line might not be terminated
+					return last != NEW_LINE ? result + 1 : result;
+				}
+				for (int i = 0; i < read && result < maximum; i++) {
+					if (buffer.get(i) == NEW_LINE) {
+						result++;
+					}
+				}
+				last = buffer.get(read - 1);
+			}
+			return maximum;
+		} finally {
+			input.close();
+		}
+	}
+
+	static int countLines(ByteBuffer chunk) {
+		int limit = chunk.limit();
+		int result = 0;
+		for (int i = 0; i < limit; i++) {
+			if (chunk.get(i) == NEW_LINE) {
+				result++;
+			}
+		}
+		// Last line might not be terminated
+		if (limit > 0 && chunk.get(limit - 1) != NEW_LINE) {
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of fields in the first line of the chunk.  Like
+	 * {@link String#split(String)}, trailing empty fields aren't counted.
+	 */
+	static int countFields(ByteBuffer chunk) {
+		int lineEnd = findLineEnd(chunk, 0, chunk.limit());
+		int result = 1;
+		int fieldStart = 0;
+		int lastField = 1;
+		for (int i = 0; i < lineEnd; i++) {
+			if (chunk.get(i) == TAB) {
+				result++;
+				fieldStart = i + 1;
+			} else if (i >= fieldStart) {
+				lastField = result;
+			}
+		}
+		return lastField;
+	}
+
+	/**
+	 * Returns true if bytes <code>position</code> to <code>end</code> are
+	 * nothing but empty fields.
+	 */
+	private static boolean isEmpty(ByteBuffer chunk, int position, int end) {
+		for (int i = position; i < end; i++) {
+			if (chunk.get(i) != TAB) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int findFieldEnd(ByteBuffer chunk, int position, int limit) {
+		while (position < limit) {
+			byte value = chunk.get(position);
+			if (value == TAB || value == NEW_LINE) {
+				break;
+			}
+			position++;
+		}
+		// Treat CRLF like LF
+		if (position > 0 && chunk.get(position - 1) == CARRIAGE_RETURN && (position == limit || chunk.get(position) == NEW_LINE)) {
+			position--;
+		}
+		return position;
+	}
+
+	private static int findLineEnd(ByteBuffer chunk, int position, int limit) {
+		while (position < limit && chunk.get(position) != NEW_LINE) {
+			position++;
+		}
+		if (position > 0 && chunk.get(position - 1) == CARRIAGE_RETURN) {
+			position--;
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the start of the line after the one that contains
+	 * <code>position</code>.
+	 */
+	private static int skipLine(ByteBuffer chunk, int position, int limit) {
+		while (position < limit && chunk.get(position) != NEW_LINE) {
+			position++;
+		}
+		return Math.min(limit, position + 1);
+	}
+
+	/**
+	 * Parses the tab-delimited numbers of the line starting at
+	 * <code>position</code> into <code>values</code>, starting at
+	 * <code>offset</code>.  Returns the start of the next line.
+	 */
+	static int parseDoubles(ByteBuffer chunk, int position, int limit, double[] values, int offset, long lineIndex) throws IOException {
+		int column = offset;
+		while (true) {
+			int end = findFieldEnd(chunk, position, limit);
+			if (end == position && column > offset && isEmpty(chunk, position, findLineEnd(chunk, position, limit))) {
+				return skipLine(chunk, position, limit);
+			}
+			if (column >= values.length) {
+				throw new LineException(String.format("Too many columns (expected %d)", values.length), lineIndex);
+			}
+			values[column++] = parseDouble(chunk, position, end);
+			position = end;
+			if (position < limit && chunk.get(position) == TAB) {
+				position++;
+				continue;
+			}
+			return skipLine(chunk, position, limit);
+		}
+	}
+
+	static int parseInts(ByteBuffer chunk, int position, int limit, int[] values, long lineIndex) throws IOException {
+		int column = 0;
+		while (true) {
+			int end = findFieldEnd(chunk, position, limit);
+			if (end == position && column > 0 && isEmpty(chunk, position, findLineEnd(chunk, position, limit))) {
+				return skipLine(chunk, position, limit);
+			}
+			if (column >= values.length) {
+				throw new LineException(String.format("Too many columns (expected %d)", values.length), lineIndex);
+			}
+			values[column++] = parseInt(chunk, position, end);
+			position = end;
+			if (position < limit && chunk.get(position) == TAB) {
+				position++;
+				continue;
+			}
+			return skipLine(chunk, position, limit);
+		}
+	}
+
+	/**
+	 * Parses the decimal number in bytes <code>start</code> to
+	 * <code>end</code> (exclusive).  Plain decimals with up to 15
+	 * significant digits are converted directly, which is exact since both
+	 * the digits and the power of ten are representable as doubles.
+	 * Anything else goes through {@link Double#parseDouble(String)}.
+	 */
+	static double parseDouble(ByteBuffer chunk, int start, int end) {
+		int position = start;
+		boolean isNegative = false;
+		if (position < end) {
+			byte sign = chunk.get(position);
+			if (sign == '-' || sign == '+') {
+				isNegative = sign == '-';
+				position++;
+			}
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean hasDigits = false;
+		while (position < end) {
+			int digit = chunk.get(position) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			hasDigits = true;
+			if (mantissa != 0 || digit != 0) {
+				mantissa = mantissa * 10 + digit;
+				digits++;
+			}
+			position++;
+		}
+		if (position < end && chunk.get(position) == '.') {
+			position++;
+			while (position < end) {
+				int digit = chunk.get(position) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				hasDigits = true;
+				if (mantissa != 0 || digit != 0) {
+					mantissa = mantissa * 10 + digit;
+					digits++;
+				}
+				exponent--;
+				position++;
+			}
+		}
+		if (hasDigits && position < end && (chunk.get(position) == 'e' || chunk.get(position) == 'E')) {
+			position++;
+			boolean isExponentNegative = false;
+			if (position < end && (chunk.get(position) == '-' || chunk.get(position) == '+')) {
+				isExponentNegative = chunk.get(position) == '-';
+				position++;
+			}
+			int value = 0;
+			boolean hasExponentDigits = false;
+			while (position < end && value < 10000) {
+				int digit = chunk.get(position) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				hasExponentDigits = true;
+				value = value * 10 + digit;
+				position++;
+			}
+			if (!hasExponentDigits) {
+				hasDigits = false;
+			}
+			exponent += isExponentNegative ? -value : value;
+		}
+
+		if (!hasDigits || position != end || digits > 15 || exponent < -22 || exponent > 22) {
+			return Double.parseDouble(decode(chunk, start, end));
+		}
+
+		double result = mantissa;
+		if (exponent < 0) {
+			result /= POWERS_OF_TEN[-exponent];
+		} else {
+			result *= POWERS_OF_TEN[exponent];
+		}
+		return isNegative ? -result : result;
+	}
+
+	static int parseInt(ByteBuffer chunk, int start, int end) {
+		int position = start;
+		boolean isNegative = false;
+		if (position < end && chunk.get(position) == '-') {
+			isNegative = true;
+			position++;
+		}
+		long result = 0;
+		while (position < end && position - start < 11) {
+			int digit = chunk.get(position) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			result = result * 10 + digit;
+			position++;
+		}
+		if (position == start || position != end || result > Integer.MAX_VALUE) {
+			return Integer.parseInt(decode(chunk, start, end));
+		}
+		return (int) (isNegative ? -result : result);
+	}
+
+	private static String decode(ByteBuffer chunk, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = chunk.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static double[][] concatenate(double[][][] parts) {
+		int total = 0;
+		for (double[][] part : parts) {
+			total += part.length;
+		}
+		double[][] result = new double[total][];
+		int index = 0;
+		for (double[][] part : parts) {
+			System.arraycopy(part, 0, result, index, part.length);
+			index += part.length;
+		}
+		return result;
+	}
+
+	private static int[][] concatenate(int[][][] parts) {
+		int total = 0;
+		for (int[][] part : parts) {
+			total += part.length;
+		}
+		int[][] result = new int[total][];
+		int index = 0;
+		for (int[][] part : parts) {
+			System.arraycopy(part, 0, result, index, part.length);
+			index += part.length;
+		}
+		return result;
+	}
+}
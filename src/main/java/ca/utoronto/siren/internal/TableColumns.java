@@ -0,0 +1,144 @@
+package ca.utoronto.siren.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.RowSetRecord;
+import org.cytoscape.model.events.RowsSetEvent;
+
+/**
+ * Bulk access to Cytoscape tables.  Reads make a single pass over the
+ * table's rows, taking each row's SUID and the values of every requested
+ * column from the same {@link CyRow}, and match rows to nodes or edges
+ * through a {@link LongIntMap}.  Column types are resolved once per read,
+ * not per cell.
+ * <p>
+ * Values are written with the table's events silenced, and listeners are
+ * then sent a single {@link RowsSetEvent} for the whole batch instead of
+ * one payload per cell.
+ */
+class TableColumns {
+	private final CyTable table;
+
+	TableColumns(CyTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Returns the SUIDs of the given nodes or edges.
+	 */
+	static long[] getSuids(List<? extends CyIdentifiable> objects) {
+		long[] result = new long[objects.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = objects.get(i).getSUID();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values of the given columns for the given rows, as a rows
+	 * x columns array in their order.  Missing values, and rows that aren't
+	 * in the table, are null.  The SUIDs must be distinct.
+	 */
+	Object[][] getValues(CyColumn[] columns, long[] suids) {
+		LongIntMap indexes = new LongIntMap(suids.length);
+		for (int i = 0; i < suids.length; i++) {
+			indexes.put(suids[i], i);
+		}
+		String[] names = new String[columns.length];
+		Class<?>[] types = new Class<?>[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			names[c] = columns[c].getName();
+			types[c] = columns[c].getType();
+		}
+
+		Object[][] result = new Object[suids.length][columns.length];
+		for (CyRow row : table.getAllRows()) {
+			Long suid = row.get(CyIdentifiable.SUID, Long.class);
+			int index = suid == null ? -1 : indexes.get(suid);
+			if (index == -1) {
+				continue;
+			}
+			Object[] values = result[index];
+			for (int c = 0; c < columns.length; c++) {
+				values[c] = row.get(names[c], types[c]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values of the given numeric columns for the given rows, as
+	 * a rows x columns matrix.  Missing values are NaN.
+	 */
+	double[][] getMatrix(CyColumn[] columns, long[] suids) {
+		Object[][] values = getValues(columns, suids);
+		double[][] result = new double[suids.length][columns.length];
+		for (int i = 0; i < suids.length; i++) {
+			for (int c = 0; c < columns.length; c++) {
+				Number number = (Number) values[i][c];
+				result[i][c] = number == null ? Double.NaN : number.doubleValue();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the values of the given column for the given rows as text, or
+	 * null for missing values.
+	 */
+	String[] getText(CyColumn column, long[] suids) {
+		Object[][] values = getValues(new CyColumn[] { column }, suids);
+		String[] result = new String[suids.length];
+		for (int i = 0; i < suids.length; i++) {
+			Object value = values[i][0];
+			result[i] = value == null ? null : value.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * Sets <code>columnName</code> of row <code>suids[rows[k]]</code> to
+	 * <code>values[k]</code> for k = 0 to <code>rows.length</code> - 1.
+	 * Events are batched through <code>eventHelper</code>, unless it's null.
+	 */
+	void setValues(String columnName, long[] suids, int[] rows, Double[] values, CyEventHelper eventHelper) {
+		List<RowSetRecord> records = eventHelper == null ? null : new ArrayList<RowSetRecord>(rows.length);
+		if (eventHelper != null) {
+			eventHelper.silenceEventSource(table);
+		}
+		try {
+			for (int k = 0; k < rows.length; k++) {
+				CyRow row = table.getRow(suids[rows[k]]);
+				row.set(columnName, values[k]);
+				if (records != null) {
+					records.add(new RowSetRecord(row, columnName, values[k], values[k]));
+				}
+			}
+		} finally {
+			if (eventHelper != null) {
+				eventHelper.unsilenceEventSource(table);
+			}
+		}
+		if (records != null && !records.isEmpty()) {
+			eventHelper.fireEvent(new RowsSetEvent(table, records));
+		}
+	}
+
+	/**
+	 * Like {@link #setValues(String, long[], int[], Double[], CyEventHelper)},
+	 * for values that are never missing.
+	 */
+	void setValues(String columnName, long[] suids, int[] rows, double[] values, CyEventHelper eventHelper) {
+		Double[] boxed = new Double[values.length];
+		for (int k = 0; k < values.length; k++) {
+			boxed[k] = values[k];
+		}
+		setValues(columnName, suids, rows, boxed, eventHelper);
+	}
+}
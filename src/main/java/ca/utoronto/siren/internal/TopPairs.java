@@ -0,0 +1,134 @@
+package ca.utoronto.siren.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The gene pairs with the strongest positive and negative scores seen so far,
+ * up to a fixed number of each.  Each is kept in a bounded min-heap of score
+ * magnitudes, so adding a pair takes O(log k) and memory doesn't depend on
+ * how many pairs are scored.
+ */
+class TopPairs {
+	/**
+	 * A scored gene pair.
+	 */
+	static class ScoredPair {
+		final int geneA;
+		final int geneB;
+		final double score;
+
+		ScoredPair(int geneA, int geneB, double score) {
+			this.geneA = geneA;
+			this.geneB = geneB;
+			this.score = score;
+		}
+	}
+
+	private final Heap positive;
+	private final Heap negative;
+
+	TopPairs(int capacity) {
+		positive = new Heap(capacity);
+		negative = new Heap(capacity);
+	}
+
+	void add(int geneA, int geneB, double score) {
+		if (score > 0) {
+			positive.offer(score, geneA, geneB);
+		} else if (score < 0) {
+			negative.offer(-score, geneA, geneB);
+		}
+	}
+
+	void addAll(TopPairs pairs) {
+		for (int i = 0; i < pairs.positive.size; i++) {
+			positive.offer(pairs.positive.keys[i], pairs.positive.genesA[i], pairs.positive.genesB[i]);
+		}
+		for (int i = 0; i < pairs.negative.size; i++) {
+			negative.offer(pairs.negative.keys[i], pairs.negative.genesA[i], pairs.negative.genesB[i]);
+		}
+	}
+
+	/**
+	 * Returns the pairs with the highest positive scores, highest first.
+	 */
+	List<ScoredPair> getPositivePairs() {
+		return positive.getPairs(1);
+	}
+
+	/**
+	 * Returns the pairs with the lowest negative scores, lowest first.
+	 */
+	List<ScoredPair> getNegativePairs() {
+		return negative.getPairs(-1);
+	}
+
+	private static class Heap {
+		final double[] keys;
+		final int[] genesA;
+		final int[] genesB;
+		int size;
+
+		Heap(int capacity) {
+			keys = new double[capacity];
+			genesA = new int[capacity];
+			genesB = new int[capacity];
+		}
+
+		void offer(double key, int geneA, int geneB) {
+			if (size < keys.length) {
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) / 2;
+					if (keys[parent] <= key) {
+						break;
+					}
+					set(i, keys[parent], genesA[parent], genesB[parent]);
+					i = parent;
+				}
+				set(i, key, geneA, geneB);
+			} else if (size > 0 && key > keys[0]) {
+				// Replace the weakest pair and sift down
+				int i = 0;
+				while (true) {
+					int child = 2 * i + 1;
+					if (child >= size) {
+						break;
+					}
+					if (child + 1 < size && keys[child + 1] < keys[child]) {
+						child++;
+					}
+					if (keys[child] >= key) {
+						break;
+					}
+					set(i, keys[child], genesA[child], genesB[child]);
+					i = child;
+				}
+				set(i, key, geneA, geneB);
+			}
+		}
+
+		private void set(int i, double key, int geneA, int geneB) {
+			keys[i] = key;
+			genesA[i] = geneA;
+			genesB[i] = geneB;
+		}
+
+		List<ScoredPair> getPairs(int sign) {
+			List<ScoredPair> result = new ArrayList<ScoredPair>(size);
+			for (int i = 0; i < size; i++) {
+				result.add(new ScoredPair(genesA[i], genesB[i], sign * keys[i]));
+			}
+			Collections.sort(result, new Comparator<ScoredPair>() {
+				@Override
+				public int compare(ScoredPair pair1, ScoredPair pair2) {
+					return Double.compare(Math.abs(pair2.score), Math.abs(pair1.score));
+				}
+			});
+			return result;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package ca.utoronto.siren.internal;
+
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.task.NetworkTaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+public class UpdateSirenNetworkTaskFactory implements NetworkTaskFactory {
+	private final SirenStateManager stateManager;
+	private final CyEventHelper eventHelper;
+	
+	public UpdateSirenNetworkTaskFactory(SirenStateManager stateManager, CyEventHelper eventHelper) {
+		this.stateManager = stateManager;
+		this.eventHelper = eventHelper;
+	}
+
+	@Override
+	public TaskIterator createTaskIterator(CyNetwork network) {
+		return new TaskIterator(new UpdateSirenTask(network, stateManager, eventHelper));
+	}
+
+	@Override
+	public boolean isReady(CyNetwork network) {
+		return network != null && stateManager.get(network) != null;
+	}
+	
+}
@@ -0,0 +1,111 @@
+package ca.utoronto.siren.internal;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+/**
+ * Updates the SIREN scores of a network that's been scored before, using the
+ * same settings.  Only interactions that are new, or that involve a gene
+ * whose expression data changed, are rescored.
+ */
+public class UpdateSirenTask extends AbstractTask {
+	@Tunable(description="Number of worker threads",
+			 groups={"Advanced"})
+	public int threads = Runtime.getRuntime().availableProcessors();
+	
+	private CyNetwork network;
+	private SirenStateManager stateManager;
+	private CyEventHelper eventHelper;
+	
+	/**
+	 * @param eventHelper used to batch the events of edge table writes, or
+	 *                    null to send them as usual
+	 */
+	public UpdateSirenTask(CyNetwork network, SirenStateManager stateManager, CyEventHelper eventHelper) {
+		this.network = network;
+		this.stateManager = stateManager;
+		this.eventHelper = eventHelper;
+	}
+	
+	@ProvidesTitle
+	public String getTitle() {
+		return "Update SIREN scores for " + network.getRow(network).get(CyNetwork.NAME, String.class);
+	}
+	
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		SirenState state = stateManager.get(network);
+		if (state == null) {
+			throw new IllegalStateException("SIREN scores haven't been computed for this network yet");
+		}
+		
+		taskMonitor.setTitle("Updating SIREN scores...");
+		List<CyNode> nodes = network.getNodeList();
+		List<CyEdge> edges = network.getEdgeList();
+		
+		if (state.hasFileBases()) {
+			if (state.expressionFile.length() != state.expressionFileLength || state.expressionFile.lastModified() != state.expressionFileModified) {
+				throw new IllegalStateException("The gene expression file has changed since SIREN scores were computed; compute them again");
+			}
+			String[] geneLabels = SirenTask.getGeneLabels(network, nodes, state.nodeIdentifier);
+			Set<String> missingLabels = state.getMissingLabels(geneLabels);
+			if (!missingLabels.isEmpty()) {
+				state.addFileProfiles(SirenTask.loadExpressionProfiles(state.expressionFile, missingLabels, threads), missingLabels);
+			}
+			for (int i = 0; i < geneLabels.length; i++) {
+				state.setLabel(nodes.get(i).getSUID(), geneLabels[i]);
+			}
+		} else {
+			CyColumn[] columns = SirenTask.getColumns(network, state.attributeNames);
+			for (CyColumn column : columns) {
+				if (column == null) {
+					throw new IllegalStateException("A gene expression attribute has been removed since SIREN scores were computed; compute them again");
+				}
+			}
+			double[][] expressionMatrix = SirenTask.extractExpressionMatrix(network, nodes, columns);
+			for (int i = 0; i < expressionMatrix.length; i++) {
+				state.setExpression(nodes.get(i).getSUID(), expressionMatrix[i]);
+			}
+		}
+		
+		Set<Long> nodeIds = new HashSet<Long>();
+		for (CyNode node : nodes) {
+			nodeIds.add(node.getSUID());
+		}
+		Set<Long> edgeIds = new HashSet<Long>();
+		long[] edgeSuids = TableColumns.getSuids(edges);
+		long[] sources = new long[edges.size()];
+		long[] targets = new long[edges.size()];
+		for (int i = 0; i < edgeSuids.length; i++) {
+			CyEdge edge = edges.get(i);
+			sources[i] = edge.getSource().getSUID();
+			targets[i] = edge.getTarget().getSUID();
+			edgeIds.add(edgeSuids[i]);
+		}
+		state.retain(nodeIds, edgeIds);
+		
+		int[] interactions = state.getStaleInteractions(edgeSuids, sources, targets);
+		taskMonitor.setStatusMessage(String.format("Updating SIREN scores for %d of %d interactions...", interactions.length, edges.size()));
+		double[] scores = state.computeScores(interactions, edgeSuids, sources, targets, threads);
+		
+		String columnName = SirenTask.getScoreColumn(network);
+		TableColumns edgeTable = new TableColumns(network.getDefaultEdgeTable());
+		edgeTable.setValues(columnName, edgeSuids, interactions, scores, eventHelper);
+		
+		// P-values of rescored interactions are out of date
+		if (network.getDefaultEdgeTable().getColumn(SirenTask.P_VALUE_COLUMN) != null) {
+			edgeTable.setValues(SirenTask.P_VALUE_COLUMN, edgeSuids, interactions, new Double[interactions.length], eventHelper);
+		}
+	}
+}
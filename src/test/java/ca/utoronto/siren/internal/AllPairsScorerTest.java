@@ -0,0 +1,88 @@
+package ca.utoronto.siren.internal;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AllPairsScorerTest {
+	@Test
+	public void testTopPairsMatchExhaustiveScores() {
+		Random random = new Random(31);
+		int totalGenes = 120;
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, totalGenes, 400);
+		// A gene with tied maxima has NaNs in its basis, so it isn't banded
+		expressionMatrix[7][0] = expressionMatrix[7][1] = 100;
+		
+		// Some weights are negative so there are negative scores too
+		double[][] weightMatrix = new double[10][10];
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				weightMatrix[x][y] = random.nextDouble() * 2 - 1;
+			}
+		}
+		
+		int[][] networkMatrix = new int[totalGenes * (totalGenes - 1) / 2][];
+		int index = 0;
+		for (int a = 0; a < totalGenes; a++) {
+			for (int b = a + 1; b < totalGenes; b++) {
+				networkMatrix[index++] = new int[] { a, b };
+			}
+		}
+		double[] scores = Siren.computeScores(expressionMatrix, networkMatrix, weightMatrix);
+		List<Double> positive = new ArrayList<Double>();
+		List<Double> negative = new ArrayList<Double>();
+		for (double score : scores) {
+			if (score > 0) {
+				positive.add(score);
+			} else if (score < 0) {
+				negative.add(score);
+			}
+		}
+		Collections.sort(positive, Collections.reverseOrder());
+		Collections.sort(negative);
+		
+		int capacity = 25;
+		TopPairs pairs = Siren.computeTopPairs(expressionMatrix, weightMatrix, capacity, 3);
+		List<TopPairs.ScoredPair> topPositive = pairs.getPositivePairs();
+		List<TopPairs.ScoredPair> topNegative = pairs.getNegativePairs();
+		Assert.assertEquals(capacity, topPositive.size());
+		Assert.assertEquals(Math.min(capacity, negative.size()), topNegative.size());
+		for (int i = 0; i < topPositive.size(); i++) {
+			Assert.assertEquals(positive.get(i), topPositive.get(i).score, 1e-12);
+		}
+		for (int i = 0; i < topNegative.size(); i++) {
+			Assert.assertEquals(negative.get(i), topNegative.get(i).score, 1e-12);
+		}
+	}
+	
+	@Test
+	public void testWritePairs() throws IOException {
+		Random random = new Random(37);
+		int totalGenes = 50;
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, totalGenes, 100);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		int[] genes = { 3, 10, 11, 40 };
+		AllPairsScorer scorer = new AllPairsScorer(bMatrix, paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 2, genes);
+		
+		StringWriter writer = new StringWriter();
+		Assert.assertEquals(6, scorer.writePairs(writer, null, 0, 2));
+		String[] lines = writer.toString().split("\n");
+		Assert.assertEquals(6, lines.length);
+		double[][] pABMatrix = new double[10][10];
+		for (String line : lines) {
+			String[] fields = line.split("\t");
+			int geneA = Integer.parseInt(fields[0]) - 1;
+			int geneB = Integer.parseInt(fields[1]) - 1;
+			Siren.computePabMatrix(bMatrix, geneA, geneB, pABMatrix);
+			double expected = Siren.computeScore(pABMatrix, paMatrix[geneA], paMatrix[geneB], Siren.DEFAULT_WEIGHT_MATRIX);
+			Assert.assertEquals(expected, Double.parseDouble(fields[2]), 1e-12);
+		}
+	}
+}
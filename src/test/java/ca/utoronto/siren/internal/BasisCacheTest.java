@@ -0,0 +1,51 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BasisCacheTest {
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		BasisCache cache = new BasisCache(Long.MAX_VALUE);
+		for (int i = 0; i < 3; i++) {
+			cache.put("file", 10, 2, "gene" + i, null, new double[100], new double[10]);
+		}
+		long entrySize = cache.getSize() / 3;
+		Assert.assertNotNull(cache.get("file", 10, 2, "gene0", null));
+
+		cache.setCapacity(2 * entrySize);
+		Assert.assertEquals(2, cache.getEntryCount());
+		Assert.assertNotNull(cache.get("file", 10, 2, "gene0", null));
+		Assert.assertNull(cache.get("file", 10, 2, "gene1", null));
+		Assert.assertNotNull(cache.get("file", 10, 2, "gene2", null));
+
+		cache.put("file", 10, 2, "gene3", null, new double[100], new double[10]);
+		Assert.assertEquals(2, cache.getEntryCount());
+		Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+		Assert.assertNull(cache.get("file", 10, 2, "gene0", null));
+
+		cache.clear();
+		Assert.assertEquals(0, cache.getEntryCount());
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testKeysAndProfiles() {
+		BasisCache cache = new BasisCache(Long.MAX_VALUE);
+		double[] expression = { 1, 2, 3 };
+		cache.put("attributes", 10, 2, "1", expression, new double[30], new double[10]);
+		cache.put("file", 10, 2, "A", null, null, null);
+
+		Assert.assertNotNull(cache.get("attributes", 10, 2, "1", Arrays.copyOf(expression, 3)));
+		Assert.assertNull(cache.get("attributes", 10, 2, "1", new double[] { 1, 2, 4 }));
+		Assert.assertNull(cache.get("attributes", 10, 3, "1", expression));
+		Assert.assertNull(cache.get("attributes", 8, 2, "1", expression));
+		Assert.assertNull(cache.get("other", 10, 2, "1", expression));
+
+		BasisCache.Entry missing = cache.get("file", 10, 2, "A", null);
+		Assert.assertNotNull(missing);
+		Assert.assertFalse(missing.hasData());
+	}
+}
@@ -0,0 +1,69 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BasisKernelTest {
+	@Test
+	public void testMatchesSeparateSteps() {
+		Random random = new Random(67);
+		for (int conditions : new int[] { 2, 3, 7, 16, 17, 50, 333, 4000 }) {
+			double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 12, conditions);
+			// Missing values
+			expressionMatrix[1][0] = Double.NaN;
+			expressionMatrix[1][conditions - 1] = Double.NaN;
+			// Few distinct values, so many ties
+			for (int c = 0; c < conditions; c++) {
+				expressionMatrix[2][c] = c % 4;
+				expressionMatrix[3][c] = -1 - random.nextInt(3);
+			}
+			// Constant, and tied at the maximum
+			Arrays.fill(expressionMatrix[4], 2.5);
+			for (int c = 0; c < conditions / 2; c++) {
+				expressionMatrix[5][c] = 100;
+			}
+			Arrays.fill(expressionMatrix[6], Double.NaN);
+
+			BasisKernel kernel = new BasisKernel(10, 2, conditions);
+			BasisTensor actual = new BasisTensor(expressionMatrix.length, 10, conditions);
+			for (int g = 0; g < expressionMatrix.length; g++) {
+				kernel.computeBasis(expressionMatrix[g], actual, g);
+			}
+			for (int g = 0; g < expressionMatrix.length; g++) {
+				double[][] expected = Siren.computeBSplineBasis(Siren.scaleAndCentre(expressionMatrix[g]), 10, 2);
+				double[][] gene = actual.getGene(g);
+				for (int b = 0; b < 10; b++) {
+					Assert.assertArrayEquals(conditions + " conditions, gene " + g, expected[b], gene[b], 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSelectMatchesSort() {
+		Random random = new Random(71);
+		for (int trial = 0; trial < 200; trial++) {
+			int length = 1 + random.nextInt(500);
+			double[] values = new double[length];
+			int distinct = 1 + random.nextInt(trial % 2 == 0 ? 5 : 1000);
+			for (int i = 0; i < length; i++) {
+				values[i] = random.nextInt(distinct) - distinct / 2;
+			}
+			int[] ranks = new int[1 + random.nextInt(Math.min(length, 20))];
+			for (int r = 0; r < ranks.length; r++) {
+				ranks[r] = random.nextInt(length);
+			}
+			Arrays.sort(ranks);
+
+			double[] expected = values.clone();
+			Arrays.sort(expected);
+			BasisKernel.select(values, 0, length - 1, ranks, 0, ranks.length - 1, trial % 3 == 0 ? 1 : 64);
+			for (int rank : ranks) {
+				Assert.assertEquals(expected[rank], values[rank], 0);
+			}
+		}
+	}
+}
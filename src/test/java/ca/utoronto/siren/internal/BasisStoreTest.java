@@ -0,0 +1,135 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BasisStoreTest {
+	File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("siren", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		Random random = new Random(19);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 50, 40);
+		int[][] networkMatrix = SirenTest.createNetworkMatrix(random, 50, 500);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		List<String> labels = Arrays.asList(new String[50]);
+		for (int g = 0; g < 50; g++) {
+			labels.set(g, "gene" + g);
+		}
+
+		BasisStore store = new BasisStore(directory);
+		String key = BasisStore.computeKey(expressionMatrix, 10, 2);
+		Assert.assertNull(store.load(key));
+		Assert.assertFalse(key.equals(BasisStore.computeKey(expressionMatrix, 10, 3)));
+
+		store.save(key, labels, bMatrix, paMatrix, 10, 2);
+		BasisStore.StoredBasis stored = store.load(key);
+		Assert.assertEquals(labels, stored.labels);
+		for (int g = 0; g < 50; g++) {
+			Assert.assertArrayEquals(paMatrix[g], stored.paMatrix[g], 0);
+			for (int b = 0; b < 10; b++) {
+				for (int c = 0; c < 40; c++) {
+					Assert.assertEquals(bMatrix.get(g, b, c), stored.bMatrix.get(g, b, c), 0);
+				}
+			}
+		}
+
+		double[] expected = Siren.computeScores(bMatrix, paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, 2, 1);
+		double[] actual = Siren.computeScores(stored.bMatrix, stored.paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, 2, 1);
+		Assert.assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void testSinglePrecision() throws IOException {
+		Random random = new Random(31);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 30, 40);
+		int[][] networkMatrix = SirenTest.createNetworkMatrix(random, 30, 200);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		FloatBasisTensor floatMatrix = Siren.computeFloatBMatrix(expressionMatrix, 10, 2, 1);
+		double[][] paMatrix = Siren.computePaMatrix(floatMatrix);
+
+		BasisStore store = new BasisStore(directory);
+		String key = BasisStore.computeKey(expressionMatrix, 10, 2);
+		String floatKey = BasisStore.getKey(key, true);
+		store.save(key, null, bMatrix, Siren.computePaMatrix(bMatrix), 10, 2);
+		store.save(floatKey, null, floatMatrix, paMatrix, 10, 2);
+
+		// Bases take half the space
+		long marginalSize = 30 * 10 * 8;
+		long basisSize = store.getFile(key).length() - BasisStore.HEADER_SIZE - marginalSize;
+		Assert.assertEquals(basisSize / 2, store.getFile(floatKey).length() - BasisStore.HEADER_SIZE - marginalSize);
+
+		BasisStore.StoredBasis stored = store.load(floatKey);
+		Assert.assertTrue(stored.bMatrix.isSinglePrecision());
+		for (int g = 0; g < 30; g++) {
+			for (int b = 0; b < 10; b++) {
+				for (int c = 0; c < 40; c++) {
+					Assert.assertEquals(floatMatrix.get(g, b, c), stored.bMatrix.get(g, b, c), 0);
+				}
+			}
+		}
+		double[] expected = Siren.computeScores(floatMatrix, paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, 2, 1);
+		double[] actual = Siren.computeScores(stored.bMatrix, stored.paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, 2, 1);
+		Assert.assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		Random random = new Random(29);
+		BasisTensor[] bMatrices = new BasisTensor[4];
+		String[] keys = new String[bMatrices.length];
+		for (int i = 0; i < bMatrices.length; i++) {
+			double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 20, 30);
+			bMatrices[i] = Siren.computeBMatrix(expressionMatrix, 10, 2);
+			keys[i] = BasisStore.computeKey(expressionMatrix, 10, 2);
+		}
+
+		// Room for two entries
+		BasisStore store = new BasisStore(directory, Long.MAX_VALUE);
+		store.save(keys[0], null, bMatrices[0], Siren.computePaMatrix(bMatrices[0]), 10, 2);
+		long entrySize = store.getFile(keys[0]).length();
+		store = new BasisStore(directory, 2 * entrySize + entrySize / 2);
+		store.save(keys[1], null, bMatrices[1], Siren.computePaMatrix(bMatrices[1]), 10, 2);
+		store.getFile(keys[0]).setLastModified(1000000);
+		store.getFile(keys[1]).setLastModified(2000000);
+
+		// Using entry 0 makes entry 1 the least recently used
+		Assert.assertNotNull(store.load(keys[0]));
+		store.save(keys[2], null, bMatrices[2], Siren.computePaMatrix(bMatrices[2]), 10, 2);
+		Assert.assertNotNull(store.load(keys[0]));
+		Assert.assertNull(store.load(keys[1]));
+		Assert.assertNotNull(store.load(keys[2]));
+
+		// Entries larger than the whole store aren't kept
+		store = new BasisStore(directory, entrySize - 1);
+		store.save(keys[3], null, bMatrices[3], Siren.computePaMatrix(bMatrices[3]), 10, 2);
+		Assert.assertNull(store.load(keys[3]));
+		Assert.assertNotNull(store.load(keys[0]));
+	}
+}
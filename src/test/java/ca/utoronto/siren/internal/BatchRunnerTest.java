@@ -0,0 +1,118 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchRunnerTest {
+	File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("siren", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testRunManifest() throws IOException, InterruptedException {
+		Random random = new Random(59);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 40, 60);
+		int[][] networkMatrix = SirenTest.createNetworkMatrix(random, 40, 300);
+		int[][] otherMatrix = SirenTest.createNetworkMatrix(random, 40, 100);
+		writeMatrix(new File(directory, "expression.txt"), expressionMatrix);
+		writeNetwork(new File(directory, "network.txt"), networkMatrix);
+		writeNetwork(new File(directory, "other.txt"), otherMatrix);
+		writeNetwork(new File(directory, "invalid.txt"), new int[][] { { 0, 40 } });
+
+		File manifest = new File(directory, "manifest.txt");
+		Writer writer = new FileWriter(manifest);
+		try {
+			writer.write("# expression\tnetwork\toutput\n");
+			writer.write("expression.txt\tnetwork.txt\tout/network.tsv\n");
+			writer.write("\n");
+			writer.write("expression.txt\tother.txt\tout/other.tsv\t-\n");
+			writer.write("expression.txt\tinvalid.txt\tout/invalid.tsv\n");
+		} finally {
+			writer.close();
+		}
+
+		List<BatchRunner.Job> jobs = BatchRunner.readManifest(manifest);
+		Assert.assertEquals(3, jobs.size());
+		Assert.assertNull(jobs.get(1).weightFile);
+
+		BatchRunner runner = new BatchRunner();
+		runner.setThreads(2);
+		runner.setBasisStore(new BasisStore(directory));
+		StringBuilder log = new StringBuilder();
+		Assert.assertEquals(1, runner.run(jobs, log));
+		Assert.assertEquals(log.toString(), 1, log.toString().split("Computed bases").length - 1);
+		Assert.assertFalse(new File(directory, "out/invalid.tsv").exists());
+
+		assertScores(Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX), networkMatrix, new File(directory, "out/network.tsv"));
+		assertScores(Siren.computeScores(expressionMatrix, otherMatrix, Siren.DEFAULT_WEIGHT_MATRIX), otherMatrix, new File(directory, "out/other.tsv"));
+
+		// Second run uses the stored bases
+		Assert.assertEquals(0, runner.run(jobs.subList(0, 1), log));
+		assertScores(Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX), networkMatrix, new File(directory, "out/network.tsv"));
+	}
+
+	private static void assertScores(double[] expected, int[][] networkMatrix, File file) throws IOException {
+		double[][] actual = TabDelimitedReader.loadMatrix(file, 1);
+		Assert.assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(networkMatrix[i][0] + 1, actual[i][0], 0);
+			Assert.assertEquals(networkMatrix[i][1] + 1, actual[i][1], 0);
+			Assert.assertEquals(expected[i], actual[i][2], SirenTest.MAX_ERROR * SirenTest.MAX_ERROR);
+		}
+	}
+
+	private static void writeMatrix(File file, double[][] matrix) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			for (double[] row : matrix) {
+				for (int c = 0; c < row.length; c++) {
+					writer.write(c == 0 ? "" : "\t");
+					writer.write(Double.toString(row[c]));
+				}
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void writeNetwork(File file, int[][] networkMatrix) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			for (int[] interaction : networkMatrix) {
+				writer.write((interaction[0] + 1) + "\t" + (interaction[1] + 1) + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
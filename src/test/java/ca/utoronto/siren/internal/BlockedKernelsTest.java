@@ -0,0 +1,91 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockedKernelsTest {
+	@Test
+	public void testBlockedMatchesScalar() {
+		Random random = new Random(73);
+		// Every remainder after blocks of BLOCK_SIZE, with and without full
+		// blocks
+		for (int totalBins = 1; totalBins <= 3 * BlockedKernels.BLOCK_SIZE + 1; totalBins++) {
+			BasisTensor bMatrix = new BasisTensor(3, totalBins, 301);
+			double[] data = bMatrix.getData();
+			for (int i = 0; i < data.length; i++) {
+				data[i] = random.nextDouble();
+			}
+			for (int binA = 0; binA < totalBins; binA++) {
+				double[] expected = new double[totalBins];
+				double[] actual = new double[totalBins];
+				// Condition blocks as in HubScorer, with a short last block
+				for (int start = 0; start < 301; start += HubScorer.CONDITION_BLOCK_SIZE) {
+					int end = Math.min(301, start + HubScorer.CONDITION_BLOCK_SIZE);
+					BlockedKernels.accumulateScalar(bMatrix, 2, binA, 1, start, end, expected);
+					BlockedKernels.accumulateBlocked(bMatrix, 2, binA, 1, start, end, actual);
+				}
+				Assert.assertArrayEquals(expected, actual, 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBlockedFloatBandsMatchDense() {
+		Random random = new Random(89);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 10, 60);
+		FloatBasisTensor bMatrix = Siren.computeFloatBMatrix(expressionMatrix, 10, 2, 1);
+		BasisTensor denseMatrix = BasisTensor.copyOf(bMatrix, null);
+		// Degree 2 bases fit in bands of either width
+		for (int width = 3; width <= 4; width++) {
+			BandedBasis bandedMatrix = new BandedBasis(bMatrix, width);
+			Assert.assertEquals(BlockedKernels.isEnabled() ? width : 0, BandedBasis.getBlockedWidth(width));
+			double[][] expected = new double[10][10];
+			double[][] actual = new double[10][10];
+			int totalBanded = 0;
+			for (int a = 0; a < 10; a++) {
+				for (int b = 0; b < 10; b++) {
+					if (!bandedMatrix.isBanded(a) || !bandedMatrix.isBanded(b)) {
+						continue;
+					}
+					totalBanded++;
+					Siren.computePabMatrix(denseMatrix, a, b, expected);
+					bandedMatrix.computePabMatrix(a, b, actual);
+					for (int x = 0; x < 10; x++) {
+						Assert.assertArrayEquals(expected[x], actual[x], 0);
+					}
+				}
+			}
+			Assert.assertTrue(totalBanded > 0);
+		}
+	}
+
+	@Test
+	public void testScoreKernelSkipsOnlyNegativeCells() {
+		Random random = new Random(79);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 2, 40);
+		double[][] paMatrix = Siren.computePaMatrix(Siren.computeBMatrix(expressionMatrix, 10, 2));
+		double[][] logPaMatrix = Siren.computeLogPaMatrix(paMatrix);
+		ScoreKernel kernel = new ScoreKernel(Siren.DEFAULT_WEIGHT_MATRIX, paMatrix);
+
+		// Joint probabilities at and around independence, where the log
+		// ratio is closest to 0
+		double[] deltas = { -1e-3, -1e-8, -1e-12, 0, 1e-12, 1e-8, 1e-3 };
+		double[][] pABMatrix = new double[10][10];
+		for (int trial = 0; trial < 100; trial++) {
+			double expected = 0;
+			for (int x = 0; x < 10; x++) {
+				for (int y = 0; y < 10; y++) {
+					double pAB = paMatrix[0][x] * paMatrix[1][y] * (1 + deltas[random.nextInt(deltas.length)]);
+					pABMatrix[x][y] = pAB;
+					double xN = Math.log(pAB) - logPaMatrix[0][x] - logPaMatrix[1][y];
+					if (pAB > 0 && xN > 0 && Siren.DEFAULT_WEIGHT_MATRIX[x][y] != 0) {
+						expected += pAB * Siren.DEFAULT_WEIGHT_MATRIX[x][y] * xN;
+					}
+				}
+			}
+			Assert.assertEquals(expected, kernel.computeScore(pABMatrix, 0, 1), 0);
+		}
+	}
+}
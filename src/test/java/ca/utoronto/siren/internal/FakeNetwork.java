@@ -0,0 +1,218 @@
+package ca.utoronto.siren.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.work.Task;
+import org.cytoscape.work.TaskMonitor;
+
+/**
+ * In-memory network with default node and edge tables, implementing just
+ * enough of the Cytoscape model API for the tasks.
+ */
+class FakeNetwork {
+	private static long nextSuid = 1;
+
+	final CyNetwork network;
+	final CyTable nodeTable;
+	final CyTable edgeTable;
+	final List<CyNode> nodes = new ArrayList<CyNode>();
+	final List<CyEdge> edges = new ArrayList<CyEdge>();
+
+	FakeNetwork() {
+		nodeTable = createTable();
+		edgeTable = createTable();
+		final long suid = nextSuid++;
+		network = create(CyNetwork.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				switch (name) {
+				case "getSUID":
+					return suid;
+				case "getDefaultNodeTable":
+					return nodeTable;
+				case "getDefaultEdgeTable":
+					return edgeTable;
+				case "getNodeList":
+					return new ArrayList<CyNode>(nodes);
+				case "getEdgeList":
+					return new ArrayList<CyEdge>(edges);
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	CyNode addNode() {
+		final long suid = nextSuid++;
+		CyNode node = create(CyNode.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				if (name.equals("getSUID")) {
+					return suid;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+		nodeTable.getRow(suid);
+		nodes.add(node);
+		return node;
+	}
+
+	CyEdge addEdge(final CyNode source, final CyNode target) {
+		final long suid = nextSuid++;
+		CyEdge edge = create(CyEdge.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				switch (name) {
+				case "getSUID":
+					return suid;
+				case "getSource":
+					return source;
+				case "getTarget":
+					return target;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+		edgeTable.getRow(suid);
+		edges.add(edge);
+		return edge;
+	}
+
+	/**
+	 * Returns a table keyed by SUID.  Rows are created when first looked up.
+	 */
+	static CyTable createTable() {
+		final Map<String, CyColumn> columns = new LinkedHashMap<String, CyColumn>();
+		final Map<Long, CyRow> rows = new LinkedHashMap<Long, CyRow>();
+		final CyTable[] table = new CyTable[1];
+		table[0] = create(CyTable.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				switch (name) {
+				case "getPrimaryKey":
+					return columns.get(CyIdentifiable.SUID);
+				case "getColumn":
+					return columns.get(args[0]);
+				case "getColumns":
+					return new ArrayList<CyColumn>(columns.values());
+				case "createColumn":
+					if (columns.containsKey(args[0])) {
+						throw new IllegalArgumentException("Column already exists: " + args[0]);
+					}
+					columns.put((String) args[0], createColumn((String) args[0], (Class<?>) args[1]));
+					return null;
+				case "getRowCount":
+					return rows.size();
+				case "getAllRows":
+					return new ArrayList<CyRow>(rows.values());
+				case "getRow":
+					Long key = (Long) args[0];
+					CyRow row = rows.get(key);
+					if (row == null) {
+						Map<String, Object> values = new HashMap<String, Object>();
+						values.put(CyIdentifiable.SUID, key);
+						row = createRow(table[0], values);
+						rows.put(key, row);
+					}
+					return row;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+		table[0].createColumn(CyIdentifiable.SUID, Long.class, true);
+		return table[0];
+	}
+
+	private static CyColumn createColumn(final String columnName, final Class<?> type) {
+		return create(CyColumn.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				switch (name) {
+				case "getName":
+					return columnName;
+				case "getType":
+					return type;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	private static CyRow createRow(final CyTable table, final Map<String, Object> values) {
+		return create(CyRow.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				switch (name) {
+				case "get":
+				case "getRaw":
+					if (table.getColumn((String) args[0]) == null) {
+						throw new IllegalArgumentException("No such column: " + args[0]);
+					}
+					return values.get(args[0]);
+				case "set":
+					if (table.getColumn((String) args[0]) == null) {
+						throw new IllegalArgumentException("No such column: " + args[0]);
+					}
+					values.put((String) args[0], args[1]);
+					return null;
+				case "getTable":
+					return table;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	/**
+	 * Returns a task monitor that ignores everything it's told, except that
+	 * it cancels <code>task</code>, unless that's null, the first time
+	 * progress is reported.
+	 */
+	static TaskMonitor createTaskMonitor(final Task task) {
+		return create(TaskMonitor.class, new Handler() {
+			@Override
+			Object invoke(String name, Object[] args) {
+				if (task != null && name.equals("setProgress")) {
+					task.cancel();
+				}
+				return null;
+			}
+		});
+	}
+
+	private abstract static class Handler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return method.getDeclaringClass().getSimpleName();
+			}
+			return invoke(method.getName(), args);
+		}
+
+		abstract Object invoke(String name, Object[] args);
+	}
+
+	private static <T> T create(Class<T> type, Handler handler) {
+		return type.cast(Proxy.newProxyInstance(FakeNetwork.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+}
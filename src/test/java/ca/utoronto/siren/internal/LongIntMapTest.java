@@ -0,0 +1,32 @@
+package ca.utoronto.siren.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongIntMapTest {
+	@Test
+	public void testMatchesHashMap() {
+		Random random = new Random(61);
+		LongIntMap map = new LongIntMap(4);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			// Sequential keys like SUIDs, plus some arbitrary ones
+			long key = i % 3 == 0 ? random.nextLong() : 1000 + random.nextInt(3000);
+			int value = random.nextInt(Integer.MAX_VALUE);
+			map.put(key, value);
+			expected.put(key, value);
+		}
+		Assert.assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			Assert.assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+		}
+		Assert.assertEquals(-1, map.get(999));
+		Assert.assertFalse(map.containsKey(-5));
+		map.put(-5, 0);
+		Assert.assertEquals(0, map.get(-5));
+	}
+}
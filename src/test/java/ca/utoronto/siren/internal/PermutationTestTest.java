@@ -0,0 +1,76 @@
+package ca.utoronto.siren.internal;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PermutationTestTest {
+	@Test
+	public void testPValues() {
+		Random random = new Random(41);
+		int totalGenes = 20;
+		int totalConditions = 200;
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, totalGenes, totalConditions);
+		// Gene 1 follows gene 0, so their interaction is significant
+		for (int c = 0; c < totalConditions; c++) {
+			expressionMatrix[1][c] = expressionMatrix[0][c] + random.nextGaussian() * 0.01;
+		}
+		// Gene 2 has tied maxima, so its basis isn't banded
+		expressionMatrix[2][0] = expressionMatrix[2][1] = 100;
+		int[][] networkMatrix = { { 0, 1 }, { 1, 0 }, { 2, 3 }, { 4, 5 }, { 6, 7 }, { 8, 9 } };
+		
+		double[] pValues = Siren.computePValues(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 200, 1);
+		Assert.assertEquals(1.0 / 201, pValues[0], 0);
+		Assert.assertEquals(1.0 / 201, pValues[1], 0);
+		for (double pValue : pValues) {
+			Assert.assertTrue(pValue > 0 && pValue <= 1);
+		}
+		
+		// Reproducible regardless of thread count
+		Assert.assertArrayEquals(pValues, Siren.computePValues(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 200, 3), 0);
+		
+		// The same with the bases a scorer has prepared, from bases that
+		// aren't in a tensor
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] bases = new double[totalGenes][10 * totalConditions];
+		for (int g = 0; g < totalGenes; g++) {
+			bMatrix.copyGene(g, bases[g]);
+		}
+		BasisSource geneBases = new GeneBases(bases, 10, totalConditions);
+		InteractionScorer scorer = SirenEngine.DEFAULT.createScorer(geneBases, Siren.computePaMatrix(geneBases), networkMatrix, false);
+		double[] shared = scorer.createPermutationTest().computePValues(networkMatrix, 200, PermutationTest.DEFAULT_EXCEEDANCES, PermutationTest.DEFAULT_SEED, 1);
+		Assert.assertArrayEquals(pValues, shared, 0);
+	}
+	
+	@Test
+	public void testPermutedPabMatrix() {
+		Random random = new Random(43);
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 2, 50);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		int[] permutation = new int[50];
+		for (int c = 0; c < 50; c++) {
+			permutation[c] = c;
+		}
+		PermutationTest.shuffle(permutation, random);
+		
+		// Permuting gene 1's conditions directly gives the same joint probabilities
+		BasisTensor permuted = new BasisTensor(2, 10, 50);
+		for (int b = 0; b < 10; b++) {
+			for (int c = 0; c < 50; c++) {
+				permuted.set(0, b, c, bMatrix.get(0, b, c));
+				permuted.set(1, b, c, bMatrix.get(1, b, permutation[c]));
+			}
+		}
+		double[][] expected = new double[10][10];
+		Siren.computePabMatrix(permuted, 0, 1, expected);
+		double[][] dense = new double[10][10];
+		PermutationTest.computePabMatrix(bMatrix, 0, 1, permutation, dense);
+		double[][] banded = new double[10][10];
+		new BandedBasis(bMatrix, 3).computePabMatrix(0, 1, permutation, banded);
+		for (int x = 0; x < 10; x++) {
+			Assert.assertArrayEquals(expected[x], dense[x], 0);
+			Assert.assertArrayEquals(expected[x], banded[x], 1e-15);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package ca.utoronto.siren.internal;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SirenStateTest {
+	static final double MAX_ERROR = 1e-12;
+
+	@Test
+	public void testUpdateRescoresOnlyStaleInteractions() {
+		Random random = new Random(23);
+		int totalGenes = 40;
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, totalGenes, 30);
+		int[][] networkMatrix = SirenTest.createNetworkMatrix(random, totalGenes, 200);
+
+		SirenState state = new SirenState(10, 2, Siren.DEFAULT_WEIGHT_MATRIX);
+		for (int g = 0; g < totalGenes; g++) {
+			state.setExpression(100 + g, expressionMatrix[g].clone());
+		}
+		long[] edges = new long[networkMatrix.length];
+		long[] sources = new long[networkMatrix.length];
+		long[] targets = new long[networkMatrix.length];
+		for (int i = 0; i < edges.length; i++) {
+			edges[i] = 1000 + i;
+			sources[i] = 100 + networkMatrix[i][0];
+			targets[i] = 100 + networkMatrix[i][1];
+		}
+
+		// Only the first 150 interactions have been scored so far
+		long[] scored = new long[150];
+		System.arraycopy(edges, 0, scored, 0, scored.length);
+		state.markScored(scored);
+
+		// Change gene 3
+		expressionMatrix[3][0] += 1;
+		state.setExpression(103, expressionMatrix[3].clone());
+		state.setExpression(104, expressionMatrix[4].clone());
+
+		Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < edges.length; i++) {
+			if (i >= 150 || networkMatrix[i][0] == 3 || networkMatrix[i][1] == 3) {
+				expected.add(i);
+			}
+		}
+		int[] interactions = state.getStaleInteractions(edges, sources, targets);
+		Set<Integer> actual = new HashSet<Integer>();
+		for (int i : interactions) {
+			actual.add(i);
+		}
+		Assert.assertEquals(expected, actual);
+
+		double[] expectedScores = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX);
+		double[] scores = state.computeScores(interactions, edges, sources, targets, 2);
+		for (int k = 0; k < interactions.length; k++) {
+			Assert.assertEquals(expectedScores[interactions[k]], scores[k], MAX_ERROR);
+		}
+		Assert.assertEquals(0, state.getStaleInteractions(edges, sources, targets).length);
+	}
+}
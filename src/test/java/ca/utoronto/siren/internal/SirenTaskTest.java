@@ -0,0 +1,218 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SirenTaskTest {
+	/**
+	 * Returns a network of random interactions between genes whose
+	 * expression profiles are in node attributes c0, c1, ...
+	 */
+	static FakeNetwork createNetwork(Random random, int totalGenes, int totalConditions, int totalInteractions) {
+		FakeNetwork result = new FakeNetwork();
+		result.nodeTable.createColumn(CyNetwork.NAME, String.class, false);
+		for (int c = 0; c < totalConditions; c++) {
+			result.nodeTable.createColumn("c" + c, Double.class, false);
+		}
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, totalGenes, totalConditions);
+		for (int g = 0; g < totalGenes; g++) {
+			CyNode node = result.addNode();
+			result.nodeTable.getRow(node.getSUID()).set(CyNetwork.NAME, "gene" + g);
+			for (int c = 0; c < totalConditions; c++) {
+				result.nodeTable.getRow(node.getSUID()).set("c" + c, expressionMatrix[g][c]);
+			}
+		}
+		for (int[] interaction : SirenTest.createNetworkMatrix(random, totalGenes, totalInteractions)) {
+			result.addEdge(result.nodes.get(interaction[0]), result.nodes.get(interaction[1]));
+		}
+		return result;
+	}
+
+	static SirenTask createTask(FakeNetwork network, int totalConditions, SirenStateManager stateManager) {
+		SirenTask task = new SirenTask(network.network, null, null, stateManager, null);
+		task.readFrom.setSelectedValue(SirenTask.READ_FROM_ATTRIBUTES);
+		List<String> columnNames = new ArrayList<String>();
+		for (int c = 0; c < totalConditions; c++) {
+			columnNames.add("c" + c);
+		}
+		task.attributeNames.setSelectedValues(columnNames);
+		task.threads = 1;
+		return task;
+	}
+
+	@Test
+	public void testCancelledRunCantBeUpdated() throws Exception {
+		Random random = new Random(67);
+		FakeNetwork network = createNetwork(random, 30, 20, 100);
+		SirenStateManager stateManager = new SirenStateManager();
+		createTask(network, 20, stateManager).run(FakeNetwork.createTaskMonitor(null));
+		Assert.assertNotNull(stateManager.get(network.network));
+
+		// Cancel a second run once its scores are written, after its p-values
+		// have been cleared
+		SirenTask task = createTask(network, 20, stateManager);
+		task.computePValues = true;
+		task.permutations = 10;
+		task.run(FakeNetwork.createTaskMonitor(task));
+		Assert.assertNull(network.edgeTable.getRow(network.edges.get(0).getSUID()).get(SirenTask.P_VALUE_COLUMN, Double.class));
+
+		// The earlier run's state would skip every edge, leaving the cleared
+		// p-values missing, so updating must be refused
+		Assert.assertNull(stateManager.get(network.network));
+		Assert.assertFalse(new UpdateSirenNetworkTaskFactory(stateManager, null).isReady(network.network));
+		try {
+			new UpdateSirenTask(network.network, stateManager, null).run(FakeNetwork.createTaskMonitor(null));
+			Assert.fail("Scores of a cancelled run were updated");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		// Scoring again and updating works as usual
+		createTask(network, 20, stateManager).run(FakeNetwork.createTaskMonitor(null));
+		CyEdge edge = network.addEdge(network.nodes.get(0), network.nodes.get(1));
+		new UpdateSirenTask(network.network, stateManager, null).run(FakeNetwork.createTaskMonitor(null));
+		for (CyEdge other : network.edges) {
+			Assert.assertNotNull(network.edgeTable.getRow(other.getSUID()).get(SirenTask.SCORE_COLUMN, Double.class));
+		}
+		Assert.assertNotNull(network.edgeTable.getRow(edge.getSUID()).get(SirenTask.SCORE_COLUMN, Double.class));
+	}
+
+	@Test
+	public void testSinglePrecisionKeepsFloatBases() throws Exception {
+		Random random = new Random(71);
+		FakeNetwork network = createNetwork(random, 30, 20, 100);
+		SirenTask task = createTask(network, 20, null);
+		task.run(FakeNetwork.createTaskMonitor(null));
+		double[] expected = new double[network.edges.size()];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = network.edgeTable.getRow(network.edges.get(i).getSUID()).get(SirenTask.SCORE_COLUMN, Double.class);
+		}
+
+		BasisCache cache = new BasisCache(Long.MAX_VALUE);
+		task = new SirenTask(network.network, null, cache, null, null);
+		SirenTask doubleTask = createTask(network, 20, null);
+		task.readFrom.setSelectedValue(SirenTask.READ_FROM_ATTRIBUTES);
+		task.attributeNames.setSelectedValues(doubleTask.attributeNames.getSelectedValues());
+		task.threads = 1;
+		task.singlePrecision = true;
+		task.run(FakeNetwork.createTaskMonitor(null));
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(expected[i], network.edgeTable.getRow(network.edges.get(i).getSUID()).get(SirenTask.SCORE_COLUMN, Double.class), 1e-4);
+		}
+
+		// Genes' bases are cached, and scored, as floats only
+		String source = BasisStore.getKey(BasisCache.getAttributeSource(task.attributeNames.getSelectedValues()), true);
+		BasisCache.Entry entry = cache.get(source, task.degreesOfFreedom, task.degree, Long.toString(network.edges.get(0).getSource().getSUID()), null);
+		Assert.assertNull(entry.basis);
+		Assert.assertEquals(task.degreesOfFreedom * 20, entry.floatBasis.length);
+	}
+
+	@Test
+	public void testNoGenesWithData() throws Exception {
+		// A network without edges
+		FakeNetwork network = createNetwork(new Random(73), 10, 20, 0);
+		createTask(network, 20, null).run(FakeNetwork.createTaskMonitor(null));
+		
+		// An expression file without any of the network's genes
+		network = createNetwork(new Random(79), 10, 20, 30);
+		File file = TabDelimitedReaderTest.write("other\t1\t2\t3\n");
+		try {
+			SirenTask task = new SirenTask(network.network, null, null, null, null);
+			task.readFrom.setSelectedValue(SirenTask.READ_FROM_FILE);
+			task.expressionFile = file;
+			task.threads = 1;
+			task.run(FakeNetwork.createTaskMonitor(null));
+		} finally {
+			file.delete();
+		}
+		for (CyEdge edge : network.edges) {
+			Assert.assertEquals(0.0, network.edgeTable.getRow(edge.getSUID()).get(SirenTask.SCORE_COLUMN, Double.class), 0);
+		}
+	}
+
+	@Test
+	public void testSavedBasesAreReusedInLaterSessions() throws Exception {
+		Random random = new Random(83);
+		StringBuilder builder = new StringBuilder();
+		double[][] expressionMatrix = SirenTest.createExpressionMatrix(random, 40, 25);
+		for (int g = 0; g < expressionMatrix.length; g++) {
+			builder.append("gene").append(g);
+			for (double value : expressionMatrix[g]) {
+				builder.append('\t').append(value);
+			}
+			builder.append('\n');
+		}
+		File file = TabDelimitedReaderTest.write(builder.toString());
+		File directory = File.createTempFile("siren", "");
+		directory.delete();
+		try {
+			FakeNetwork network = createNetwork(random, 30, 1, 100);
+			FakeNetwork largerNetwork = createNetwork(random, 40, 1, 200);
+			for (boolean singlePrecision : new boolean[] { false, true }) {
+				scoreFile(network, file, null, singlePrecision);
+				double[] expected = readScores(network);
+				scoreFile(largerNetwork, file, null, singlePrecision);
+				double[] largerExpected = readScores(largerNetwork);
+				
+				// Each task has its own session cache, so only the store is
+				// shared
+				BasisStore store = new BasisStore(directory);
+				RunMetrics metrics = scoreFile(network, file, store, singlePrecision);
+				Assert.assertNotNull(metrics.getPhase(RunMetrics.LOAD_EXPRESSION_FILE));
+				Assert.assertArrayEquals(expected, readScores(network), 0);
+				
+				metrics = scoreFile(network, file, store, singlePrecision);
+				Assert.assertNull(metrics.getPhase(RunMetrics.LOAD_EXPRESSION_FILE));
+				Assert.assertTrue(metrics.getPhase(RunMetrics.LOAD_CACHED_BASES).getItems() > 0);
+				Assert.assertArrayEquals(expected, readScores(network), 0);
+				
+				// Genes that weren't stored yet are computed and added
+				metrics = scoreFile(largerNetwork, file, store, singlePrecision);
+				Assert.assertNotNull(metrics.getPhase(RunMetrics.LOAD_EXPRESSION_FILE));
+				Assert.assertArrayEquals(largerExpected, readScores(largerNetwork), 0);
+				metrics = scoreFile(largerNetwork, file, store, singlePrecision);
+				Assert.assertNull(metrics.getPhase(RunMetrics.LOAD_EXPRESSION_FILE));
+				Assert.assertArrayEquals(largerExpected, readScores(largerNetwork), 0);
+			}
+		} finally {
+			file.delete();
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File other : files) {
+					other.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+	
+	/**
+	 * Scores the network with expression data from the given file, and
+	 * returns the run's metrics.
+	 */
+	static RunMetrics scoreFile(FakeNetwork network, File file, BasisStore store, boolean singlePrecision) throws Exception {
+		SirenTask task = new SirenTask(network.network, store, null, null, null);
+		task.readFrom.setSelectedValue(SirenTask.READ_FROM_FILE);
+		task.expressionFile = file;
+		task.threads = 1;
+		task.singlePrecision = singlePrecision;
+		task.run(FakeNetwork.createTaskMonitor(null));
+		return task.getMetrics();
+	}
+	
+	static double[] readScores(FakeNetwork network) {
+		double[] result = new double[network.edges.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = network.edgeTable.getRow(network.edges.get(i).getSUID()).get(SirenTask.SCORE_COLUMN, Double.class);
+		}
+		return result;
+	}
+}
@@ -1,5 +1,9 @@
 package ca.utoronto.siren.internal;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -48,4 +52,401 @@ public class SirenTest {
 		double[] result = Siren.computeKnots(new double[] { 0, 10 }, 11, 2, 0, 10);
 		Assert.assertArrayEquals(new double[] { 0, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 10, 10 }, result, MAX_ERROR);
 	}
+
+	@Test
+	public void testParallelScoresMatchSerial() {
+		Random random = new Random(42);
+		double[][] expressionMatrix = createExpressionMatrix(random, 300, 40);
+		int[][] networkMatrix = createNetworkMatrix(random, 300, 2000);
+		
+		double[] serial = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 1);
+		double[] parallel = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 4);
+		Assert.assertArrayEquals(serial, parallel, 0);
+	}
+	
+	@Test
+	public void testEmptyNetwork() {
+		Random random = new Random(43);
+		double[][] expressionMatrix = createExpressionMatrix(random, 30, 40);
+		Assert.assertEquals(0, Siren.computeScores(expressionMatrix, new int[0][], Siren.DEFAULT_WEIGHT_MATRIX).length);
+		Assert.assertEquals(0, Siren.computeScores(expressionMatrix, new int[0][], Siren.DEFAULT_WEIGHT_MATRIX, 1, true, null).length);
+		Assert.assertEquals(0, Siren.computeBMatrix(new double[0][], 10, 2).getGeneCount());
+		Assert.assertEquals(0, Siren.computeFloatBMatrix(new double[0][], 10, 2, 1).getGeneCount());
+	}
+	
+	@Test
+	public void testExtraNetworkColumnsAreIgnored() {
+		Random random = new Random(47);
+		double[][] expressionMatrix = createExpressionMatrix(random, 30, 40);
+		int[][] networkMatrix = createNetworkMatrix(random, 10, 50);
+		int[][] weightedMatrix = new int[networkMatrix.length][];
+		for (int i = 0; i < networkMatrix.length; i++) {
+			// A third column that isn't a valid gene index
+			weightedMatrix[i] = new int[] { networkMatrix[i][0], networkMatrix[i][1], 1000 };
+		}
+		double[] expected = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX);
+		Assert.assertArrayEquals(expected, Siren.computeScores(expressionMatrix, weightedMatrix, Siren.DEFAULT_WEIGHT_MATRIX), 0);
+	}
+	
+	@Test
+	public void testBasisTensorLayout() {
+		Random random = new Random(7);
+		double[][] expressionMatrix = createExpressionMatrix(random, 5, 30);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		Assert.assertEquals(5, bMatrix.getGeneCount());
+		Assert.assertEquals(10, bMatrix.getBinCount());
+		Assert.assertEquals(30, bMatrix.getConditionCount());
+		
+		for (int g = 0; g < expressionMatrix.length; g++) {
+			double[][] expected = Siren.computeBSplineBasis(Siren.scaleAndCentre(expressionMatrix[g]), 10, 2);
+			for (int b = 0; b < expected.length; b++) {
+				for (int c = 0; c < expected[b].length; c++) {
+					Assert.assertEquals(expected[b][c], bMatrix.get(g, b, c), 0);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testComputeBasisMatchesRecursiveDefinition() {
+		double[][] samples = {
+			{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 },
+			// Repeated maximum; i.e. multiple outer bound
+			{ 1, 2, 3, 4, 5, 6, 9, 9, 9, 9, 9, 9 },
+			// Heavy ties
+			{ 0, 1, 0, 1, 2, 0, 1, 2, 3, 0, 3, 3, 1, 2 },
+			{ -1.5, 0.25, 3, 0.25, -0.75, 2, 1.5, -1.5, 0, 0.5 },
+		};
+		int[] degrees = { 0, 1, 2, 3 };
+		
+		for (double[] x : samples) {
+			for (int degree : degrees) {
+				int degreesOfFreedom = 6;
+				double minX = x[0];
+				double maxX = x[0];
+				for (double value : x) {
+					minX = Math.min(minX, value);
+					maxX = Math.max(maxX, value);
+				}
+				double[] knots = Siren.computeKnots(x, degreesOfFreedom, degree, minX, maxX);
+				double[] result = new double[knots.length - 1];
+				for (int i = 0; i < x.length; i++) {
+					Siren.computeBasis(x[i], degreesOfFreedom, degree, knots, result);
+					for (int j = 1; j <= degreesOfFreedom; j++) {
+						double expected = computeBasisRecursively(x[i], degreesOfFreedom, degree, j, knots);
+						Assert.assertEquals(expected, result[j], 0);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Recursive definition of basis() from the spline primer, including the
+	 * NaN cases of the R implementation.
+	 */
+	static double computeBasisRecursively(double x, int degreesOfFreedom, int degree, int j, double[] knots) {
+		double maxX = knots[knots.length - 1];
+		boolean hasMultipleOuterBound = maxX == knots[degreesOfFreedom + degree - 2];
+		if (x == maxX && j > degreesOfFreedom - degree && hasMultipleOuterBound) {
+			return Double.NaN;
+		}
+		if (degree == 0) {
+			return (x >= knots[j] && x < knots[j + 1]) ? 1 : 0;
+		}
+		double basis1 = computeBasisRecursively(x, degreesOfFreedom, degree - 1, j, knots);
+		double basis2 = computeBasisRecursively(x, degreesOfFreedom, degree - 1, j + 1, knots);
+		double denominator1 = knots[degree + j] - knots[j];
+		double denominator2 = knots[j + degree + 1] - knots[j + 1];
+		double alpha1 = denominator1 == 0 ? 0 : (x - knots[j]) / denominator1;
+		double alpha2 = denominator2 == 0 ? 0 : (knots[j + degree + 1] - x) / denominator2;
+		return alpha1 * basis1 + alpha2 * basis2;
+	}
+	
+	@Test
+	public void testBandedPabMatrixMatchesDense() {
+		Random random = new Random(11);
+		double[][] expressionMatrix = createExpressionMatrix(random, 20, 50);
+		// Ties at the maximum produce NaNs in the basis
+		for (int c = 0; c < 10; c++) {
+			expressionMatrix[3][c] = 100;
+		}
+		// Ties in the middle give repeated interior knots
+		for (int c = 0; c < 50; c++) {
+			expressionMatrix[4][c] = c % 3;
+		}
+		expressionMatrix[4][0] = 5;
+		
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		BandedBasis bandedMatrix = new BandedBasis(bMatrix, 3);
+		Assert.assertFalse(bandedMatrix.isBanded(3));
+		Assert.assertTrue(bandedMatrix.isBanded(4));
+		
+		double[][] expected = new double[10][10];
+		double[][] actual = new double[10][10];
+		for (int a = 0; a < 20; a++) {
+			for (int b = 0; b < 20; b++) {
+				if (!bandedMatrix.isBanded(a) || !bandedMatrix.isBanded(b)) {
+					continue;
+				}
+				Siren.computePabMatrix(bMatrix, a, b, expected);
+				bandedMatrix.computePabMatrix(a, b, actual);
+				for (int x = 0; x < 10; x++) {
+					Assert.assertArrayEquals(expected[x], actual[x], MAX_ERROR * MAX_ERROR);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testHubScoresMatchPerInteraction() {
+		Random random = new Random(13);
+		int totalGenes = 100;
+		double[][] expressionMatrix = createExpressionMatrix(random, totalGenes, 300);
+		int[][] networkMatrix = createNetworkMatrix(random, totalGenes, 1500);
+		// Make gene 0 a hub, on both sides of its interactions
+		for (int i = 0; i < 600; i++) {
+			networkMatrix[i][i % 2] = 0;
+		}
+		
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		double[] actual = Siren.computeScores(bMatrix, null, Siren.DEFAULT_WEIGHT_MATRIX, paMatrix, networkMatrix, 2);
+		
+		double[][] pABMatrix = new double[10][10];
+		for (int i = 0; i < networkMatrix.length; i++) {
+			int geneA = networkMatrix[i][0];
+			int geneB = networkMatrix[i][1];
+			Siren.computePabMatrix(bMatrix, geneA, geneB, pABMatrix);
+			double expected = Siren.computeScore(pABMatrix, paMatrix[geneA], paMatrix[geneB], Siren.DEFAULT_WEIGHT_MATRIX);
+			Assert.assertEquals(expected, actual[i], MAX_ERROR * MAX_ERROR);
+		}
+	}
+	
+	@Test
+	public void testRepeatedAndReversedPairsScoredPerOrientation() {
+		Random random = new Random(29);
+		int totalGenes = 30;
+		double[][] expressionMatrix = createExpressionMatrix(random, totalGenes, 200);
+		int[][] uniqueMatrix = createNetworkMatrix(random, totalGenes, 40);
+		int[][] networkMatrix = new int[uniqueMatrix.length * 3 + 1][];
+		for (int i = 0; i < uniqueMatrix.length; i++) {
+			int[] interaction = uniqueMatrix[i];
+			networkMatrix[3 * i] = interaction;
+			networkMatrix[3 * i + 1] = new int[] { interaction[1], interaction[0] };
+			networkMatrix[3 * i + 2] = interaction.clone();
+		}
+		networkMatrix[networkMatrix.length - 1] = new int[] { 5, 5 };
+		
+		// An asymmetric weight matrix, so orientation matters
+		double[][] weightMatrix = new double[10][10];
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				weightMatrix[x][y] = random.nextDouble() * 2 - 1;
+			}
+		}
+		
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		GenePairs pairs = new GenePairs(networkMatrix, totalGenes);
+		Assert.assertTrue(pairs.getPairs().length <= uniqueMatrix.length + 1);
+		
+		double[] dense = Siren.computeScores(bMatrix, null, weightMatrix, paMatrix, networkMatrix, 2);
+		double[] banded = Siren.computeScores(bMatrix, new BandedBasis(bMatrix, 3), weightMatrix, paMatrix, networkMatrix, 2);
+		double[][] pABMatrix = new double[10][10];
+		for (int i = 0; i < networkMatrix.length; i++) {
+			int geneA = networkMatrix[i][0];
+			int geneB = networkMatrix[i][1];
+			Siren.computePabMatrix(bMatrix, geneA, geneB, pABMatrix);
+			double expected = Siren.computeScore(pABMatrix, paMatrix[geneA], paMatrix[geneB], weightMatrix);
+			Assert.assertEquals(expected, dense[i], MAX_ERROR * MAX_ERROR);
+			Assert.assertEquals(expected, banded[i], MAX_ERROR * MAX_ERROR);
+		}
+	}
+	
+	@Test
+	public void testRunMetricsAreActiveOnlyOnTheirThread() throws InterruptedException {
+		RunMetrics metrics = new RunMetrics();
+		Assert.assertNull(RunMetrics.getActive());
+		metrics.begin(RunMetrics.COMPUTE_BASES);
+		Assert.assertSame(metrics, RunMetrics.getActive());
+		
+		// Work started on another thread isn't counted towards this run
+		final RunMetrics[] other = new RunMetrics[1];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				other[0] = RunMetrics.getActive();
+			}
+		});
+		thread.start();
+		thread.join();
+		Assert.assertNull(other[0]);
+		
+		RunMetrics.Phase phase = metrics.end(0, RunMetrics.GENES);
+		Assert.assertNull(RunMetrics.getActive());
+		Assert.assertTrue(phase.getPeakHeapBytes() > 0);
+	}
+	
+	@Test
+	public void testRunMetrics() throws IOException {
+		Random random = new Random(47);
+		double[][] expressionMatrix = createExpressionMatrix(random, 200, 100);
+		int[][] networkMatrix = createNetworkMatrix(random, 200, 1000);
+		RunMetrics metrics = new RunMetrics();
+		double[] actual = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 2, metrics);
+		Assert.assertArrayEquals(Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX), actual, 0);
+		
+		Assert.assertEquals(3, metrics.getPhases().size());
+		RunMetrics.Phase phase = metrics.getPhase(RunMetrics.SCORE_INTERACTIONS);
+		Assert.assertEquals(1000, phase.getItems());
+		Assert.assertTrue(phase.getWallNanos() > 0);
+		Assert.assertTrue(phase.getThroughput() > 0);
+		Assert.assertEquals(200, metrics.getPhase(RunMetrics.COMPUTE_BASES).getItems());
+		Assert.assertTrue(metrics.getPhase(RunMetrics.COMPUTE_BASES).getAllocatedBytes() != 0);
+		
+		StringWriter writer = new StringWriter();
+		metrics.writeTsv(writer);
+		Assert.assertEquals(4, writer.toString().split("\n").length);
+		writer = new StringWriter();
+		metrics.writeJson(writer);
+		Assert.assertTrue(writer.toString().contains("\"name\": \"Score interactions\""));
+	}
+	
+	@Test
+	public void testSinglePrecisionScores() {
+		Random random = new Random(53);
+		double[][] expressionMatrix = createExpressionMatrix(random, 60, 150);
+		// Ties at the maximum produce NaNs, so the gene isn't banded
+		for (int c = 0; c < 10; c++) {
+			expressionMatrix[3][c] = 100;
+		}
+		int[][] networkMatrix = createNetworkMatrix(random, 60, 500);
+		
+		// Banded single-precision scores match dense scores of the same bases
+		FloatBasisTensor bMatrix = Siren.computeFloatBMatrix(expressionMatrix, 10, 2, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		BasisTensor denseMatrix = BasisTensor.copyOf(bMatrix, null);
+		Assert.assertArrayEquals(Siren.computePaMatrix(denseMatrix)[7], paMatrix[7], 0);
+		double[] expected = Siren.computeScores(denseMatrix, null, Siren.DEFAULT_WEIGHT_MATRIX, paMatrix, networkMatrix, 1);
+		double[] actual = Siren.computeScores(bMatrix, paMatrix, Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, 2, 2);
+		Assert.assertArrayEquals(expected, actual, MAX_ERROR * MAX_ERROR);
+		
+		// ...and are close to double-precision scores
+		double[] exact = Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX);
+		ScoreComparison comparison = new ScoreComparison(exact, Siren.computeScores(expressionMatrix, networkMatrix, Siren.DEFAULT_WEIGHT_MATRIX, 2, true, null), 1e-6);
+		Assert.assertEquals(0, comparison.getExceededCount());
+		Assert.assertTrue(comparison.getMaximumError() > 0);
+	}
+	
+	@Test
+	public void testScoreKernelMatchesReference() {
+		Random random = new Random(17);
+		double[][] expressionMatrix = createExpressionMatrix(random, 30, 60);
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, 10, 2);
+		double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+		
+		// Asymmetric custom weights, including zeros
+		double[][] weightMatrix = new double[10][10];
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				weightMatrix[x][y] = random.nextInt(3) == 0 ? 0 : random.nextGaussian();
+			}
+		}
+		
+		double[][] pABMatrix = new double[10][10];
+		double[][] pBAMatrix = new double[10][10];
+		for (double[][] weights : new double[][][] { Siren.DEFAULT_WEIGHT_MATRIX, weightMatrix }) {
+			ScoreKernel kernel = new ScoreKernel(weights, paMatrix);
+			for (int a = 0; a < 30; a++) {
+				for (int b = 0; b < 30; b++) {
+					Siren.computePabMatrix(bMatrix, a, b, pABMatrix);
+					Siren.computePabMatrix(bMatrix, b, a, pBAMatrix);
+					double expected = Siren.computeScore(pABMatrix, paMatrix[a], paMatrix[b], weights);
+					Assert.assertEquals(expected, kernel.computeScore(pABMatrix, a, b), MAX_ERROR * MAX_ERROR);
+					Assert.assertEquals(expected, kernel.computeTransposedScore(pBAMatrix, a, b), MAX_ERROR * MAX_ERROR);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testEngineConfigurations() {
+		Random random = new Random(83);
+		double[][] expressionMatrix = createExpressionMatrix(random, 25, 70);
+		int[][] networkMatrix = createNetworkMatrix(random, 25, 200);
+		// Degrees 2 and 3 use unrolled kernels, the others the generic loop
+		int[][] configurations = { { 10, 2 }, { 8, 3 }, { 12, 1 }, { 9, 4 } };
+		for (int[] configuration : configurations) {
+			int degreesOfFreedom = configuration[0];
+			int degree = configuration[1];
+			double[][] weightMatrix = new double[degreesOfFreedom][degreesOfFreedom];
+			for (int x = 0; x < degreesOfFreedom; x++) {
+				for (int y = 0; y < degreesOfFreedom; y++) {
+					weightMatrix[x][y] = random.nextInt(3) - 1;
+				}
+			}
+			SirenEngine engine = new SirenEngine(degreesOfFreedom, degree, weightMatrix);
+			double[] actual = engine.computeScores(expressionMatrix, networkMatrix, 2);
+			
+			BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, degreesOfFreedom, degree);
+			double[][] paMatrix = Siren.computePaMatrix(bMatrix);
+			BandedBasis bandedMatrix = new BandedBasis(bMatrix, degree + 1);
+			double[][] pABMatrix = new double[degreesOfFreedom][degreesOfFreedom];
+			double[][] bandedPabMatrix = new double[degreesOfFreedom][degreesOfFreedom];
+			for (int i = 0; i < networkMatrix.length; i++) {
+				int a = networkMatrix[i][0];
+				int b = networkMatrix[i][1];
+				Siren.computePabMatrix(bMatrix, a, b, pABMatrix);
+				Assert.assertEquals(Siren.computeScore(pABMatrix, paMatrix[a], paMatrix[b], weightMatrix), actual[i], MAX_ERROR * MAX_ERROR);
+				if (bandedMatrix.isBanded(a) && bandedMatrix.isBanded(b)) {
+					bandedMatrix.computePabMatrix(a, b, bandedPabMatrix);
+					for (int x = 0; x < degreesOfFreedom; x++) {
+						Assert.assertArrayEquals(pABMatrix[x], bandedPabMatrix[x], 0);
+					}
+				}
+			}
+		}
+		
+		try {
+			new SirenEngine(8, 2, Siren.DEFAULT_WEIGHT_MATRIX);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// Weight matrix doesn't match the degrees of freedom
+		}
+	}
+	
+	@Test
+	public void testOnlyNetworkGenesUsed() {
+		Random random = new Random(89);
+		double[][] expressionMatrix = createExpressionMatrix(random, 400, 30);
+		int[][] networkMatrix = createNetworkMatrix(random, 20, 100);
+		for (int[] interaction : networkMatrix) {
+			interaction[0] = interaction[0] * 17 + 3;
+			interaction[1] = interaction[1] * 17 + 3;
+		}
+		double[] actual = SirenEngine.DEFAULT.computeScores(expressionMatrix, networkMatrix, 1);
+		
+		BasisTensor bMatrix = Siren.computeBMatrix(expressionMatrix, Siren.DEFAULT_DEGREES_OF_FREEDOM, Siren.DEFAULT_DEGREE);
+		double[] expected = Siren.computeScores(bMatrix, Siren.computePaMatrix(bMatrix), Siren.DEFAULT_WEIGHT_MATRIX, networkMatrix, Siren.DEFAULT_DEGREE, 1);
+		Assert.assertArrayEquals(expected, actual, MAX_ERROR * MAX_ERROR);
+	}
+	
+	static double[][] createExpressionMatrix(Random random, int genes, int conditions) {
+		double[][] result = new double[genes][conditions];
+		for (int g = 0; g < genes; g++) {
+			for (int c = 0; c < conditions; c++) {
+				result[g][c] = random.nextGaussian();
+			}
+		}
+		return result;
+	}
+	
+	static int[][] createNetworkMatrix(Random random, int genes, int interactions) {
+		int[][] result = new int[interactions][];
+		for (int i = 0; i < interactions; i++) {
+			result[i] = new int[] { random.nextInt(genes), random.nextInt(genes) };
+		}
+		return result;
+	}
 }
@@ -0,0 +1,189 @@
+package ca.utoronto.siren.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TabDelimitedReaderTest {
+	@Test
+	public void testParseDouble() {
+		String[] values = { "0", "-0", "1", "-1.5", "+2.25", "3.", ".5", "1e3", "1.5E-7", "-2.5e+10",
+				"123456789012345", "0.000001234", "1234567890123456789", "1e-30", "NaN", "-Infinity",
+				"0.1", "0.30000000000000004", "4.9e-324", "1.7976931348623157E308" };
+		for (String value : values) {
+			double expected = Double.parseDouble(value);
+			double actual = parseDouble(value);
+			Assert.assertEquals(value, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+		}
+
+		Random random = new Random(3);
+		for (int i = 0; i < 10000; i++) {
+			String value = Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+			Assert.assertEquals(value, Double.parseDouble(value), parseDouble(value), 0);
+			value = String.format("%.6f", random.nextGaussian());
+			Assert.assertEquals(value, Double.parseDouble(value), parseDouble(value), 0);
+		}
+	}
+
+	@Test
+	public void testLoadMatrixInParallelChunks() throws IOException {
+		Random random = new Random(5);
+		int rows = 40000;
+		int columns = 6;
+		double[][] expected = new double[rows][columns];
+		File file = File.createTempFile("siren", ".txt");
+		try {
+			Writer writer = new FileWriter(file);
+			try {
+				for (int r = 0; r < rows; r++) {
+					for (int c = 0; c < columns; c++) {
+						expected[r][c] = random.nextGaussian();
+						writer.write(String.format("%s%s", c == 0 ? "" : "\t", Double.toString(expected[r][c])));
+					}
+					writer.write(r % 2 == 0 ? "\n" : "\r\n");
+				}
+			} finally {
+				writer.close();
+			}
+			Assert.assertTrue(file.length() > TabDelimitedReader.MINIMUM_PARALLEL_SIZE);
+
+			double[][] actual = TabDelimitedReader.loadMatrix(file, 4);
+			Assert.assertEquals(rows, actual.length);
+			for (int r = 0; r < rows; r++) {
+				Assert.assertArrayEquals(expected[r], actual[r], 0);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testErrorsGiveLinesOfFile() throws IOException {
+		int rows = 200000;
+		StringBuilder builder = new StringBuilder();
+		for (int r = 0; r < rows; r++) {
+			builder.append(r == rows - 10 ? "1\t2\t3\t4\n" : "1\t2\t3\n");
+		}
+		File file = write(builder.toString());
+		try {
+			Assert.assertTrue(file.length() > TabDelimitedReader.MINIMUM_PARALLEL_SIZE);
+			try {
+				TabDelimitedReader.loadMatrix(file, 4);
+				Assert.fail("Extra column wasn't reported");
+			} catch (IOException e) {
+				Assert.assertEquals(String.format("Too many columns (expected 3) on line %d of %s", rows - 9, file), e.getMessage());
+			}
+		} finally {
+			file.delete();
+		}
+		
+		file = write("1\t2\n3\t4\n5\t6\t7\n");
+		try {
+			NetworkStream stream = new NetworkStream(file);
+			stream.read(new int[2], new int[2]);
+			try {
+				stream.read(new int[2], new int[2]);
+				Assert.fail("Extra column wasn't reported");
+			} catch (IOException e) {
+				Assert.assertEquals(String.format("Too many columns (expected 2) on line 3 of %s", file), e.getMessage());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLoadNetworkMatrix() throws IOException {
+		File file = write("1\t2\n3\t1\n10\t4");
+		try {
+			int[][] actual = TabDelimitedReader.loadNetworkMatrix(file, 1);
+			Assert.assertArrayEquals(new int[][] { { 0, 1 }, { 2, 0 }, { 9, 3 } }, actual);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testNetworkStream() throws IOException {
+		File file = write("1\t2\n3\t1\r\n10\t4\n5\n6\t7\n8\t9\n2\t2\n");
+		try {
+			NetworkStream stream = new NetworkStream(file);
+			int[] genesA = new int[3];
+			int[] genesB = new int[3];
+			Assert.assertEquals(3, stream.read(genesA, genesB));
+			Assert.assertArrayEquals(new int[] { 0, 2, 9 }, genesA);
+			Assert.assertArrayEquals(new int[] { 1, 0, 3 }, genesB);
+			Assert.assertEquals(3, stream.read(genesA, genesB));
+			Assert.assertArrayEquals(new int[] { 4, 5, 7 }, genesA);
+			Assert.assertArrayEquals(new int[] { -1, 6, 8 }, genesB);
+			Assert.assertEquals(1, stream.read(genesA, genesB));
+			Assert.assertEquals(1, genesA[0]);
+			Assert.assertEquals(0, stream.read(genesA, genesB));
+			Assert.assertEquals(7, stream.getTotalRead());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCountLines() throws IOException {
+		File file = write("1\t2\n3\t1\r\n10\t4\n5");
+		try {
+			Assert.assertEquals(4, TabDelimitedReader.countLines(file, 10));
+			Assert.assertEquals(4, TabDelimitedReader.countLines(file, 4));
+			Assert.assertEquals(2, TabDelimitedReader.countLines(file, 2));
+		} finally {
+			file.delete();
+		}
+		file = write("1\t2\n3\t1\n");
+		try {
+			Assert.assertEquals(2, TabDelimitedReader.countLines(file, 10));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLoadLabelledMatrix() throws IOException {
+		File file = write("A\t1\t2\t3\nB\t4\t5\nC\t\t\nA\t7\t8\t9\n");
+		try {
+			TabDelimitedReader.LabelledMatrix actual = TabDelimitedReader.loadLabelledMatrix(file, 1);
+			Assert.assertEquals(Arrays.asList("A", "B", "A"), actual.labels);
+			Assert.assertArrayEquals(new double[] { 1, 2, 3 }, actual.values[0], 0);
+			Assert.assertArrayEquals(new double[] { 4, 5, Double.NaN }, actual.values[1], 0);
+			Assert.assertArrayEquals(new double[] { 7, 8, 9 }, actual.values[2], 0);
+			Assert.assertEquals(Integer.valueOf(2), TabDelimitedReader.indexLabels(actual.labels).get("A"));
+
+			actual = TabDelimitedReader.loadLabelledMatrix(file, new HashSet<String>(Arrays.asList("B", "D")), 1);
+			Assert.assertEquals(Arrays.asList("B"), actual.labels);
+			Assert.assertArrayEquals(new double[] { 4, 5, Double.NaN }, actual.values[0], 0);
+		} finally {
+			file.delete();
+		}
+	}
+
+	static double parseDouble(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return TabDelimitedReader.parseDouble(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	static File write(String contents) throws IOException {
+		File file = File.createTempFile("siren", ".txt");
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+}
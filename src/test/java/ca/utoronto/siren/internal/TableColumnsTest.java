@@ -0,0 +1,41 @@
+package ca.utoronto.siren.internal;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TableColumnsTest {
+	@Test
+	public void testMissingValues() {
+		CyTable table = FakeNetwork.createTable();
+		table.createColumn("a", Double.class, false);
+		table.createColumn("b", Integer.class, false);
+		table.createColumn("name", String.class, false);
+		for (long suid = 1; suid <= 4; suid++) {
+			table.getRow(suid);
+		}
+		// Each column is missing a different cell, so a column's values
+		// don't line up with the rows
+		table.getRow(1L).set("a", 1.5);
+		table.getRow(3L).set("a", 3.5);
+		table.getRow(4L).set("a", 4.5);
+		table.getRow(1L).set("b", 10);
+		table.getRow(2L).set("b", 20);
+		table.getRow(4L).set("b", 40);
+		table.getRow(2L).set("name", "two");
+		table.getRow(3L).set("name", "three");
+
+		TableColumns columns = new TableColumns(table);
+		long[] suids = { 4, 3, 2, 1, 5 };
+		double[][] matrix = columns.getMatrix(new CyColumn[] { table.getColumn("a"), table.getColumn("b") }, suids);
+		Assert.assertArrayEquals(new double[] { 4.5, 40 }, matrix[0], 0);
+		Assert.assertArrayEquals(new double[] { 3.5, Double.NaN }, matrix[1], 0);
+		Assert.assertArrayEquals(new double[] { Double.NaN, 20 }, matrix[2], 0);
+		Assert.assertArrayEquals(new double[] { 1.5, 10 }, matrix[3], 0);
+		Assert.assertArrayEquals(new double[] { Double.NaN, Double.NaN }, matrix[4], 0);
+
+		String[] text = columns.getText(table.getColumn("name"), suids);
+		Assert.assertArrayEquals(new String[] { null, "three", "two", null, null }, text);
+	}
+}